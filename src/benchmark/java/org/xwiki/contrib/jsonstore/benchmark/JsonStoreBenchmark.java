@@ -0,0 +1,112 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the main operations of the json stores. The number of threads calling the store is set with the
+ * {@code -t} option of JMH.
+ *
+ * @version $Id$
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class JsonStoreBenchmark
+{
+    /**
+     * @param state the store
+     * @return whether the data was written
+     * @throws Exception if the write fails
+     */
+    @Benchmark
+    public boolean persistNewId(JsonStoreState state) throws Exception
+    {
+        return state.getJsonStore().persistAsJson(state.getDocument(), state.getNewId(), false);
+    }
+
+    /**
+     * @param state the store
+     * @return whether the data was written
+     * @throws Exception if the write fails
+     */
+    @Benchmark
+    public boolean persistOverwrite(JsonStoreState state) throws Exception
+    {
+        return state.getJsonStore().persistAsJson(state.getDocument(), state.getStoredId(), true);
+    }
+
+    /**
+     * Writes an org.json object, serialized by the raw value serializers of the codecs.
+     *
+     * @param state the store
+     * @return whether the data was written
+     * @throws Exception if the write fails
+     */
+    @Benchmark
+    public boolean persistJSONObjectOverwrite(JsonStoreState state) throws Exception
+    {
+        return state.getJsonStore().persistAsJson(state.getJSONObject(), state.getStoredId(), true);
+    }
+
+    /**
+     * @param state the store
+     * @return the read data
+     * @throws Exception if the read fails
+     */
+    @Benchmark
+    public Object getFromJsonStore(JsonStoreState state) throws Exception
+    {
+        return state.getJsonStore().getFromJsonStore(state.getStoredId());
+    }
+
+    /**
+     * @param state the store
+     * @return whether the id is stored
+     * @throws Exception if the check fails
+     */
+    @Benchmark
+    public boolean existsHit(JsonStoreState state) throws Exception
+    {
+        return state.getJsonStore().exists(state.getStoredId());
+    }
+
+    /**
+     * @param state the store
+     * @return whether the id is stored
+     * @throws Exception if the check fails
+     */
+    @Benchmark
+    public boolean existsMiss(JsonStoreState state) throws Exception
+    {
+        return state.getJsonStore().exists(state.getMissingId());
+    }
+}
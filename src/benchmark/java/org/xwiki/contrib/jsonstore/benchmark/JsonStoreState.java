@@ -0,0 +1,291 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.RandomStringUtils;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.xwiki.component.descriptor.DefaultComponentDescriptor;
+import org.xwiki.component.embed.EmbeddableComponentManager;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.configuration.internal.MemoryConfigurationSource;
+import org.xwiki.contrib.jsonstore.JsonStore;
+import org.xwiki.environment.Environment;
+
+/**
+ * A json store in a temporary permanent directory, filled with a number of small entries and with a working set of
+ * documents of the benchmarked size. The small entries make the folders as big as in a real store, while keeping the
+ * size on disk reasonable for big documents.
+ *
+ * @version $Id$
+ */
+@State(Scope.Benchmark)
+public class JsonStoreState
+{
+    /**
+     * The number of documents of the benchmarked size, read and overwritten by the benchmarks.
+     */
+    private static final int WORKING_SET = 8;
+
+    private static final int SMALL_DOCUMENT_SIZE = 1024;
+
+    private static final String ROOT = "benchmark";
+
+    private static final String NEW_ROOT = "benchmark-new";
+
+    /**
+     * The hint of the benchmarked json store implementation.
+     */
+    @Param({ "xwikipermdir", "segmentlog" })
+    public String store;
+
+    /**
+     * The approximate size of the benchmarked documents, serialized as JSON, in bytes. The big sizes are not run by
+     * default, they are passed with {@code -p documentSize=1048576,52428800}.
+     */
+    @Param({ "1024", "65536" })
+    public int documentSize;
+
+    /**
+     * The number of path particles of the ids, 4 being passed with {@code -p idDepth=4}.
+     */
+    @Param({ "1" })
+    public int idDepth;
+
+    /**
+     * The number of entries stored before the benchmark, 100000 being passed with {@code -p entries=100000}.
+     */
+    @Param({ "1000" })
+    public int entries;
+
+    /**
+     * The format in which the stores serialize the data.
+     */
+    @Param({ "json" })
+    public String format;
+
+    private File permanentDirectory;
+
+    private EmbeddableComponentManager componentManager;
+
+    private JsonStore jsonStore;
+
+    private Map<String, Object> document;
+
+    private JSONObject jsonObject;
+
+    private final List<String> workingSet = new ArrayList<>();
+
+    private final AtomicLong newIds = new AtomicLong();
+
+    /**
+     * Starts the store and fills it.
+     *
+     * @throws Exception if the store cannot be started or filled
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        this.permanentDirectory = Files.createTempDirectory("jsonstore-benchmark").toFile();
+        MemoryConfigurationSource configuration = new MemoryConfigurationSource();
+        configuration.setProperty("jsonstore.permdir.format", this.format);
+        configuration.setProperty("jsonstore.segmentlog.format", this.format);
+        this.componentManager = createComponentManager(this.permanentDirectory, configuration);
+        this.jsonStore = this.componentManager.getInstance(JsonStore.class, this.store);
+
+        Map<String, Object> smallDocument = createDocument(SMALL_DOCUMENT_SIZE);
+        for (int i = 0; i < this.entries; i++) {
+            this.jsonStore.persistAsJson(smallDocument, getId(ROOT, i), true);
+        }
+        this.document = createDocument(this.documentSize);
+        this.jsonObject = new JSONObject(this.document);
+        for (int i = 0; i < WORKING_SET; i++) {
+            String id = getId(ROOT, this.entries + i);
+            this.jsonStore.persistAsJson(this.document, id, true);
+            this.workingSet.add(id);
+        }
+    }
+
+    /**
+     * Removes the ids created by the iteration, so that the store keeps the same size during the benchmark.
+     *
+     * @throws Exception if the ids cannot be removed
+     */
+    @TearDown(Level.Iteration)
+    public void removeNewIds() throws Exception
+    {
+        this.jsonStore.removePrefix(NEW_ROOT + '/');
+    }
+
+    /**
+     * Stops the store and deletes its folder.
+     *
+     * @throws IOException if the folder cannot be deleted
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        this.componentManager.dispose();
+        FileUtils.deleteDirectory(this.permanentDirectory);
+    }
+
+    /**
+     * @return the benchmarked store
+     */
+    public JsonStore getJsonStore()
+    {
+        return this.jsonStore;
+    }
+
+    /**
+     * @return a document of the benchmarked size, as maps and lists
+     */
+    public Map<String, Object> getDocument()
+    {
+        return this.document;
+    }
+
+    /**
+     * @return a document of the benchmarked size, as an org.json object
+     */
+    public JSONObject getJSONObject()
+    {
+        return this.jsonObject;
+    }
+
+    /**
+     * @return a random id of the working set
+     */
+    public String getStoredId()
+    {
+        return this.workingSet.get(ThreadLocalRandom.current().nextInt(WORKING_SET));
+    }
+
+    /**
+     * @return a random id which is not stored, in the folders of the stored ids
+     */
+    public String getMissingId()
+    {
+        return getId(ROOT, ThreadLocalRandom.current().nextInt(this.entries + WORKING_SET)) + "-missing";
+    }
+
+    /**
+     * @return an id which was never stored, removed at the end of the iteration
+     */
+    public String getNewId()
+    {
+        return getId(NEW_ROOT, this.newIds.getAndIncrement());
+    }
+
+    /**
+     * @param root the first path particle of the id
+     * @param index the index of the id
+     * @return the id, spread in folders of up to 100 ids and sub-folders according to the id depth
+     */
+    private String getId(String root, long index)
+    {
+        StringBuilder id = new StringBuilder(root);
+        long folder = index / 100;
+        for (int level = 1; level < this.idDepth; level++) {
+            id.append("/folder").append(folder % 10);
+            folder /= 10;
+        }
+        return id.append("/document").append(index).toString();
+    }
+
+    private static Map<String, Object> createDocument(int size)
+    {
+        Map<String, Object> document = new LinkedHashMap<>();
+        List<Object> items = new ArrayList<>();
+        document.put("name", "benchmark");
+        document.put("items", items);
+        // each item is serialized in about 100 bytes
+        for (int i = 0; i < Math.max(size / 100, 1); i++) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("index", i);
+            item.put("enabled", i % 2 == 0);
+            item.put("value", i * 0.5);
+            item.put("text", RandomStringUtils.randomAlphanumeric(40));
+            items.add(item);
+        }
+        return document;
+    }
+
+    private static EmbeddableComponentManager createComponentManager(File permanentDirectory,
+        ConfigurationSource configuration) throws Exception
+    {
+        EmbeddableComponentManager componentManager = new EmbeddableComponentManager();
+        componentManager.initialize(JsonStoreState.class.getClassLoader());
+
+        DefaultComponentDescriptor<Environment> environmentDescriptor = new DefaultComponentDescriptor<>();
+        environmentDescriptor.setRoleType(Environment.class);
+        componentManager.registerComponent(environmentDescriptor, new Environment()
+        {
+            @Override
+            public File getTemporaryDirectory()
+            {
+                return permanentDirectory;
+            }
+
+            @Override
+            public File getPermanentDirectory()
+            {
+                return permanentDirectory;
+            }
+
+            @Override
+            public URL getResource(String resourceName)
+            {
+                return null;
+            }
+
+            @Override
+            public InputStream getResourceAsStream(String resourceName)
+            {
+                return null;
+            }
+        });
+
+        DefaultComponentDescriptor<ConfigurationSource> configurationDescriptor = new DefaultComponentDescriptor<>();
+        configurationDescriptor.setRoleType(ConfigurationSource.class);
+        configurationDescriptor.setRoleHint("xwikiproperties");
+        componentManager.registerComponent(configurationDescriptor, configuration);
+
+        return componentManager;
+    }
+}
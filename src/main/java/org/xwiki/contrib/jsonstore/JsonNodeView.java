@@ -0,0 +1,45 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.stability.Unstable;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Read only views of a JSON tree as maps, lists and values, e.g. for the scripts. The maps and lists of the views are
+ * only created when they are accessed, and the values are unboxed from the tree when they are read, so that reading a
+ * few members of a big document doesn't convert the whole tree.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+@Role
+@Unstable
+public interface JsonNodeView
+{
+    /**
+     * @param node a JSON tree, e.g. returned by {@link JsonStore#getFromJsonStore(String, Class)}
+     * @return a read only map for an object, a read only list for an array, or the value of the node (string, number,
+     *         boolean, binary data or null)
+     */
+    Object wrap(JsonNode node);
+}
@@ -19,9 +19,25 @@
  */
 package org.xwiki.contrib.jsonstore;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
 import org.xwiki.component.annotation.Role;
 import org.xwiki.stability.Unstable;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonPointer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 /**
  * Interface for saving and fetching an object serialized to JSON associated to a key.
  * 
@@ -32,9 +48,20 @@ import org.xwiki.stability.Unstable;
 @Unstable
 public interface JsonStore
 {
+    /**
+     * The number of ids listed at once by {@link #removePrefix(String)} and
+     * {@link #findIds(String, String, Object)}.
+     * 
+     * @since 1.1
+     */
+    int PAGE_SIZE = 1000;
+
     /**
      * Serializes the passed data object as JSON and persists it in the store under the passed id. If another json is
      * already stored under the same id, the parameter forceOverwrite can be used to forcefully overwrite it.
+     * Implementations may skip the write when the same data is already stored under the id (so that the version of the
+     * data and the date of the stored file don't change), which is reported as a write that happened since the data
+     * is stored once this returns.
      * 
      * @param data the data to store as JSON. TODO: implement a special handling of strings here, allowing caller to
      *            persist whatever they want, as long as they're ready to take responsibility on the fact that it's
@@ -42,11 +69,114 @@ public interface JsonStore
      * @param id the id to store the data under
      * @param forceOverwrite whether the existing data under the same id (if any) should be overwritten or not. Returns
      *            false if id is already stored and the overwrite is not forced or if data is null.
-     * @return true if write has happened or not
+     * @return true if write has happened or was skipped because the same data is already stored, false otherwise
      * @throws Exception if any exception happens during persistence of the Json
      */
     boolean persistAsJson(Object data, String id, boolean forceOverwrite) throws Exception;
 
+    /**
+     * Same as {@link #persistAsJson(Object, String, boolean)}, but the data expires once the passed time to live has
+     * elapsed, e.g. for cached or session scoped data: the id is then reported as missing by the reads,
+     * {@link #exists(String)} and {@link #list(String, String, int)}, and its data is removed from the store in the
+     * background. Writing the id again sets its new expiration, and writing it with
+     * {@link #persistAsJson(Object, String, boolean)} makes it permanent again. An expired id is overwritten even if
+     * the overwrite is not forced.
+     *
+     * @param data the data to store as JSON
+     * @param id the id to store the data under
+     * @param forceOverwrite whether the existing data under the same id (if any) should be overwritten or not
+     * @param timeToLive the time after which the data expires, in milliseconds
+     * @return true if write has happened or was skipped because the same data is already stored, false otherwise
+     * @throws IllegalArgumentException if the time to live is not positive
+     * @throws UnsupportedOperationException if the store doesn't expire its data, which is the default
+     * @throws Exception if any exception happens during persistence of the Json
+     * @since 1.1
+     */
+    default boolean persistAsJson(Object data, String id, boolean forceOverwrite, long timeToLive) throws Exception
+    {
+        throw new UnsupportedOperationException("Time to live writes are not supported by this json store");
+    }
+
+    /**
+     * Same as {@link #persistAsJson(Object, String, boolean)}, but the write may happen in the background, depending on
+     * the implementation and its configuration. Once this method returns, the data is returned by the reads of the id
+     * even if it's not written yet, and the passed data object can be modified without affecting what is stored.
+     * 
+     * @param data the data to store as JSON
+     * @param id the id to store the data under
+     * @param forceOverwrite whether the existing data under the same id (if any) should be overwritten or not
+     * @return a future completed with whether the write has happened or not once the data is written, or completed
+     *         exceptionally if any exception happens during persistence of the Json
+     * @since 1.1
+     */
+    default CompletableFuture<Boolean> persistAsJsonAsync(Object data, String id, boolean forceOverwrite)
+    {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        try {
+            result.complete(persistAsJson(data, id, forceOverwrite));
+        } catch (Exception e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Updates the data stored under the passed id by applying a JSON merge patch (RFC 7386): the members of the patch
+     * replace the members of the stored object with the same name, recursively for objects, and the members of the
+     * patch with a null value are removed from the stored object. The update is atomic, no other write of the id can
+     * happen between the read of the stored data and the write of the patched data.
+     * 
+     * @param id the id of the data to update. If nothing is stored under this id, the patch is applied to an empty
+     *            object.
+     * @param mergePatch the patch to apply, serialized as JSON in the same way as the data passed to
+     *            {@link #persistAsJson(Object, String, boolean)}
+     * @return true if the patched data was written, false if the id is not valid
+     * @throws UnsupportedOperationException if the store cannot update its data atomically, which is the default
+     * @throws Exception if any exception happens during the reading of the stored data or the writing of the patched
+     *             data
+     * @since 1.1
+     */
+    default boolean patch(String id, Object mergePatch) throws Exception
+    {
+        throw new UnsupportedOperationException("Merge patches are not supported by this json store");
+    }
+
+    /**
+     * Returns the version of the data stored under the passed id, which changes each time different data is written
+     * for the id. The version is derived from the content of the data, so it can be used as an ETag, and it doesn't
+     * change when the same data is written again.
+     *
+     * @param id the id of the data
+     * @return the version of the data stored under the id, or null if nothing is stored under the id
+     * @throws UnsupportedOperationException if the store doesn't version its data, which is the default
+     * @throws Exception if any exception happens during the reading of the store
+     * @since 1.1
+     */
+    default String getVersion(String id) throws Exception
+    {
+        throw new UnsupportedOperationException("Versions are not supported by this json store");
+    }
+
+    /**
+     * Same as {@link #persistAsJson(Object, String, boolean)} with a forced overwrite, but only if the version of the
+     * data stored under the id is still the passed version (see {@link #getVersion(String)}). The version check and
+     * the write are atomic, so this can be used to update the data with an optimistic concurrency control: read the
+     * version and the data, compute the new data, and start again if this returns false.
+     *
+     * @param data the data to store as JSON
+     * @param id the id to store the data under
+     * @param expectedVersion the version of the data expected to be stored under the id, or null if nothing is expected
+     *            to be stored under the id
+     * @return true if the data was written or is already stored, false if the stored version is not the expected one
+     * @throws UnsupportedOperationException if the store doesn't version its data, which is the default
+     * @throws Exception if any exception happens during persistence of the Json
+     * @since 1.1
+     */
+    default boolean persistIfVersion(Object data, String id, String expectedVersion) throws Exception
+    {
+        throw new UnsupportedOperationException("Versions are not supported by this json store");
+    }
+
     /**
      * Fetches the data identified by {@code id} from the Json store, as a parsed object.
      * 
@@ -58,6 +188,122 @@ public interface JsonStore
      */
     Object getFromJsonStore(String id) throws Exception;
 
+    /**
+     * Fetches the data identified by {@code id} from the Json store, parsed as the passed type, e.g. a POJO or a
+     * {@link com.fasterxml.jackson.databind.JsonNode} tree. Implementations may parse the stored data directly as the
+     * type, which is faster than converting the result of {@link #getFromJsonStore(String)}.
+     * 
+     * @param <T> the type of the returned data
+     * @param id the id to fetch the data for
+     * @param type the type to parse the data as, bound to the stored JSON in the same way as Jackson does
+     * @return the data stored in the store under the id {@code id}, parsed as {@code type}. Returns null if nothing is
+     *         stored in the key under the passed id.
+     * @throws Exception if any exception happens during the reading of the store or Json parsing, including when the
+     *             data cannot be bound to the passed type
+     * @since 1.1
+     */
+    default <T> T getFromJsonStore(String id, Class<T> type) throws Exception
+    {
+        return JsonStoreMappers.MAPPER.convertValue(getFromJsonStore(id), type);
+    }
+
+    /**
+     * Fetches a part of the data identified by {@code id} from the Json store, as a parsed object. Implementations may
+     * parse only the requested part of the stored data, which is much faster than fetching the whole data for big
+     * documents.
+     * 
+     * @param id the id to fetch the data for
+     * @param jsonPointer the JSON Pointer (RFC 6901) of the part of the data to return, e.g. {@code /items/2/name}. The
+     *            empty string points to the whole data.
+     * @return the value pointed by {@code jsonPointer} in the data stored under the id {@code id}, parsed as an object.
+     *         Returns null if nothing is stored under the passed id or if the data doesn't contain the pointed value.
+     * @throws Exception if any exception happens during the reading of the store or Json parsing.
+     * @since 1.1
+     */
+    default Object getFromJsonStore(String id, String jsonPointer) throws Exception
+    {
+        Object value = getFromJsonStore(id);
+        JsonPointer pointer = JsonPointer.compile(jsonPointer);
+        while (value != null && !pointer.matches()) {
+            if (value instanceof Map) {
+                value = ((Map<?, ?>) value).get(pointer.getMatchingProperty());
+            } else if (value instanceof List) {
+                List<?> list = (List<?>) value;
+                int index = pointer.getMatchingIndex();
+                value = index >= 0 && index < list.size() ? list.get(index) : null;
+            } else {
+                value = null;
+            }
+            pointer = pointer.tail();
+        }
+        return value;
+    }
+
+    /**
+     * Opens a streaming parser on the data identified by {@code id}, for the callers processing the data incrementally
+     * instead of loading it in memory. The parser is able to read values as objects (e.g. with
+     * {@link JsonParser#readValueAs(Class)}).
+     * 
+     * @param id the id to fetch the data for
+     * @return a parser positioned before the first token of the data stored under the id {@code id}, to be closed by
+     *         the caller, or null if nothing is stored under the passed id.
+     * @throws Exception if any exception happens during the reading of the store
+     * @since 1.1
+     */
+    default JsonParser openStream(String id) throws Exception
+    {
+        Object data = getFromJsonStore(id);
+        if (data == null && !exists(id)) {
+            return null;
+        }
+        ObjectMapper mapper = JsonStoreMappers.MAPPER;
+        return mapper.getFactory().createParser(mapper.writeValueAsBytes(data));
+    }
+
+    /**
+     * Fetches the data identified by {@code id} from the Json store as JSON, without parsing it, for the callers
+     * relaying the data as is (e.g. in an HTTP response). Implementations storing the data as JSON may return the
+     * stored bytes directly, e.g. mapped in memory from the stored file. The whole data is held by the returned buffer,
+     * so {@link #writeRawJson(String, OutputStream)} should be preferred to relay big data, notably data stored
+     * compressed.
+     * 
+     * @param id the id to fetch the data for
+     * @return a read only buffer containing the data stored under the id {@code id}, serialized as JSON in UTF-8, or
+     *         null if nothing is stored under the passed id.
+     * @throws Exception if any exception happens during the reading of the store
+     * @since 1.1
+     */
+    default ByteBuffer getRawJson(String id) throws Exception
+    {
+        Object data = getFromJsonStore(id);
+        if (data == null && !exists(id)) {
+            return null;
+        }
+        return ByteBuffer.wrap(JsonStoreMappers.MAPPER.writeValueAsBytes(data)).asReadOnlyBuffer();
+    }
+
+    /**
+     * Writes the data identified by {@code id} as JSON in a stream, without parsing it, for the callers relaying the
+     * data as is (e.g. in an HTTP response). Unlike {@link #getRawJson(String)}, implementations may stream the stored
+     * data, e.g. decompressing it while it's written, so that the memory used doesn't depend on the size of the data.
+     * 
+     * @param id the id to fetch the data for
+     * @param output the stream in which to write the data stored under the id {@code id}, serialized as JSON in UTF-8,
+     *            which is not closed
+     * @return true if the data was written, false if nothing is stored under the passed id
+     * @throws Exception if any exception happens during the reading of the store or the writing of the stream
+     * @since 1.1
+     */
+    default boolean writeRawJson(String id, OutputStream output) throws Exception
+    {
+        ByteBuffer json = getRawJson(id);
+        if (json == null) {
+            return false;
+        }
+        Channels.newChannel(output).write(json);
+        return true;
+    }
+
     /**
      * Tests whether a key is stored in the Json store, without loading, parsing or returning it. Notably, this only
      * checks that a key is 'occupied' but does not verify the validity of the data stored under that key.
@@ -67,4 +313,221 @@ public interface JsonStore
      * @throws Exception if any error is encountered when reading the store
      */
     boolean exists(String id) throws Exception;
+
+    /**
+     * Persists several data objects at once, as {@link #persistAsJson(Object, String, boolean)} would do for each of
+     * them. Implementations may write them in parallel.
+     * 
+     * @param data the data to store as JSON, by id
+     * @param forceOverwrite whether the existing data under the same ids (if any) should be overwritten or not
+     * @return for each id, whether the write has happened or not
+     * @throws Exception if any exception happens during persistence of the Json of any of the ids. The data of the
+     *             other ids may have been persisted.
+     * @since 1.1
+     */
+    default Map<String, Boolean> persistAllAsJson(Map<String, Object> data, boolean forceOverwrite) throws Exception
+    {
+        Map<String, Boolean> results = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> entry : data.entrySet()) {
+            results.put(entry.getKey(), persistAsJson(entry.getValue(), entry.getKey(), forceOverwrite));
+        }
+        return results;
+    }
+
+    /**
+     * Fetches the data of several ids at once, as {@link #getFromJsonStore(String)} would do for each of them.
+     * Implementations may read them in parallel.
+     * 
+     * @param ids the ids to fetch the data for
+     * @return the data stored under each id, parsed as an object, null for the ids under which nothing is stored
+     * @throws Exception if any exception happens during the reading of the store or Json parsing for any of the ids
+     * @since 1.1
+     */
+    default Map<String, Object> getAllFromJsonStore(Collection<String> ids) throws Exception
+    {
+        Map<String, Object> results = new LinkedHashMap<>();
+        for (String id : ids) {
+            results.put(id, getFromJsonStore(id));
+        }
+        return results;
+    }
+
+    /**
+     * Tests whether several keys are stored in the Json store at once, as {@link #exists(String)} would do for each of
+     * them. Implementations may check them in parallel.
+     * 
+     * @param ids the ids of the data
+     * @return for each id, whether any data is stored for it, without checking validity
+     * @throws Exception if any error is encountered when reading the store
+     * @since 1.1
+     */
+    default Map<String, Boolean> existsAll(Collection<String> ids) throws Exception
+    {
+        Map<String, Boolean> results = new LinkedHashMap<>();
+        for (String id : ids) {
+            results.put(id, exists(id));
+        }
+        return results;
+    }
+
+    /**
+     * Lists the ids stored in the Json store starting with a prefix, in alphabetical order, one page at a time. The
+     * ids are listed lazily by the implementations, so that paging through a big store never loads all the ids in
+     * memory.
+     * 
+     * @param prefix the prefix of the ids to list, e.g. {@code mydata/mycategory/} to list the ids under
+     *            {@code mydata/mycategory}. The empty string or null lists all the ids.
+     * @param cursor the last id of the previous page, or null to get the first page
+     * @param limit the maximum number of ids to return
+     * @return the ids starting with {@code prefix} and following {@code cursor}, in alphabetical order, at most
+     *         {@code limit}. Returns less than {@code limit} ids only for the last page.
+     * @throws UnsupportedOperationException if the store cannot list its ids, which is the default
+     * @throws Exception if any error is encountered when reading the store
+     * @since 1.1
+     */
+    default List<String> list(String prefix, String cursor, int limit) throws Exception
+    {
+        throw new UnsupportedOperationException("Listing the ids is not supported by this json store");
+    }
+
+    /**
+     * Removes the data stored under the passed id.
+     * 
+     * @param id the id of the data to remove
+     * @return true if some data was stored under the id and removed, false if nothing was stored under the id
+     * @throws UnsupportedOperationException if the store cannot remove its data, which is the default
+     * @throws Exception if any error is encountered when removing the data from the store
+     * @since 1.1
+     */
+    default boolean remove(String id) throws Exception
+    {
+        throw new UnsupportedOperationException("Removing the data is not supported by this json store");
+    }
+
+    /**
+     * Removes the data stored under all the ids starting with a prefix (see {@link #list(String, String, int)}).
+     * Implementations may remove them in parallel.
+     * 
+     * @param prefix the prefix of the ids to remove, e.g. {@code mydata/mycategory/} to remove all the ids under
+     *            {@code mydata/mycategory}
+     * @return the number of removed ids
+     * @throws UnsupportedOperationException if the store cannot list its ids or remove its data
+     * @throws Exception if any error is encountered when removing the data from the store. Some of the ids may have
+     *             been removed.
+     * @since 1.1
+     */
+    default int removePrefix(String prefix) throws Exception
+    {
+        int removed = 0;
+        String cursor = null;
+        List<String> ids;
+        do {
+            ids = list(prefix, cursor, PAGE_SIZE);
+            for (String id : ids) {
+                if (remove(id)) {
+                    removed++;
+                }
+                cursor = id;
+            }
+        } while (ids.size() == PAGE_SIZE);
+        return removed;
+    }
+
+    /**
+     * Finds the ids starting with a prefix whose data has the passed value at the passed JSON Pointer, e.g. all the
+     * jobs with {@code status == "failed"}. The values are compared as JSON: numbers are equal if they are written the
+     * same way (so {@code 3} doesn't match {@code 3.0}) and objects are equal whatever the order of their members.
+     * Implementations may look the ids up in indexes (see {@link #rebuildIndexes()}), and otherwise read the pointed
+     * value of all the ids starting with the prefix. A null value matches the data without the pointed value.
+     * 
+     * @param prefix the prefix of the ids to search, e.g. {@code jobs/}. The empty string or null searches all the ids.
+     * @param fieldPath the JSON Pointer (RFC 6901) of the compared value in the data, e.g. {@code /status}
+     * @param value the searched value, compared with the pointed value once serialized as JSON in the same way as the
+     *            data passed to {@link #persistAsJson(Object, String, boolean)}
+     * @return the ids starting with {@code prefix} whose data has the passed value at {@code fieldPath}, in
+     *         alphabetical order
+     * @throws Exception if any error is encountered when reading the store
+     * @since 1.1
+     */
+    default List<String> findIds(String prefix, String fieldPath, Object value) throws Exception
+    {
+        ObjectMapper mapper = JsonStoreMappers.SORTED_MAPPER;
+        String json = mapper.writeValueAsString(mapper.readValue(mapper.writeValueAsBytes(value), Object.class));
+        List<String> found = new ArrayList<>();
+        String cursor = null;
+        List<String> ids;
+        do {
+            ids = list(prefix, cursor, PAGE_SIZE);
+            for (String id : ids) {
+                if (json.equals(mapper.writeValueAsString(getFromJsonStore(id, fieldPath)))) {
+                    found.add(id);
+                }
+                cursor = id;
+            }
+        } while (ids.size() == PAGE_SIZE);
+        return found;
+    }
+
+    /**
+     * Writes the ids starting with a prefix and their data in a stream, as NDJSON: one line
+     * <code>{"id":"&lt;id&gt;","data":&lt;stored JSON&gt;}</code> per id, in alphabetical order of the ids. The data is
+     * streamed as stored, without being parsed when it's stored as JSON, and the ids are listed one page at a time (see
+     * {@link #list(String, String, int)}), so the memory used doesn't depend on the size of the store.
+     * 
+     * @param output the stream in which to write the lines, which is flushed but not closed
+     * @param prefix the prefix of the ids to export, e.g. {@code mydata/mycategory/}. The empty string or null exports
+     *            all the ids.
+     * @return the number of exported ids
+     * @throws UnsupportedOperationException if the store cannot export its data, which is the default
+     * @throws Exception if any error is encountered when reading the store or writing the stream
+     * @since 1.1
+     */
+    default long exportTo(OutputStream output, String prefix) throws Exception
+    {
+        throw new UnsupportedOperationException("Exports are not supported by this json store");
+    }
+
+    /**
+     * Stores the ids and data read from a stream written by {@link #exportTo(OutputStream, String)}. The lines are
+     * read one at a time and written in batches, which implementations may write in parallel, so the memory used
+     * doesn't depend on the size of the stream.
+     * 
+     * @param input the stream of the lines to import, which is not closed
+     * @param forceOverwrite whether the data already stored under the imported ids (if any) should be overwritten or
+     *            not
+     * @return the number of written ids
+     * @throws UnsupportedOperationException if the store cannot import data, which is the default
+     * @throws Exception if a line is not valid or any error is encountered when writing the data. The lines before the
+     *             failing batch are imported.
+     * @since 1.1
+     */
+    default long importFrom(InputStream input, boolean forceOverwrite) throws Exception
+    {
+        throw new UnsupportedOperationException("Imports are not supported by this json store");
+    }
+
+    /**
+     * Rebuilds the indexes used by {@link #findIds(String, String, Object)} from the stored data, e.g. after the files
+     * of the store were modified from outside the store. Stores without indexes do nothing.
+     * 
+     * @throws Exception if any error is encountered when reading the store or writing the indexes
+     * @since 1.1
+     */
+    default void rebuildIndexes() throws Exception
+    {
+        // no index to rebuild
+    }
+
+    /**
+     * Returns the counters of the cache of the reads of the store, to be used to size the cache. Stores without cache
+     * return an empty map.
+     *
+     * @return the counters of the cache by name, e.g. {@code hits}, {@code misses}, {@code evictions}, {@code entries},
+     *         {@code size} and {@code maxSize} (the sizes being in bytes)
+     * @since 1.1
+     */
+    default Map<String, Long> getCacheStatistics()
+    {
+        return Collections.emptyMap();
+    }
 }
@@ -0,0 +1,50 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+ * The Jackson mappers shared by the default methods of {@link JsonStore}. They are configured once, when the class is
+ * loaded, and never changed afterwards, so that they can be used concurrently.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+final class JsonStoreMappers
+{
+    /**
+     * The mapper serializing and parsing the data as the stores do.
+     */
+    static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * The mapper serializing the members of the objects in the order of their names, so that the objects with the same
+     * members are serialized the same way.
+     */
+    static final ObjectMapper SORTED_MAPPER =
+        new ObjectMapper().configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true);
+
+    private JsonStoreMappers()
+    {
+        // utility class
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore.internal;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.jsonstore.JsonNodeView;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.POJONode;
+
+/**
+ * Default implementation of {@link JsonNodeView}. The views keep a reference to the tree and wrap its nodes again each
+ * time they are accessed, so they are cheap to create and never copy the tree.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+@Component
+@Singleton
+public class DefaultJsonNodeView implements JsonNodeView
+{
+    /**
+     * A view of a JSON object as a map.
+     */
+    private final class ObjectView extends AbstractMap<String, Object>
+    {
+        private final ObjectNode node;
+
+        ObjectView(ObjectNode node)
+        {
+            this.node = node;
+        }
+
+        @Override
+        public Object get(Object key)
+        {
+            return key instanceof String ? wrap(this.node.get((String) key)) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key)
+        {
+            return key instanceof String && this.node.has((String) key);
+        }
+
+        @Override
+        public int size()
+        {
+            return this.node.size();
+        }
+
+        @Override
+        public Set<Map.Entry<String, Object>> entrySet()
+        {
+            return new AbstractSet<Map.Entry<String, Object>>()
+            {
+                @Override
+                public Iterator<Map.Entry<String, Object>> iterator()
+                {
+                    Iterator<Map.Entry<String, JsonNode>> fields = node.fields();
+                    return new Iterator<Map.Entry<String, Object>>()
+                    {
+                        @Override
+                        public boolean hasNext()
+                        {
+                            return fields.hasNext();
+                        }
+
+                        @Override
+                        public Map.Entry<String, Object> next()
+                        {
+                            Map.Entry<String, JsonNode> field = fields.next();
+                            return new SimpleImmutableEntry<>(field.getKey(), wrap(field.getValue()));
+                        }
+                    };
+                }
+
+                @Override
+                public int size()
+                {
+                    return node.size();
+                }
+            };
+        }
+    }
+
+    /**
+     * A view of a JSON array as a list.
+     */
+    private final class ArrayView extends AbstractList<Object>
+    {
+        private final ArrayNode node;
+
+        ArrayView(ArrayNode node)
+        {
+            this.node = node;
+        }
+
+        @Override
+        public Object get(int index)
+        {
+            if (index < 0 || index >= this.node.size()) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + this.node.size());
+            }
+            return wrap(this.node.get(index));
+        }
+
+        @Override
+        public int size()
+        {
+            return this.node.size();
+        }
+    }
+
+    @Override
+    public Object wrap(JsonNode node)
+    {
+        if (node == null || node.isNull() || node.isMissingNode()) {
+            return null;
+        } else if (node.isObject()) {
+            return new ObjectView((ObjectNode) node);
+        } else if (node.isArray()) {
+            return new ArrayView((ArrayNode) node);
+        } else if (node.isTextual()) {
+            return node.textValue();
+        } else if (node.isNumber()) {
+            return node.numberValue();
+        } else if (node.isBoolean()) {
+            return node.booleanValue();
+        } else if (node.isPojo()) {
+            return ((POJONode) node).getPojo();
+        }
+        try {
+            return node.binaryValue();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
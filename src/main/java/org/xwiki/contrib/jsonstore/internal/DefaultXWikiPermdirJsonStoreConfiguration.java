@@ -0,0 +1,208 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore.internal;
+
+import java.util.Collections;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.SystemUtils;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.configuration.ConfigurationSource;
+
+/**
+ * Default implementation of {@link XWikiPermdirJsonStoreConfiguration}, reading the {@code jsonstore.permdir.*}
+ * properties of the {@code xwiki.properties} file.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+@Component
+@Singleton
+public class DefaultXWikiPermdirJsonStoreConfiguration implements XWikiPermdirJsonStoreConfiguration
+{
+    /**
+     * Prefix of all the configuration properties of the store.
+     */
+    private static final String PREFIX = "jsonstore.permdir.";
+
+    /**
+     * The format used by default, which is also the format of the stores written by the first versions.
+     */
+    private static final String DEFAULT_FORMAT = "json";
+
+    /**
+     * By default, files of 1MB and more are mapped in memory to be read, except on Windows where a mapped file cannot
+     * be replaced until it's unmapped by the garbage collector.
+     */
+    private static final long DEFAULT_MMAP_THRESHOLD = SystemUtils.IS_OS_WINDOWS ? -1 : 1024L * 1024;
+
+    /**
+     * By default, files of more than 4KB are compressed, smaller files don't save any disk block.
+     */
+    private static final int DEFAULT_COMPRESSION_THRESHOLD = 4096;
+
+    /**
+     * The default maximum size of the cache, 32MB of data on disk.
+     */
+    private static final long DEFAULT_CACHE_MAXSIZE = 32L * 1024 * 1024;
+
+    /**
+     * The default delay between two reads of the changes made by the other processes, in milliseconds.
+     */
+    private static final long DEFAULT_MULTIPROCESS_JOURNAL_INTERVAL = 100L;
+
+    /**
+     * The default delay between two writes of the pending data, in milliseconds.
+     */
+    private static final long DEFAULT_WRITEBEHIND_INTERVAL = 1000L;
+
+    /**
+     * The default maximum number of ids waiting to be written.
+     */
+    private static final int DEFAULT_WRITEBEHIND_MAXPENDING = 10000;
+
+    /**
+     * The default delay between two removals of the expired ids, one minute.
+     */
+    private static final long DEFAULT_EXPIRATION_SWEEP_INTERVAL = 60000L;
+
+    /**
+     * The default maximum number of expired ids removed at once.
+     */
+    private static final int DEFAULT_EXPIRATION_SWEEP_MAXREMOVALS = 1000;
+
+    @Inject
+    @Named("xwikiproperties")
+    private Provider<ConfigurationSource> configuration;
+
+    @Override
+    public String getFormat()
+    {
+        return this.configuration.get().getProperty(PREFIX + "format", DEFAULT_FORMAT);
+    }
+
+    @Override
+    public long getMmapThreshold()
+    {
+        return this.configuration.get().getProperty(PREFIX + "mmap.threshold", DEFAULT_MMAP_THRESHOLD);
+    }
+
+    @Override
+    public boolean isCompressionEnabled()
+    {
+        return this.configuration.get().getProperty(PREFIX + "compression.enabled", Boolean.FALSE);
+    }
+
+    @Override
+    public int getCompressionThreshold()
+    {
+        return this.configuration.get().getProperty(PREFIX + "compression.threshold", DEFAULT_COMPRESSION_THRESHOLD);
+    }
+
+    @Override
+    public boolean isShardingEnabled()
+    {
+        return this.configuration.get().getProperty(PREFIX + "sharding.enabled", Boolean.FALSE);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<String> getIndexes()
+    {
+        List<String> indexes = this.configuration.get().getProperty(PREFIX + "indexes", List.class);
+        return indexes != null ? indexes : Collections.emptyList();
+    }
+
+    @Override
+    public boolean isCacheEnabled()
+    {
+        return this.configuration.get().getProperty(PREFIX + "cache.enabled", Boolean.FALSE);
+    }
+
+    @Override
+    public long getCacheMaxSize()
+    {
+        return this.configuration.get().getProperty(PREFIX + "cache.maxSize", DEFAULT_CACHE_MAXSIZE);
+    }
+
+    @Override
+    public boolean isKeyIndexEnabled()
+    {
+        return this.configuration.get().getProperty(PREFIX + "keyIndex.enabled", Boolean.FALSE);
+    }
+
+    @Override
+    public boolean isMultiProcessEnabled()
+    {
+        return this.configuration.get().getProperty(PREFIX + "multiProcess.enabled", Boolean.FALSE);
+    }
+
+    @Override
+    public long getMultiProcessJournalInterval()
+    {
+        return this.configuration.get().getProperty(PREFIX + "multiProcess.journal.interval",
+            DEFAULT_MULTIPROCESS_JOURNAL_INTERVAL);
+    }
+
+    @Override
+    public int getBatchThreads()
+    {
+        return this.configuration.get().getProperty(PREFIX + "batch.threads",
+            Runtime.getRuntime().availableProcessors());
+    }
+
+    @Override
+    public boolean isWriteBehindEnabled()
+    {
+        return this.configuration.get().getProperty(PREFIX + "writeBehind.enabled", Boolean.FALSE);
+    }
+
+    @Override
+    public long getWriteBehindInterval()
+    {
+        return this.configuration.get().getProperty(PREFIX + "writeBehind.interval", DEFAULT_WRITEBEHIND_INTERVAL);
+    }
+
+    @Override
+    public int getWriteBehindMaxPending()
+    {
+        return this.configuration.get().getProperty(PREFIX + "writeBehind.maxPending",
+            DEFAULT_WRITEBEHIND_MAXPENDING);
+    }
+
+    @Override
+    public long getExpirationSweepInterval()
+    {
+        return this.configuration.get().getProperty(PREFIX + "expiration.sweep.interval",
+            DEFAULT_EXPIRATION_SWEEP_INTERVAL);
+    }
+
+    @Override
+    public int getExpirationSweepMaxRemovals()
+    {
+        return this.configuration.get().getProperty(PREFIX + "expiration.sweep.maxRemovals",
+            DEFAULT_EXPIRATION_SWEEP_MAXREMOVALS);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore.internal;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Applies a JSON merge patch (RFC 7386) to a document while copying it from a streaming parser to a streaming
+ * generator, so that the patched document is never loaded in memory: only the patch is.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public final class JsonMergePatcher
+{
+    private JsonMergePatcher()
+    {
+        // utility class
+    }
+
+    /**
+     * Writes the result of the patch of the current value of the parser.
+     *
+     * @param source the parser positioned on the first token of the value to patch, or null if there is no value to
+     *            patch. The parser is positioned on the last token of the value when this method returns.
+     * @param target the generator in which to write the patched value, able to write objects
+     * @param patch the patch, parsed as maps, lists and values
+     * @throws IOException if the parsing or the writing fails
+     */
+    public static void patch(JsonParser source, JsonGenerator target, Object patch) throws IOException
+    {
+        if (!(patch instanceof Map)) {
+            // anything other than an object replaces the value
+            if (source != null) {
+                source.skipChildren();
+            }
+            target.writeObject(patch);
+            return;
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, Object> members = (Map<String, Object>) patch;
+        Set<String> patched = new HashSet<>();
+        target.writeStartObject();
+        if (source != null && source.getCurrentToken() == JsonToken.START_OBJECT) {
+            while (source.nextToken() == JsonToken.FIELD_NAME) {
+                String name = source.getCurrentName();
+                source.nextToken();
+                if (!members.containsKey(name)) {
+                    target.writeFieldName(name);
+                    target.copyCurrentStructure(source);
+                } else if (patched.add(name) && members.get(name) != null) {
+                    target.writeFieldName(name);
+                    patch(source, target, members.get(name));
+                } else {
+                    // removed by a null in the patch (or duplicate member already patched)
+                    source.skipChildren();
+                }
+            }
+        } else if (source != null) {
+            // an object patch replaces any other value with the patched empty object
+            source.skipChildren();
+        }
+        // the members of the patch not in the value are added, without their null members
+        for (Map.Entry<String, Object> member : members.entrySet()) {
+            if (!patched.contains(member.getKey()) && member.getValue() != null) {
+                target.writeFieldName(member.getKey());
+                patch(null, target, member.getValue());
+            }
+        }
+        target.writeEndObject();
+    }
+}
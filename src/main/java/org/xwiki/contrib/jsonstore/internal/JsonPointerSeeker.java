@@ -0,0 +1,99 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore.internal;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonPointer;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Moves a streaming parser to the value pointed by a JSON Pointer (RFC 6901), skipping all the other values without
+ * parsing them, so that only the pointed value has to be read from the parser.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public final class JsonPointerSeeker
+{
+    private JsonPointerSeeker()
+    {
+        // utility class
+    }
+
+    /**
+     * @param parser a parser positioned before the value to seek in (e.g. a new parser)
+     * @param pointer the pointer of the value to find, relative to the next value of the parser
+     * @return true if the parser is positioned on the first token of the pointed value, false if there is no such value
+     * @throws IOException if the parsing fails
+     */
+    public static boolean seek(JsonParser parser, JsonPointer pointer) throws IOException
+    {
+        JsonToken token = parser.nextToken();
+        JsonPointer current = pointer;
+        while (token != null && !current.matches()) {
+            boolean found;
+            if (token == JsonToken.START_OBJECT) {
+                found = seekProperty(parser, current.getMatchingProperty());
+            } else if (token == JsonToken.START_ARRAY) {
+                found = seekIndex(parser, current.getMatchingIndex());
+            } else {
+                // a value cannot contain anything
+                found = false;
+            }
+            if (!found) {
+                return false;
+            }
+            current = current.tail();
+            token = parser.getCurrentToken();
+        }
+        return token != null;
+    }
+
+    private static boolean seekProperty(JsonParser parser, String property) throws IOException
+    {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            parser.nextToken();
+            if (name.equals(property)) {
+                return true;
+            }
+            parser.skipChildren();
+        }
+        return false;
+    }
+
+    private static boolean seekIndex(JsonParser parser, int index) throws IOException
+    {
+        if (index < 0) {
+            return false;
+        }
+        JsonToken token = parser.nextToken();
+        for (int i = 0; token != null && token != JsonToken.END_ARRAY; i++) {
+            if (i == index) {
+                return true;
+            }
+            parser.skipChildren();
+            token = parser.nextToken();
+        }
+        return false;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore.internal;
+
+import java.util.Map;
+
+import org.xwiki.component.annotation.Role;
+
+/**
+ * In memory cache of the parsed data of a json store, bounded by the size of the cached data on disk. The hint of the
+ * component is the hint of the store it caches. The cached values are never handed out: callers receive copies, so that
+ * modifying a fetched object does not modify the cache.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+@Role
+public interface JsonStoreCache
+{
+    /**
+     * @return whether the cache is enabled. When it's not, nothing is cached.
+     */
+    boolean isEnabled();
+
+    /**
+     * @param key the key of the data, as computed by the store
+     * @return a copy of the cached data, or null if nothing is cached for this key
+     */
+    Object get(String key);
+
+    /**
+     * Same as {@link #get(String)}, but only returns the data cached with the passed stamp, e.g. when the data is
+     * cached with a stamp of the file it was read from, to detect that the file was modified since.
+     *
+     * @param key the key of the data, as computed by the store
+     * @param stamp the expected stamp of the cached data
+     * @return a copy of the cached data, or null if nothing is cached for this key with this stamp
+     */
+    Object get(String key, Object stamp);
+
+    /**
+     * To be called before reading the data to cache from the store, in order to detect invalidations happening during
+     * the read.
+     *
+     * @param key the key of the data, as computed by the store
+     * @return the current generation of the key, to pass to {@link #put(String, Object, long, long)}
+     */
+    long getGeneration(String key);
+
+    /**
+     * Caches a copy of the passed data, unless the key was invalidated since the passed generation was retrieved.
+     *
+     * @param key the key of the data, as computed by the store
+     * @param value the parsed data
+     * @param weight the size of the data, in bytes
+     * @param generation the generation of the key before the data was read from the store
+     */
+    void put(String key, Object value, long weight, long generation);
+
+    /**
+     * Same as {@link #put(String, Object, long, long)}, with a stamp to pass to {@link #get(String, Object)}.
+     *
+     * @param key the key of the data, as computed by the store
+     * @param value the parsed data
+     * @param weight the size of the data, in bytes
+     * @param generation the generation of the key before the data was read from the store
+     * @param stamp the stamp of the data, compared with {@link Object#equals(Object)}
+     */
+    void put(String key, Object value, long weight, long generation, Object stamp);
+
+    /**
+     * Removes the data cached for the passed key, to be called after each write of the key in the store.
+     *
+     * @param key the key of the data, as computed by the store
+     */
+    void invalidate(String key);
+
+    /**
+     * Removes all the cached data.
+     */
+    void invalidateAll();
+
+    /**
+     * @return the counters of the cache: {@code hits}, {@code misses}, {@code evictions}, {@code entries},
+     *         {@code size} (the current size in bytes) and {@code maxSize}
+     */
+    Map<String, Long> getStatistics();
+}
@@ -0,0 +1,162 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * GZIP compression of the stored files. Compressed files are recognized by the GZIP header, which cannot start a
+ * document in any of the supported formats (JSON, Smile or CBOR), so compressed and uncompressed files can be stored
+ * side by side and keep the extension of their format.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public final class JsonStoreCompression
+{
+    private static final int GZIP_MAGIC_1 = 0x1f;
+
+    private static final int GZIP_MAGIC_2 = 0x8b;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private JsonStoreCompression()
+    {
+        // utility class
+    }
+
+    /**
+     * @param output the stream in which to write the content of a file
+     * @param threshold the size from which the content is compressed, in bytes
+     * @return a stream writing the content in the passed stream, compressed if it's bigger than the threshold. Only the
+     *         first {@code threshold} bytes are buffered until the size of the content is known.
+     */
+    public static OutputStream compress(OutputStream output, int threshold)
+    {
+        return new ThresholdCompressingOutputStream(output, threshold);
+    }
+
+    /**
+     * @param input the content of a file, compressed or not
+     * @return the uncompressed content of the file
+     * @throws IOException if the stream cannot be read
+     */
+    public static InputStream decompress(InputStream input) throws IOException
+    {
+        PushbackInputStream pushback = new PushbackInputStream(input, 2);
+        byte[] header = new byte[2];
+        int length = 0;
+        while (length < header.length) {
+            int read = pushback.read(header, length, header.length - length);
+            if (read < 0) {
+                break;
+            }
+            length += read;
+        }
+        pushback.unread(header, 0, length);
+        if (length == header.length && (header[0] & 0xff) == GZIP_MAGIC_1 && (header[1] & 0xff) == GZIP_MAGIC_2) {
+            return new GZIPInputStream(pushback, BUFFER_SIZE);
+        }
+        return pushback;
+    }
+
+    /**
+     * @param content the content of a file
+     * @return true if the content is compressed
+     */
+    public static boolean isCompressed(ByteBuffer content)
+    {
+        int position = content.position();
+        return content.remaining() >= 2 && (content.get(position) & 0xff) == GZIP_MAGIC_1
+            && (content.get(position + 1) & 0xff) == GZIP_MAGIC_2;
+    }
+
+    /**
+     * Buffers the content until it reaches the threshold, and then compresses it.
+     */
+    private static final class ThresholdCompressingOutputStream extends OutputStream
+    {
+        private final OutputStream target;
+
+        private final int threshold;
+
+        /**
+         * The content written while below the threshold, null once the content is compressed.
+         */
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        private OutputStream compressed;
+
+        private boolean closed;
+
+        ThresholdCompressingOutputStream(OutputStream target, int threshold)
+        {
+            this.target = target;
+            this.threshold = threshold;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            if (this.compressed == null && this.buffer.size() + len > this.threshold) {
+                this.compressed = new GZIPOutputStream(this.target, BUFFER_SIZE);
+                this.buffer.writeTo(this.compressed);
+                this.buffer = null;
+            }
+            if (this.compressed != null) {
+                this.compressed.write(b, off, len);
+            } else {
+                this.buffer.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            if (this.compressed != null) {
+                this.compressed.close();
+            } else {
+                // too small to be worth compressing
+                try {
+                    this.buffer.writeTo(this.target);
+                } finally {
+                    this.target.close();
+                }
+            }
+        }
+    }
+}
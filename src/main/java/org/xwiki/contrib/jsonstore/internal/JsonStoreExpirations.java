@@ -0,0 +1,474 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore.internal;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+
+/**
+ * The expiration times of the ids written with a time to live, kept in memory so that the reads can check whether an
+ * id is expired without accessing the stored data, and recorded in an append-only file so that they survive a
+ * restart. <br>
+ * The lines of the file are {@code <expiration> <key>}, the expiration being in milliseconds since the epoch, or
+ * {@link #NONE} when the id doesn't expire anymore (it was written again without time to live, or removed). The file is
+ * compacted by the sweeper once it's more than twice as big as after the previous compaction. When the file is shared
+ * by several processes, the appends and the compactions hold a lock on a file shared by the processes, and the
+ * processes exchange the changes of the expiration times through another channel (see
+ * {@link #update(String, long)}). <br>
+ * The sweeper removes the expired ids at a fixed interval, the oldest expired first and at most a given number at each
+ * pass, so that the removal of many ids expired at once is spread over several passes instead of competing with the
+ * reads and writes of the store.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class JsonStoreExpirations implements Closeable
+{
+    /**
+     * The expiration of the ids which don't expire.
+     */
+    public static final long NONE = 0L;
+
+    /**
+     * The size under which the file is not compacted, in bytes.
+     */
+    private static final long COMPACTION_MIN_SIZE = 1024L * 1024;
+
+    private static final String SEPARATOR = " ";
+
+    private final Path file;
+
+    private final Path lockFile;
+
+    private final Logger logger;
+
+    /**
+     * The expiration times, by key.
+     */
+    private final Map<String, Long> expirations = new ConcurrentHashMap<>();
+
+    /**
+     * The expiration times sorted by time, for the sweeper.
+     */
+    private final NavigableSet<Expiration> queue = new ConcurrentSkipListSet<>();
+
+    private FileChannel lockChannel;
+
+    private FileChannel appendChannel;
+
+    private Object appendKey;
+
+    /**
+     * The size of the file after its last compaction.
+     */
+    private long compactedSize;
+
+    private ScheduledExecutorService sweeper;
+
+    /**
+     * Removes the data of an expired id.
+     */
+    @FunctionalInterface
+    public interface Remover
+    {
+        /**
+         * Removes the data of an id if it's still expired, and then its expiration (see {@link #set(String, long)}).
+         *
+         * @param key the key of the id
+         * @throws Exception if the data cannot be removed, in which case it's removed again by the next pass
+         */
+        void expire(String key) throws Exception;
+    }
+
+    /**
+     * An expiration time of a key, sorted by time and then by key.
+     */
+    private static final class Expiration implements Comparable<Expiration>
+    {
+        private final long time;
+
+        private final String key;
+
+        Expiration(long time, String key)
+        {
+            this.time = time;
+            this.key = key;
+        }
+
+        @Override
+        public int compareTo(Expiration other)
+        {
+            int result = Long.compare(this.time, other.time);
+            return result != 0 ? result : this.key.compareTo(other.key);
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            return obj instanceof Expiration && compareTo((Expiration) obj) == 0;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * Long.hashCode(this.time) + this.key.hashCode();
+        }
+    }
+
+    /**
+     * @param file the file recording the expiration times
+     * @param lockFile the file locked while writing the file, if it's shared with other processes, or null
+     * @param logger the logger of the store
+     */
+    public JsonStoreExpirations(Path file, Path lockFile, Logger logger)
+    {
+        this.file = file;
+        this.lockFile = lockFile;
+        this.logger = logger;
+    }
+
+    /**
+     * Loads the expiration times recorded in the file. The file is only created once an expiration is set.
+     *
+     * @throws IOException if the file cannot be read or opened
+     */
+    public synchronized void open() throws IOException
+    {
+        Files.createDirectories(this.file.getParent());
+        if (this.lockFile != null) {
+            Files.createDirectories(this.lockFile.getParent());
+            this.lockChannel = FileChannel.open(this.lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        }
+        FileLock lock = lock();
+        try {
+            load();
+        } finally {
+            release(lock);
+        }
+    }
+
+    /**
+     * Loads again the expiration times recorded in the file, e.g. when some changes made by the other processes were
+     * missed.
+     *
+     * @throws IOException if the file cannot be read
+     */
+    public synchronized void reload() throws IOException
+    {
+        FileLock lock = lock();
+        try {
+            load();
+        } finally {
+            release(lock);
+        }
+    }
+
+    /**
+     * Starts removing the expired ids in the background.
+     *
+     * @param interval the delay between two passes, in milliseconds
+     * @param maxRemovals the maximum number of ids removed by a pass
+     * @param remover removes the data of the expired ids
+     */
+    public void start(long interval, int maxRemovals, Remover remover)
+    {
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(
+            new BasicThreadFactory.Builder().namingPattern("XWiki JSON store expiration").daemon(true).build());
+        this.sweeper.scheduleWithFixedDelay(() -> sweep(maxRemovals, remover), interval, interval,
+            TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param key the key of an id
+     * @return true if the id was written with a time to live which has elapsed
+     */
+    public boolean isExpired(String key)
+    {
+        Long expiration = this.expirations.get(key);
+        return expiration != null && expiration <= System.currentTimeMillis();
+    }
+
+    /**
+     * @param key the key of an id
+     * @return the expiration time of the id, in milliseconds since the epoch, or {@link #NONE} if it doesn't expire
+     */
+    public long get(String key)
+    {
+        return this.expirations.getOrDefault(key, NONE);
+    }
+
+    /**
+     * Sets the expiration time of an id and records it in the file if it changed, to be called while holding the lock
+     * of the id. When the file is shared, the changes of the id made by the other processes must have been received
+     * first (see {@link #update(String, long)}), so that the last recorded expiration is the one of the last write.
+     *
+     * @param key the key of the id
+     * @param expiration the expiration time of the id, in milliseconds since the epoch, or {@link #NONE} if it doesn't
+     *            expire
+     * @return true if the expiration time of the id changed
+     * @throws IOException if the expiration cannot be recorded
+     */
+    public boolean set(String key, long expiration) throws IOException
+    {
+        boolean changed = update(key, expiration);
+        // most ids never expire, nothing is recorded when they're written or removed
+        if (changed) {
+            append(String.join(SEPARATOR, String.valueOf(expiration), key).concat("\n"));
+        }
+        return changed;
+    }
+
+    /**
+     * Sets the expiration time of an id in memory only, e.g. when it was set and recorded by another process.
+     *
+     * @param key the key of the id
+     * @param expiration the expiration time of the id, in milliseconds since the epoch, or {@link #NONE}
+     * @return true if the expiration time of the id changed
+     */
+    public boolean update(String key, long expiration)
+    {
+        Long previous = expiration != NONE ? this.expirations.put(key, expiration) : this.expirations.remove(key);
+        if (previous != null) {
+            if (previous == expiration) {
+                return false;
+            }
+            this.queue.remove(new Expiration(previous, key));
+        }
+        if (expiration != NONE) {
+            this.queue.add(new Expiration(expiration, key));
+        }
+        return previous != null || expiration != NONE;
+    }
+
+    /**
+     * @param limit the maximum number of returned keys
+     * @return the keys of the expired ids, the oldest first
+     */
+    public List<String> getExpired(int limit)
+    {
+        long now = System.currentTimeMillis();
+        List<String> keys = new ArrayList<>();
+        for (Expiration expiration : this.queue) {
+            if (expiration.time > now || keys.size() >= limit) {
+                break;
+            }
+            keys.add(expiration.key);
+        }
+        return keys;
+    }
+
+    /**
+     * Rewrites the file with only the current expiration times, if it grew enough since the last compaction.
+     *
+     * @throws IOException if the file cannot be compacted
+     */
+    public synchronized void compact() throws IOException
+    {
+        FileLock lock = lock();
+        try {
+            long size = Files.exists(this.file) ? Files.size(this.file) : 0;
+            if (size <= Math.max(COMPACTION_MIN_SIZE, this.compactedSize * 2)) {
+                return;
+            }
+            // the file is read rather than the memory, which might miss some changes made by the other processes
+            Map<String, Long> current = read();
+            Path temporaryFile = this.file.resolveSibling(this.file.getFileName() + ".tmp");
+            try (BufferedWriter writer = Files.newBufferedWriter(temporaryFile, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, Long> entry : current.entrySet()) {
+                    writer.write(String.join(SEPARATOR, String.valueOf(entry.getValue()), entry.getKey()));
+                    writer.write('\n');
+                }
+            }
+            Files.move(temporaryFile, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (this.appendChannel != null) {
+                this.appendChannel.close();
+            }
+            openAppendChannel();
+            this.compactedSize = Files.size(this.file);
+            this.logger.debug("Compacted the json store expirations [{}] from [{}] to [{}] bytes", this.file, size,
+                this.compactedSize);
+        } finally {
+            release(lock);
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (this.sweeper != null) {
+            this.sweeper.shutdown();
+            try {
+                this.sweeper.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            if (this.appendChannel != null) {
+                this.appendChannel.close();
+            }
+            if (this.lockChannel != null) {
+                this.lockChannel.close();
+            }
+        }
+    }
+
+    private void sweep(int maxRemovals, Remover remover)
+    {
+        List<String> keys = getExpired(maxRemovals);
+        for (String key : keys) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            try {
+                remover.expire(key);
+            } catch (Exception e) {
+                this.logger.warn("Failed to remove the expired json store id [{}]", key, e);
+            }
+        }
+        if (!keys.isEmpty()) {
+            this.logger.debug("Removed [{}] expired json store ids", keys.size());
+        }
+        try {
+            compact();
+        } catch (Exception e) {
+            // the next pass will try again
+            this.logger.warn("Failed to compact the json store expirations [{}]", this.file, e);
+        }
+    }
+
+    private synchronized void append(String line) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+        FileLock lock = lock();
+        try {
+            if (this.appendChannel == null) {
+                openAppendChannel();
+            } else if (this.lockFile != null && !Objects.equals(this.appendKey, getFileKey())) {
+                // another process compacted the file
+                this.appendChannel.close();
+                openAppendChannel();
+            }
+            while (buffer.hasRemaining()) {
+                this.appendChannel.write(buffer);
+            }
+        } finally {
+            release(lock);
+        }
+    }
+
+    /**
+     * @return the lock of the file shared with the other processes, or null if the file is not shared
+     */
+    private FileLock lock() throws IOException
+    {
+        return this.lockChannel != null ? this.lockChannel.lock() : null;
+    }
+
+    /**
+     * @param lock the lock returned by {@link #lock()}, released if not null
+     */
+    private void release(FileLock lock) throws IOException
+    {
+        if (lock != null) {
+            lock.release();
+        }
+    }
+
+    private void load() throws IOException
+    {
+        this.expirations.clear();
+        this.queue.clear();
+        for (Map.Entry<String, Long> entry : read().entrySet()) {
+            update(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * @return the expiration times recorded in the file, without the keys which don't expire anymore
+     */
+    private Map<String, Long> read() throws IOException
+    {
+        Map<String, Long> current = new LinkedHashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(this.file, StandardCharsets.UTF_8)) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                String[] fields = line.split(SEPARATOR, 2);
+                try {
+                    long expiration = Long.parseLong(fields[0]);
+                    if (fields.length < 2) {
+                        continue;
+                    } else if (expiration == NONE) {
+                        current.remove(fields[1]);
+                    } else {
+                        current.put(fields[1], expiration);
+                    }
+                } catch (NumberFormatException e) {
+                    // incomplete line written when the process was stopped
+                    this.logger.debug("Ignoring the invalid line [{}] of [{}]", line, this.file);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // nothing expires yet
+        }
+        return current;
+    }
+
+    private void openAppendChannel() throws IOException
+    {
+        this.appendChannel =
+            FileChannel.open(this.file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.appendKey = getFileKey();
+    }
+
+    private Object getFileKey() throws IOException
+    {
+        try {
+            return Files.readAttributes(this.file, BasicFileAttributes.class).fileKey();
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+}
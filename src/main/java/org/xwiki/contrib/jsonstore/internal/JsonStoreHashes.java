@@ -0,0 +1,102 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore.internal;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The hashes used by the json stores to name their files and to version their data, written as lower case
+ * hexadecimal.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public final class JsonStoreHashes
+{
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final int HEX_MASK = 0xf;
+
+    private static final int HEX_DIGIT_BITS = 4;
+
+    private JsonStoreHashes()
+    {
+        // utility class
+    }
+
+    /**
+     * @param algorithm the name of a digest algorithm supported by all the JVMs, such as {@code SHA-1} or
+     *            {@code SHA-256}
+     * @return a new digest
+     */
+    public static MessageDigest newDigest(String algorithm)
+    {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            // all the JVMs support the standard algorithms
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param algorithm the name of a digest algorithm supported by all the JVMs
+     * @param value a string
+     * @return the hash of the UTF-8 bytes of the string, in hexadecimal
+     */
+    public static String hash(String algorithm, String value)
+    {
+        return toHex(newDigest(algorithm).digest(value.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * @param bytes some bytes, e.g. a hash
+     * @return the bytes in hexadecimal, two lower case digits per byte
+     */
+    public static String toHex(byte[] bytes)
+    {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = toHexDigit(bytes[i] >> HEX_DIGIT_BITS);
+            hex[i * 2 + 1] = toHexDigit(bytes[i]);
+        }
+        return new String(hex);
+    }
+
+    /**
+     * @param value a number
+     * @return the lower case hexadecimal digit of the 4 lowest bits of the number
+     */
+    public static char toHexDigit(int value)
+    {
+        return HEX_DIGITS[value & HEX_MASK];
+    }
+
+    /**
+     * @param character a character
+     * @return true if the character is a lower case hexadecimal digit
+     */
+    public static boolean isHexDigit(char character)
+    {
+        return (character >= '0' && character <= '9') || (character >= 'a' && character <= 'f');
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock free histogram of latencies, counting the latencies in buckets of powers of two nanoseconds. Recording a
+ * latency costs a few additions, the statistics are only computed when requested.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class JsonStoreLatencyHistogram
+{
+    /**
+     * The latencies of the bucket i are in [2^(i-1), 2^i[ nanoseconds, the bucket 0 counting the latencies of 0
+     * nanoseconds.
+     */
+    private final LongAdder[] buckets = new LongAdder[Long.SIZE];
+
+    private final LongAdder total = new LongAdder();
+
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Creates an empty histogram.
+     */
+    public JsonStoreLatencyHistogram()
+    {
+        for (int i = 0; i < this.buckets.length; i++) {
+            this.buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param nanos the latency to record, in nanoseconds
+     */
+    public void record(long nanos)
+    {
+        long latency = Math.max(nanos, 0);
+        this.buckets[Long.SIZE - Long.numberOfLeadingZeros(latency)].increment();
+        this.total.add(latency);
+        this.max.accumulate(latency);
+    }
+
+    /**
+     * Forgets all the recorded latencies.
+     */
+    public void reset()
+    {
+        for (LongAdder bucket : this.buckets) {
+            bucket.reset();
+        }
+        this.total.reset();
+        this.max.reset();
+    }
+
+    /**
+     * @return the statistics of the recorded latencies
+     */
+    public JsonStoreLatencyStatistics getStatistics()
+    {
+        long[] counts = new long[this.buckets.length];
+        long count = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = this.buckets[i].sum();
+            count += counts[i];
+        }
+        return new JsonStoreLatencyStatistics(count, count > 0 ? toMicros(this.total.sum() / count) : 0,
+            toMicros(this.max.get()), toMicros(getPercentile(counts, count, 0.5)),
+            toMicros(getPercentile(counts, count, 0.9)), toMicros(getPercentile(counts, count, 0.99)),
+            toMicros(getPercentile(counts, count, 0.999)), counts);
+    }
+
+    /**
+     * @return the upper bound of the bucket containing the percentile, in nanoseconds
+     */
+    private static long getPercentile(long[] counts, long count, double percentile)
+    {
+        long rank = (long) Math.ceil(count * percentile);
+        long seen = 0;
+        for (int i = 0; i < counts.length && rank > 0; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return i == 0 ? 0 : 1L << Math.min(i, Long.SIZE - 2);
+            }
+        }
+        return 0;
+    }
+
+    private static long toMicros(long nanos)
+    {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
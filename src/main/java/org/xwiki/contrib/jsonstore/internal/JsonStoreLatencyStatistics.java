@@ -0,0 +1,137 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore.internal;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * The statistics of the latencies recorded by a {@link JsonStoreLatencyHistogram}, exposed through JMX. The
+ * percentiles are approximated by the upper bound of their bucket, so they are up to twice the real value.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class JsonStoreLatencyStatistics
+{
+    private final long count;
+
+    private final long mean;
+
+    private final long max;
+
+    private final long median;
+
+    private final long percentile90;
+
+    private final long percentile99;
+
+    private final long percentile999;
+
+    private final long[] buckets;
+
+    /**
+     * @param count the number of recorded latencies
+     * @param mean the mean latency, in microseconds
+     * @param max the maximum latency, in microseconds
+     * @param median the median latency, in microseconds
+     * @param percentile90 the 90th percentile of the latencies, in microseconds
+     * @param percentile99 the 99th percentile of the latencies, in microseconds
+     * @param percentile999 the 99.9th percentile of the latencies, in microseconds
+     * @param buckets the number of latencies in [2^(i-1), 2^i[ nanoseconds, for each i
+     */
+    @ConstructorProperties({ "count", "mean", "max", "median", "percentile90", "percentile99", "percentile999",
+        "buckets" })
+    public JsonStoreLatencyStatistics(long count, long mean, long max, long median, long percentile90,
+        long percentile99, long percentile999, long[] buckets)
+    {
+        this.count = count;
+        this.mean = mean;
+        this.max = max;
+        this.median = median;
+        this.percentile90 = percentile90;
+        this.percentile99 = percentile99;
+        this.percentile999 = percentile999;
+        this.buckets = buckets;
+    }
+
+    /**
+     * @return the number of recorded latencies
+     */
+    public long getCount()
+    {
+        return this.count;
+    }
+
+    /**
+     * @return the mean latency, in microseconds
+     */
+    public long getMean()
+    {
+        return this.mean;
+    }
+
+    /**
+     * @return the maximum latency, in microseconds
+     */
+    public long getMax()
+    {
+        return this.max;
+    }
+
+    /**
+     * @return the median latency, in microseconds
+     */
+    public long getMedian()
+    {
+        return this.median;
+    }
+
+    /**
+     * @return the 90th percentile of the latencies, in microseconds
+     */
+    public long getPercentile90()
+    {
+        return this.percentile90;
+    }
+
+    /**
+     * @return the 99th percentile of the latencies, in microseconds
+     */
+    public long getPercentile99()
+    {
+        return this.percentile99;
+    }
+
+    /**
+     * @return the 99.9th percentile of the latencies, in microseconds
+     */
+    public long getPercentile999()
+    {
+        return this.percentile999;
+    }
+
+    /**
+     * @return the number of latencies in [2^(i-1), 2^i[ nanoseconds, for each i
+     */
+    public long[] getBuckets()
+    {
+        return this.buckets.clone();
+    }
+}
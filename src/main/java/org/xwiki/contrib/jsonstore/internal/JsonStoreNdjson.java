@@ -0,0 +1,308 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore.internal;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.slf4j.Logger;
+import org.xwiki.contrib.jsonstore.JsonStore;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+/**
+ * Export and import of the data of a json store as NDJSON (one JSON object per line), with a line
+ * {@code {"id":"<id>","data":<stored JSON>}} per id. <br>
+ * The export streams the raw JSON written by {@link JsonStore#writeRawJson(String, OutputStream)}, without parsing
+ * it (only the line breaks between the tokens are replaced by spaces, the line breaks inside the strings being always
+ * escaped), so that the compressed data is never inflated in memory. The import reads the lines with a single
+ * streaming parser and writes them in batches with {@link JsonStore#persistAllAsJson(Map, boolean)}, which the stores
+ * may run in parallel. The data of a line is kept as a buffer of tokens, written as is in the format of the store.
+ * Both use a memory independent of the number of ids, and log their throughput at a fixed interval.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public final class JsonStoreNdjson
+{
+    /**
+     * The maximum number of ids written at once by the import.
+     */
+    public static final int BATCH_SIZE = 1000;
+
+    /**
+     * The maximum size of the lines of the ids written at once by the import, in bytes.
+     */
+    public static final long BATCH_MAX_SIZE = 64L * 1024 * 1024;
+
+    private static final String ID = "id";
+
+    private static final String DATA = "data";
+
+    private static final byte[] LINE_START = "{\"id\":".getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] DATA_START = ",\"data\":".getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] LINE_END = "}\n".getBytes(StandardCharsets.UTF_8);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final long PROGRESS_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+
+    private static final ObjectMapper MAPPER =
+        new ObjectMapper().disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+
+    private JsonStoreNdjson()
+    {
+        // utility class
+    }
+
+    /**
+     * Writes the ids starting with a prefix and their data in a stream, in alphabetical order of the ids.
+     *
+     * @param store the store to export
+     * @param output the stream in which to write the NDJSON lines, which is flushed but not closed
+     * @param prefix the prefix of the ids to export, the empty string or null to export all the ids
+     * @param logger the logger of the store, used to report the progress of the export
+     * @return the number of exported ids
+     * @throws Exception if the store cannot be read or the stream cannot be written
+     */
+    public static long exportTo(JsonStore store, OutputStream output, String prefix, Logger logger) throws Exception
+    {
+        CountingOutputStream counting = new CountingOutputStream(new BufferedOutputStream(output, BUFFER_SIZE));
+        Progress progress = new Progress("Exported", logger);
+        LineOutputStream line = new LineOutputStream(counting);
+        String cursor = null;
+        List<String> ids;
+        do {
+            ids = store.list(prefix, cursor, JsonStore.PAGE_SIZE);
+            for (String id : ids) {
+                // the start of the line is written with the first bytes of the data, so that nothing is written for
+                // the ids removed since they were listed
+                line.start(id);
+                if (store.writeRawJson(id, line)) {
+                    line.end();
+                    progress.add(counting.getByteCount());
+                }
+                cursor = id;
+            }
+        } while (ids.size() == JsonStore.PAGE_SIZE);
+        counting.flush();
+        progress.done(counting.getByteCount());
+        return progress.count;
+    }
+
+    /**
+     * Writes in a store the ids and data read from a stream written by
+     * {@link #exportTo(JsonStore, OutputStream, String, Logger)}.
+     *
+     * @param store the store in which to import the data
+     * @param input the NDJSON lines to import, which is not closed
+     * @param forceOverwrite whether the data already stored under the imported ids should be overwritten or not
+     * @param logger the logger of the store, used to report the progress of the import
+     * @return the number of written ids
+     * @throws Exception if a line is not valid or the data cannot be written. The lines before the failing batch were
+     *             imported.
+     */
+    public static long importFrom(JsonStore store, InputStream input, boolean forceOverwrite, Logger logger)
+        throws Exception
+    {
+        CountingInputStream counting = new CountingInputStream(input);
+        Progress progress = new Progress("Imported", logger);
+        long written = 0;
+        try (JsonParser parser = MAPPER.getFactory().createParser(counting)) {
+            Map<String, Object> batch = new LinkedHashMap<>();
+            long batchStart = 0;
+            while (parser.nextToken() != null) {
+                readLine(parser, batch);
+                progress.add(counting.getByteCount());
+                if (batch.size() >= BATCH_SIZE || counting.getByteCount() - batchStart >= BATCH_MAX_SIZE) {
+                    written += write(store, batch, forceOverwrite);
+                    batch = new LinkedHashMap<>();
+                    batchStart = counting.getByteCount();
+                }
+            }
+            written += write(store, batch, forceOverwrite);
+        }
+        progress.done(counting.getByteCount());
+        return written;
+    }
+
+    private static void readLine(JsonParser parser, Map<String, Object> batch) throws IOException
+    {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            throw new JsonParseException(parser, "Expected an object with the id and the data of a json store entry");
+        }
+        String id = null;
+        TokenBuffer data = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            if (ID.equals(field)) {
+                id = parser.getValueAsString();
+            } else if (DATA.equals(field)) {
+                data = new TokenBuffer(parser);
+                data.copyCurrentStructure(parser);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        if (id == null || data == null) {
+            throw new JsonParseException(parser, "Missing the id or the data of a json store entry");
+        }
+        batch.put(id, data);
+    }
+
+    private static long write(JsonStore store, Map<String, Object> batch, boolean forceOverwrite) throws Exception
+    {
+        long written = 0;
+        for (boolean idWritten : store.persistAllAsJson(batch, forceOverwrite).values()) {
+            if (idWritten) {
+                written++;
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Writes the lines of the export, replacing the line breaks of the raw JSON by spaces. In valid JSON, a line break
+     * can only be a whitespace between two tokens, and the bytes of the line breaks are never part of a multi-byte
+     * UTF-8 character.
+     */
+    private static final class LineOutputStream extends OutputStream
+    {
+        private final OutputStream output;
+
+        private final byte[] chunk = new byte[BUFFER_SIZE];
+
+        /**
+         * The id of the line, written before the first bytes of its data, null once written.
+         */
+        private String id;
+
+        LineOutputStream(OutputStream output)
+        {
+            this.output = output;
+        }
+
+        void start(String lineId)
+        {
+            this.id = lineId;
+        }
+
+        void end() throws IOException
+        {
+            writeStart();
+            this.output.write(LINE_END);
+        }
+
+        private void writeStart() throws IOException
+        {
+            if (this.id != null) {
+                this.output.write(LINE_START);
+                this.output.write(MAPPER.writeValueAsBytes(this.id));
+                this.output.write(DATA_START);
+                this.id = null;
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            writeStart();
+            this.output.write(b == '\n' || b == '\r' ? ' ' : b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            writeStart();
+            for (int done = 0; done < len;) {
+                int length = Math.min(this.chunk.length, len - done);
+                System.arraycopy(b, off + done, this.chunk, 0, length);
+                for (int i = 0; i < length; i++) {
+                    if (this.chunk[i] == '\n' || this.chunk[i] == '\r') {
+                        this.chunk[i] = ' ';
+                    }
+                }
+                this.output.write(this.chunk, 0, length);
+                done += length;
+            }
+        }
+    }
+
+    /**
+     * Counts the exported or imported ids and logs the throughput at a fixed interval.
+     */
+    private static final class Progress
+    {
+        private final String action;
+
+        private final Logger logger;
+
+        private final long start = System.nanoTime();
+
+        private long lastLog = this.start;
+
+        private long count;
+
+        Progress(String action, Logger logger)
+        {
+            this.action = action;
+            this.logger = logger;
+        }
+
+        void add(long bytes)
+        {
+            this.count++;
+            long now = System.nanoTime();
+            if (now - this.lastLog >= PROGRESS_INTERVAL) {
+                this.lastLog = now;
+                log(bytes, now);
+            }
+        }
+
+        void done(long bytes)
+        {
+            log(bytes, System.nanoTime());
+        }
+
+        private void log(long bytes, long now)
+        {
+            double seconds = Math.max(now - this.start, 1) / 1e9;
+            this.logger.info("{} [{}] json store ids ([{}] bytes) in [{}] s: [{}] ids/s, [{}] MB/s", this.action,
+                this.count, bytes, String.format("%.1f", seconds), Math.round(this.count / seconds),
+                String.format("%.2f", bytes / seconds / (1024 * 1024)));
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore.internal;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Versions of the data of the json stores, computed as the SHA-256 hash of the serialized data (before compression).
+ * The hash being the same for the same content, a write whose content has the same version as the stored data can be
+ * skipped. <br>
+ * The versions of the stored files are also kept in memory for the last used files, together with the stamp of the
+ * file when its version was computed (see {@link #getStamp(Path)}), so that a file replaced or modified in the
+ * meantime is hashed again.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class JsonStoreVersions
+{
+    private static final String ALGORITHM = "SHA-256";
+
+    private final Map<Path, FileVersion> files;
+
+    /**
+     * The version of a file, valid as long as the file has the same stamp.
+     */
+    private static final class FileVersion
+    {
+        private final Object stamp;
+
+        private final String version;
+
+        FileVersion(Object stamp, String version)
+        {
+            this.stamp = stamp;
+            this.version = version;
+        }
+    }
+
+    /**
+     * @param maxFiles the maximum number of files whose version is kept in memory, the least recently used ones being
+     *            forgotten first
+     */
+    public JsonStoreVersions(int maxFiles)
+    {
+        this.files = new LinkedHashMap<Path, FileVersion>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, FileVersion> eldest)
+            {
+                return size() > maxFiles;
+            }
+        };
+    }
+
+    /**
+     * @param file a stored file
+     * @return the version of the file if it's known and the file was not modified since it was recorded, null otherwise
+     * @throws IOException if the attributes of the file cannot be read
+     */
+    public String get(Path file) throws IOException
+    {
+        FileVersion fileVersion;
+        synchronized (this.files) {
+            fileVersion = this.files.get(file);
+        }
+        return fileVersion != null && fileVersion.stamp.equals(getStamp(file)) ? fileVersion.version : null;
+    }
+
+    /**
+     * Records the version of a file, which must not be modified while this method runs.
+     *
+     * @param file a stored file
+     * @param version the version of its content
+     * @throws IOException if the attributes of the file cannot be read
+     */
+    public void put(Path file, String version) throws IOException
+    {
+        FileVersion fileVersion = new FileVersion(getStamp(file), version);
+        synchronized (this.files) {
+            this.files.put(file, fileVersion);
+        }
+    }
+
+    /**
+     * @param file a file
+     * @return the stamp of the file, which changes when the file is modified or replaced: its file key (e.g. the inode)
+     *         if available, its modification time with the precision of the file system, and its size
+     * @throws IOException if the attributes of the file cannot be read
+     */
+    public static Object getStamp(Path file) throws IOException
+    {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        return Arrays.asList(attributes.fileKey(), attributes.lastModifiedTime(), attributes.size());
+    }
+
+    /**
+     * @return a new digest computing a version
+     */
+    public static MessageDigest newDigest()
+    {
+        return JsonStoreHashes.newDigest(ALGORITHM);
+    }
+
+    /**
+     * @param digest a digest returned by {@link #newDigest()}, updated with the serialized data
+     * @return the version of the data
+     */
+    public static String toVersion(MessageDigest digest)
+    {
+        return JsonStoreHashes.toHex(digest.digest());
+    }
+
+    /**
+     * @param data the serialized data
+     * @return the version of the data
+     */
+    public static String getVersion(byte[] data)
+    {
+        MessageDigest digest = newDigest();
+        digest.update(data);
+        return toVersion(digest);
+    }
+}
@@ -0,0 +1,372 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore.internal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Striped locks shared with the other processes using the same folder: each lock also locks a file of the folder with
+ * {@link FileChannel#lock()}, named by the index of the lock. Since the locks of the keys are derived from their
+ * {@link String#hashCode()}, which is the same in all the JVMs, the processes lock the same file for a key. <br>
+ * A file lock is held by the whole JVM, so it's only requested by the thread holding the lock of the stripe in this
+ * JVM. The locks throw an {@link UncheckedIOException} if the file cannot be locked or released. Their conditions
+ * release the file while waiting and lock it again before returning, but are only signalled from this JVM. There's no
+ * timed lock of a file, {@link Lock#tryLock(long, TimeUnit)} polls the file until the time has elapsed.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class StripedFileLock extends StripedLock implements Closeable
+{
+    private static final String EXTENSION = ".lock";
+
+    private static final String LOCK_ERROR = "Failed to lock the file ";
+
+    /**
+     * The delay between two attempts to lock a file held by another process, in nanoseconds.
+     */
+    private static final long TRY_LOCK_INTERVAL = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final StripeLock[] stripeLocks;
+
+    /**
+     * @param stripes the number of locks, which must be the same in all the processes
+     * @param folder the folder of the lock files, shared by the processes
+     * @throws IOException if the folder cannot be created
+     */
+    public StripedFileLock(int stripes, Path folder) throws IOException
+    {
+        super(stripes);
+        Files.createDirectories(folder);
+        this.stripeLocks = new StripeLock[stripes];
+        for (int i = 0; i < stripes; i++) {
+            // the locks of the parent are reentrant locks, whose owner is checked by the conditions
+            this.stripeLocks[i] = new StripeLock((ReentrantLock) super.getLock(i), folder.resolve(i + EXTENSION));
+        }
+    }
+
+    @Override
+    protected Lock getLock(int stripe)
+    {
+        return this.stripeLocks[stripe];
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        for (StripeLock stripeLock : this.stripeLocks) {
+            stripeLock.close();
+        }
+    }
+
+    /**
+     * The lock of a stripe, locking the lock of this process and then the file of the stripe.
+     */
+    private static final class StripeLock implements Lock
+    {
+        private final ReentrantLock processLock;
+
+        private final Path file;
+
+        private FileChannel channel;
+
+        private FileLock fileLock;
+
+        /**
+         * The number of times the lock is held by the current owner, the file being locked only once.
+         */
+        private int holds;
+
+        StripeLock(ReentrantLock processLock, Path file)
+        {
+            this.processLock = processLock;
+            this.file = file;
+        }
+
+        @Override
+        public void lock()
+        {
+            this.processLock.lock();
+            if (this.holds++ == 0) {
+                try {
+                    this.fileLock = openChannel().lock();
+                } catch (IOException e) {
+                    this.holds--;
+                    this.processLock.unlock();
+                    throw new UncheckedIOException(LOCK_ERROR + this.file, e);
+                }
+            }
+        }
+
+        @Override
+        public void lockInterruptibly() throws InterruptedException
+        {
+            this.processLock.lockInterruptibly();
+            if (this.holds++ == 0) {
+                try {
+                    this.fileLock = openChannel().lock();
+                } catch (ClosedByInterruptException e) {
+                    this.holds--;
+                    this.processLock.unlock();
+                    throw new InterruptedException();
+                } catch (IOException e) {
+                    this.holds--;
+                    this.processLock.unlock();
+                    throw new UncheckedIOException(LOCK_ERROR + this.file, e);
+                }
+            }
+        }
+
+        @Override
+        public boolean tryLock()
+        {
+            if (!this.processLock.tryLock()) {
+                return false;
+            }
+            if (this.holds++ == 0) {
+                try {
+                    this.fileLock = openChannel().tryLock();
+                } catch (IOException e) {
+                    this.holds--;
+                    this.processLock.unlock();
+                    throw new UncheckedIOException(LOCK_ERROR + this.file, e);
+                }
+                if (this.fileLock == null) {
+                    // held by another process
+                    this.holds--;
+                    this.processLock.unlock();
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean tryLock(long time, TimeUnit unit) throws InterruptedException
+        {
+            long deadline = System.nanoTime() + unit.toNanos(time);
+            if (!this.processLock.tryLock(time, unit)) {
+                return false;
+            }
+            if (this.holds++ == 0) {
+                try {
+                    // there's no timed lock of a file, it's polled until the deadline
+                    this.fileLock = openChannel().tryLock();
+                    while (this.fileLock == null && System.nanoTime() < deadline) {
+                        TimeUnit.NANOSECONDS.sleep(Math.min(TRY_LOCK_INTERVAL, deadline - System.nanoTime()));
+                        this.fileLock = this.channel.tryLock();
+                    }
+                } catch (IOException e) {
+                    this.fileLock = null;
+                    this.holds--;
+                    this.processLock.unlock();
+                    throw new UncheckedIOException(LOCK_ERROR + this.file, e);
+                } catch (InterruptedException e) {
+                    this.holds--;
+                    this.processLock.unlock();
+                    throw e;
+                }
+                if (this.fileLock == null) {
+                    this.holds--;
+                    this.processLock.unlock();
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void unlock()
+        {
+            try {
+                if (--this.holds == 0 && this.fileLock != null) {
+                    FileLock released = this.fileLock;
+                    this.fileLock = null;
+                    released.release();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to release the lock of the file " + this.file, e);
+            } finally {
+                this.processLock.unlock();
+            }
+        }
+
+        /**
+         * @return the channel of the file, opened again if it was closed, to be called while holding the lock of this
+         *         process
+         */
+        private FileChannel openChannel() throws IOException
+        {
+            // the channel is closed when a thread waiting for the lock is interrupted
+            if (this.channel == null || !this.channel.isOpen()) {
+                this.channel = FileChannel.open(this.file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            }
+            return this.channel;
+        }
+
+        void close() throws IOException
+        {
+            this.processLock.lock();
+            try {
+                if (this.channel != null) {
+                    this.channel.close();
+                }
+            } finally {
+                this.processLock.unlock();
+            }
+        }
+
+        @Override
+        public Condition newCondition()
+        {
+            return new StripeCondition(this.processLock.newCondition());
+        }
+
+        /**
+         * Waits on a condition of the lock of this process, the file being released while waiting.
+         *
+         * @param <T> the type of the result of the wait
+         * @param wait waits on the condition of the lock of this process, which releases it
+         * @return the result of the wait
+         */
+        private <T> T await(Await<T> wait) throws InterruptedException
+        {
+            if (!this.processLock.isHeldByCurrentThread()) {
+                throw new IllegalMonitorStateException();
+            }
+            int heldCount = this.holds;
+            this.holds = 0;
+            FileLock released = this.fileLock;
+            this.fileLock = null;
+            try {
+                released.release();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to release the lock of the file " + this.file, e);
+            }
+            try {
+                return wait.await();
+            } finally {
+                // the lock of this process is held again, the file is locked even if the thread was interrupted
+                this.holds = heldCount;
+                boolean interrupted = Thread.interrupted();
+                try {
+                    this.fileLock = openChannel().lock();
+                } catch (IOException e) {
+                    // unlock() releases the lock of this process, the file not being locked
+                    throw new UncheckedIOException(LOCK_ERROR + this.file, e);
+                } finally {
+                    if (interrupted) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }
+
+        /**
+         * A wait on a condition.
+         *
+         * @param <T> the type of the result of the wait
+         */
+        @FunctionalInterface
+        private interface Await<T>
+        {
+            T await() throws InterruptedException;
+        }
+
+        /**
+         * A condition of the lock of a stripe, signalled only by the threads of this process.
+         */
+        private final class StripeCondition implements Condition
+        {
+            private final Condition processCondition;
+
+            StripeCondition(Condition processCondition)
+            {
+                this.processCondition = processCondition;
+            }
+
+            @Override
+            public void await() throws InterruptedException
+            {
+                StripeLock.this.await(() -> {
+                    this.processCondition.await();
+                    return null;
+                });
+            }
+
+            @Override
+            public void awaitUninterruptibly()
+            {
+                try {
+                    StripeLock.this.await(() -> {
+                        this.processCondition.awaitUninterruptibly();
+                        return null;
+                    });
+                } catch (InterruptedException e) {
+                    // never thrown by an uninterruptible wait
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public long awaitNanos(long nanosTimeout) throws InterruptedException
+            {
+                return StripeLock.this.await(() -> this.processCondition.awaitNanos(nanosTimeout));
+            }
+
+            @Override
+            public boolean await(long time, TimeUnit unit) throws InterruptedException
+            {
+                return StripeLock.this.await(() -> this.processCondition.await(time, unit));
+            }
+
+            @Override
+            public boolean awaitUntil(Date deadline) throws InterruptedException
+            {
+                return StripeLock.this.await(() -> this.processCondition.awaitUntil(deadline));
+            }
+
+            @Override
+            public void signal()
+            {
+                this.processCondition.signal();
+            }
+
+            @Override
+            public void signalAll()
+            {
+                this.processCondition.signalAll();
+            }
+        }
+    }
+}
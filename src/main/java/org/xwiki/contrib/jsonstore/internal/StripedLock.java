@@ -0,0 +1,84 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore.internal;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed set of locks shared by keys according to their hash, to serialize the operations on a same key without a
+ * global lock and without keeping a lock per key in memory. Two different keys may share a lock.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class StripedLock
+{
+    private final Lock[] locks;
+
+    /**
+     * @param stripes the number of locks
+     */
+    public StripedLock(int stripes)
+    {
+        this.locks = new Lock[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * @param key a key
+     * @return the index of the lock of the key
+     */
+    public int getStripe(String key)
+    {
+        // spread the bits of the hash, the low bits of the hash of similar keys are often close
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return (hash & Integer.MAX_VALUE) % this.locks.length;
+    }
+
+    /**
+     * @param key a key
+     * @return the lock of the key
+     */
+    public Lock get(String key)
+    {
+        return getLock(getStripe(key));
+    }
+
+    /**
+     * @return the number of locks
+     */
+    protected int getStripes()
+    {
+        return this.locks.length;
+    }
+
+    /**
+     * @param stripe the index of a lock
+     * @return the lock
+     */
+    protected Lock getLock(int stripe)
+    {
+        return this.locks[stripe];
+    }
+}
@@ -19,28 +19,80 @@
  */
 package org.xwiki.contrib.jsonstore.internal;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.concurrent.locks.Lock;
+import java.util.zip.GZIPInputStream;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
+import javax.management.JMException;
 
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.DeferredFileOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
 import org.apache.commons.lang3.StringUtils;
-import org.json.JSONArray;
-import org.json.JSONObject;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.descriptor.ComponentDescriptor;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
 import org.xwiki.contrib.jsonstore.JsonStore;
+import org.xwiki.contrib.jsonstore.internal.XWikiPermdirJsonStoreMetrics.Operation;
+import org.xwiki.contrib.jsonstore.internal.XWikiPermdirJsonStoreWriteBehind.PendingWrite;
+import org.xwiki.contrib.jsonstore.internal.codec.JsonStoreCodec;
 import org.xwiki.environment.Environment;
 
+import com.fasterxml.jackson.core.JsonEncoding;
 import com.fasterxml.jackson.core.JsonGenerator;
-import com.fasterxml.jackson.core.Version;
-import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonPointer;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializerProvider;
-import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
 
 /**
  * Implementation of the Json store storing data as files in the XWiki permanent directory. All data will be stored
@@ -49,6 +101,21 @@ import com.fasterxml.jackson.databind.module.SimpleModule;
  * {@code mydata/mycategory/itemname} , the following file will be created in the xwiki permanent directory:
  * {@code org.xwiki.contrib.jsonstore/mydata/mycategory/itemname.json}. If the id ends by a / , it will be ignored. It's
  * the caller's responsibility to avoid special characters in the ids (that would not be accepted on file systems). <br>
+ * The format of the written files is configurable (see {@link XWikiPermdirJsonStoreConfiguration#getFormat()}) and
+ * the extension of the file is the one of the {@link JsonStoreCodec} used to write it (e.g. {@code itemname.smile}).
+ * Files written in any of the available formats are read, so stores written as JSON remain readable after switching
+ * to a binary format. <br>
+ * When sharding is enabled (see {@link XWikiPermdirJsonStoreConfiguration#isShardingEnabled()}), the files are stored
+ * in hashed sub-folders of their folder, e.g. {@code mydata/mycategory/3f/9c/itemname.json} (see
+ * {@link XWikiPermdirJsonStoreLayout}). Switching the layout moves the stored files in the background, while they are
+ * still read from their previous location. <br>
+ * In multi process mode (see {@link XWikiPermdirJsonStoreConfiguration#isMultiProcessEnabled()}), the store folder
+ * can be shared by several processes: the writes of an id are serialized between them with file locks (see
+ * {@link StripedFileLock}), and each process reads the changes made by the others from a journal to invalidate its
+ * cache and its key index (see {@link XWikiPermdirJsonStoreJournal}). <br>
+ * The ids written with a time to live are reported as missing once it has elapsed, their expiration time being kept in
+ * memory and recorded in the {@code .expirations} file of the store, and their files are removed in the background
+ * (see {@link JsonStoreExpirations}). <br>
  * This uses the same serializing technique as the JSONTool and so it has some limitations, for the serialization /
  * deserialization of calendar dates (java.util.Date), which will be serialized as the long values and parsed the same
  * (as longs instead of dates). Examples:
@@ -65,140 +132,1955 @@ import com.fasterxml.jackson.databind.module.SimpleModule;
 @Component
 @Singleton
 @Named("xwikipermdir")
-public class XWikiPermdirJsonStore implements JsonStore
+public class XWikiPermdirJsonStore implements JsonStore, Initializable, Disposable
 {
     /**
      * The home of the json store in the permanent directory.
      */
     private static final String PERMDIR_FOLDERKEY = "org.xwiki.contrib.jsonstore";
 
+    /**
+     * The folder of the secondary indexes in the permanent directory.
+     */
+    private static final String INDEXES_FOLDERKEY = "org.xwiki.contrib.jsonstore.indexes";
+
     /**
      * The file path separator.
      */
-    private static final String PATH_SEPARATOR = "/";
+    private static final String PATH_SEPARATOR = "/";
+
+    /**
+     * The prefix of the names of the temporary and technical files of the store.
+     */
+    private static final String HIDDEN_PREFIX = ".";
+
+    /**
+     * The file recording the layout of the store, {@link #LAYOUT_SHARDED} or {@link #LAYOUT_FLAT} (the default).
+     */
+    private static final String LAYOUT_FILE = ".layout";
+
+    private static final String LAYOUT_SHARDED = "sharded";
+
+    private static final String LAYOUT_FLAT = "flat";
+
+    /**
+     * The folder of the files locked by the processes sharing the store, in multi process mode.
+     */
+    private static final String LOCKS_FOLDER = ".locks";
+
+    /**
+     * The journal of the changes made by the processes sharing the store, in multi process mode.
+     */
+    private static final String JOURNAL_FILE = ".journal";
+
+    private static final String JOURNAL_LOCK_FILE = "journal.lock";
+
+    /**
+     * The expiration times of the ids written with a time to live.
+     */
+    private static final String EXPIRATIONS_FILE = ".expirations";
+
+    private static final String EXPIRATIONS_LOCK_FILE = "expirations.lock";
+
+    /**
+     * The number of locks used to serialize the writes of a same id.
+     */
+    private static final int LOCK_STRIPES = 256;
+
+    /**
+     * Converts the cached data to the types requested by the typed reads.
+     */
+    private static final ObjectMapper CONVERTER = new ObjectMapper();
+
+    /**
+     * The maximum number of files whose version is kept in memory.
+     */
+    private static final int VERSIONS_MAX_FILES = 10000;
+
+    /**
+     * The maximum size of the written data kept in memory while it's compared with the existing file, 1MB. Bigger data
+     * is written in a temporary file right away.
+     */
+    private static final int COMPARED_CONTENT_MAX_SIZE = 1024 * 1024;
+
+    /**
+     * Used to get permanent directory.
+     */
+    @Inject
+    private Environment environment;
+
+    /**
+     * Logger to log unexpected results and debug.
+     */
+    @Inject
+    private Logger logger;
+
+    /**
+     * Used to get the configured format of the store.
+     */
+    @Inject
+    private XWikiPermdirJsonStoreConfiguration configuration;
+
+    /**
+     * Cache of the parsed data, used if enabled in the configuration.
+     */
+    @Inject
+    @Named("xwikipermdir")
+    private JsonStoreCache cache;
+
+    /**
+     * Used to lookup the codecs of the store.
+     */
+    @Inject
+    private ComponentManager componentManager;
+
+    /**
+     * Used to get the hint of the store, which names its metrics.
+     */
+    @Inject
+    private ComponentDescriptor<JsonStore> descriptor;
+
+    /**
+     * The store to the permanent directory.
+     */
+    private File store;
+
+    /**
+     * The codec used to write the data in the store.
+     */
+    private JsonStoreCodec writeCodec;
+
+    /**
+     * All the codecs which can be used to read the data in the store, by file extension, the write codec first.
+     */
+    private Map<String, JsonStoreCodec> readCodecs;
+
+    /**
+     * The in memory index of the stored ids, null if it's not enabled in the configuration.
+     */
+    private XWikiPermdirJsonStoreKeyIndex index;
+
+    /**
+     * The locks of the ids, by storage path, shared with the other processes in multi process mode.
+     */
+    private StripedLock locks;
+
+    /**
+     * The journal of the changes made by the processes sharing the store, null if not in multi process mode.
+     */
+    private XWikiPermdirJsonStoreJournal journal;
+
+    /**
+     * The expiration times of the ids written with a time to live.
+     */
+    private JsonStoreExpirations expirations;
+
+    /**
+     * The threads running the reads and writes of the batch operations.
+     */
+    private ExecutorService batchExecutor;
+
+    /**
+     * The writes waiting to be done in the background, null if the writes are not done in the background.
+     */
+    private XWikiPermdirJsonStoreWriteBehind writeBehind;
+
+    /**
+     * Whether the files are stored in the sharded layout (see {@link XWikiPermdirJsonStoreLayout}).
+     */
+    private boolean sharded;
+
+    /**
+     * Whether the files stored in the other layout are being moved to the configured layout, in which case the files
+     * are looked for in both layouts. The files are moved while holding the lock of their id, which the readers hold
+     * while opening a file so that it's not moved in the meantime.
+     */
+    private volatile boolean migrating;
+
+    /**
+     * The thread moving the files to the configured layout, null if they are not being moved.
+     */
+    private Thread migration;
+
+    /**
+     * The secondary indexes, null if none is declared.
+     */
+    private XWikiPermdirJsonStoreIndexes indexes;
+
+    /**
+     * The thread building the indexes which were not built yet, when the store starts.
+     */
+    private Thread indexBuild;
+
+    /**
+     * The metrics of the store, exposed through JMX.
+     */
+    private final XWikiPermdirJsonStoreMetrics metrics = new XWikiPermdirJsonStoreMetrics();
+
+    /**
+     * The versions of the last written or checked files, so that they're not hashed again to skip the unchanged writes
+     * and to check the versions.
+     */
+    private final JsonStoreVersions versions = new JsonStoreVersions(VERSIONS_MAX_FILES);
+
+    /**
+     * The result of the write of a file.
+     */
+    private enum WriteResult
+    {
+        /**
+         * The file was written.
+         */
+        WRITTEN,
+
+        /**
+         * The file already had the written content, it was left as is.
+         */
+        UNCHANGED,
+
+        /**
+         * The file exists and it was not overwritten.
+         */
+        EXISTS
+    }
+
+    /**
+     * Writes data in the stream of a file.
+     */
+    @FunctionalInterface
+    private interface FileContent
+    {
+        void writeTo(OutputStream output) throws IOException;
+    }
+
+    /**
+     * The entries of a listed folder after a given path, sorted by storage path and bounded in number, so that listing
+     * a page of a big folder doesn't keep all its entries in memory. The folders are sorted as the ids they contain, so
+     * a folder "a" is sorted as "a/", after the id "a-b".
+     */
+    private static final class FolderEntries
+    {
+        private final TreeMap<String, Path> entries = new TreeMap<>();
+
+        private final String after;
+
+        private final String cursor;
+
+        private final int maxSize;
+
+        private boolean truncated;
+
+        /**
+         * @param after the storage path after which the entries are kept, null to keep the first entries
+         * @param cursor the id after which the ids are listed, null to list all the ids
+         * @param maxSize the maximum number of entries kept
+         */
+        FolderEntries(String after, String cursor, int maxSize)
+        {
+            this.after = after;
+            this.cursor = cursor;
+            this.maxSize = maxSize;
+        }
+
+        void add(String path, Path entry)
+        {
+            if (this.after != null && path.compareTo(this.after) <= 0) {
+                return;
+            }
+            if (isBeforeCursor(path)) {
+                return;
+            }
+            if (this.entries.size() >= this.maxSize) {
+                this.truncated = true;
+                if (path.compareTo(this.entries.lastKey()) > 0) {
+                    return;
+                }
+                this.entries.pollLastEntry();
+            }
+            this.entries.put(path, entry);
+        }
+
+        private boolean isBeforeCursor(String path)
+        {
+            if (this.cursor == null) {
+                return false;
+            } else if (path.endsWith(PATH_SEPARATOR)) {
+                // the folders containing only ids before the cursor are not listed
+                return this.cursor.compareTo(path) > 0 && !this.cursor.startsWith(path);
+            } else {
+                return path.compareTo(this.cursor) <= 0;
+            }
+        }
+    }
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        String format = this.configuration.getFormat();
+        try {
+            this.writeCodec = this.componentManager.getInstance(JsonStoreCodec.class, format);
+            this.readCodecs = new LinkedHashMap<>();
+            this.readCodecs.put(this.writeCodec.getFileExtension(), this.writeCodec);
+            for (JsonStoreCodec codec : this.componentManager.<JsonStoreCodec>getInstanceList(JsonStoreCodec.class)) {
+                this.readCodecs.putIfAbsent(codec.getFileExtension(), codec);
+            }
+        } catch (ComponentLookupException e) {
+            throw new InitializationException(String.format("Failed to lookup the json store codec [%s]", format), e);
+        }
+        startExpirations();
+        startMultiProcess();
+        this.sharded = this.configuration.isShardingEnabled();
+        startMigration();
+        if (this.configuration.isKeyIndexEnabled()) {
+            this.index = new XWikiPermdirJsonStoreKeyIndex(getStorage().toPath(), this.readCodecs.keySet(), logger);
+            try {
+                this.index.start();
+            } catch (IOException e) {
+                throw new InitializationException("Failed to start the json store key index", e);
+            }
+        }
+        this.batchExecutor = Executors.newFixedThreadPool(this.configuration.getBatchThreads(),
+            new BasicThreadFactory.Builder().namingPattern("XWiki JSON store batch %d").daemon(true).build());
+        if (this.configuration.isWriteBehindEnabled()) {
+            this.writeBehind = new XWikiPermdirJsonStoreWriteBehind(this.configuration.getWriteBehindInterval(),
+                this.configuration.getWriteBehindMaxPending(), this::flush);
+        }
+        List<String> declarations = this.configuration.getIndexes();
+        if (!declarations.isEmpty()) {
+            try {
+                this.indexes = new XWikiPermdirJsonStoreIndexes(
+                    new File(this.environment.getPermanentDirectory(), INDEXES_FOLDERKEY).toPath(), declarations,
+                    this::readField, this.configuration.isMultiProcessEnabled());
+                this.indexes.open();
+            } catch (IllegalArgumentException | IOException e) {
+                throw new InitializationException("Failed to initialize the json store indexes", e);
+            }
+            startIndexBuild();
+        }
+        this.expirations.start(this.configuration.getExpirationSweepInterval(),
+            this.configuration.getExpirationSweepMaxRemovals(), this::expire);
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this.metrics,
+                XWikiPermdirJsonStoreMetrics.getObjectName(this.descriptor.getRoleHint()));
+        } catch (JMException e) {
+            logger.warn("Failed to register the metrics of the json store in JMX: {}", e.getMessage());
+        }
+    }
+
+    @Override
+    public void dispose()
+    {
+        // the pending writes are flushed first, they record their expiration and are journaled
+        if (this.writeBehind != null) {
+            try {
+                this.writeBehind.close();
+            } catch (InterruptedException e) {
+                logger.warn("Interrupted while writing the pending data of the json store");
+                Thread.currentThread().interrupt();
+            }
+        }
+        this.batchExecutor.shutdown();
+        if (this.migration != null) {
+            this.migration.interrupt();
+            try {
+                this.migration.join();
+            } catch (InterruptedException e) {
+                logger.warn("Interrupted while stopping the migration of the json store layout");
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (this.indexBuild != null) {
+            this.indexBuild.interrupt();
+            try {
+                this.indexBuild.join();
+            } catch (InterruptedException e) {
+                logger.warn("Interrupted while stopping the build of the json store indexes");
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            this.expirations.close();
+        } catch (IOException e) {
+            logger.warn("Failed to close the json store expirations", e);
+        }
+        if (this.indexes != null) {
+            try {
+                this.indexes.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close the json store indexes", e);
+            }
+        }
+        if (this.index != null) {
+            try {
+                this.index.close();
+            } catch (IOException e) {
+                logger.warn("Failed to stop the json store key index", e);
+            }
+        }
+        if (this.journal != null) {
+            try {
+                this.journal.close();
+                ((StripedFileLock) this.locks).close();
+            } catch (IOException e) {
+                logger.warn("Failed to close the json store journal and locks", e);
+            }
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                .unregisterMBean(XWikiPermdirJsonStoreMetrics.getObjectName(this.descriptor.getRoleHint()));
+        } catch (JMException e) {
+            logger.debug("Failed to unregister the metrics of the json store from JMX: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Loads the expiration times of the ids written with a time to live.
+     */
+    private void startExpirations() throws InitializationException
+    {
+        Path lockFile = this.configuration.isMultiProcessEnabled()
+            ? new File(getStorage(), LOCKS_FOLDER).toPath().resolve(EXPIRATIONS_LOCK_FILE) : null;
+        this.expirations =
+            new JsonStoreExpirations(new File(getStorage(), EXPIRATIONS_FILE).toPath(), lockFile, logger);
+        try {
+            this.expirations.open();
+        } catch (IOException e) {
+            throw new InitializationException("Failed to load the expirations of the json store", e);
+        }
+    }
+
+    /**
+     * Creates the locks of the ids, and in multi process mode locks them also in the other processes and starts reading
+     * the journal of the changes made by the other processes.
+     */
+    private void startMultiProcess() throws InitializationException
+    {
+        if (!this.configuration.isMultiProcessEnabled()) {
+            this.locks = new StripedLock(LOCK_STRIPES);
+            return;
+        }
+        Path locksFolder = new File(getStorage(), LOCKS_FOLDER).toPath();
+        try {
+            this.locks = new StripedFileLock(LOCK_STRIPES, locksFolder);
+            this.journal = new XWikiPermdirJsonStoreJournal(new File(getStorage(), JOURNAL_FILE).toPath(),
+                locksFolder.resolve(JOURNAL_LOCK_FILE), new XWikiPermdirJsonStoreJournal.Listener()
+                {
+                    @Override
+                    public void changed(String storagePath, String extension, long expiration, boolean removed)
+                    {
+                        cache.invalidate(storagePath);
+                        expirations.update(storagePath, expiration);
+                        if (index != null) {
+                            if (removed) {
+                                index.remove(storagePath, extension);
+                            } else {
+                                index.put(storagePath, extension);
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void reset()
+                    {
+                        cache.invalidateAll();
+                        try {
+                            expirations.reload();
+                        } catch (IOException e) {
+                            logger.warn("Failed to reload the expirations of the json store", e);
+                        }
+                    }
+                }, logger);
+            this.journal.start(this.configuration.getMultiProcessJournalInterval());
+        } catch (IOException e) {
+            throw new InitializationException("Failed to start the multi process mode of the json store", e);
+        }
+    }
+
+    /**
+     * Records a change in the journal read by the other processes, if in multi process mode.
+     *
+     * @param id the id of the data
+     * @param storagePath the storage path of the changed id, whose lock is held
+     * @param extension the extension of the changed file
+     * @param expiration the expiration time of the written id, or {@link JsonStoreExpirations#NONE}
+     * @param removed true if the file was removed, false if it was written
+     */
+    private void journal(String id, String storagePath, String extension, long expiration, boolean removed)
+    {
+        if (this.journal != null) {
+            try {
+                this.journal.append(storagePath, extension, expiration, removed);
+            } catch (IOException e) {
+                logger.warn("Failed to journal the change of id {}, the other processes might not see it", id, e);
+            }
+        }
+    }
+
+    /**
+     * Reads the changes made by the other processes, if in multi process mode. Called while holding the lock of an id
+     * before changing it, so that the expiration of the id known by this process is the last one set by any process
+     * and is recorded only when it changes (see {@link JsonStoreExpirations#set(String, long)}).
+     */
+    private void readJournal()
+    {
+        if (this.journal != null) {
+            this.journal.read();
+        }
+    }
+
+    /**
+     * Starts moving the stored files to the configured layout in the background, if the store is in the other layout.
+     */
+    private void startMigration() throws InitializationException
+    {
+        Path layoutFile = new File(getStorage(), LAYOUT_FILE).toPath();
+        String layout = this.sharded ? LAYOUT_SHARDED : LAYOUT_FLAT;
+        try {
+            // the stores written before the sharded layout are flat
+            String currentLayout =
+                Files.exists(layoutFile) ? new String(Files.readAllBytes(layoutFile), StandardCharsets.UTF_8).trim()
+                    : LAYOUT_FLAT;
+            if (layout.equals(currentLayout)) {
+                return;
+            }
+        } catch (IOException e) {
+            throw new InitializationException("Failed to read the layout of the json store", e);
+        }
+        this.migrating = true;
+        this.migration = new Thread(() -> {
+            long start = System.currentTimeMillis();
+            AtomicBoolean failed = new AtomicBoolean();
+            try {
+                Files.createDirectories(layoutFile.getParent());
+                Files.walkFileTree(layoutFile.getParent(), new SimpleFileVisitor<Path>()
+                {
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+                    {
+                        if (Thread.currentThread().isInterrupted()) {
+                            return FileVisitResult.TERMINATE;
+                        }
+                        try {
+                            migrate(file);
+                        } catch (IOException e) {
+                            logger.warn("Failed to move the json store file [{}] to the [{}] layout", file, layout, e);
+                            failed.set(true);
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException e)
+                    {
+                        // removed while walking
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+                // the migration starts again on the next start if it was not complete
+                if (!failed.get() && !Thread.currentThread().isInterrupted()) {
+                    Files.write(layoutFile, layout.getBytes(StandardCharsets.UTF_8));
+                    this.migrating = false;
+                    logger.info("Moved the json store files to the [{}] layout in [{}] ms", layout,
+                        System.currentTimeMillis() - start);
+                }
+            } catch (IOException e) {
+                logger.error("Failed to move the json store files to the [{}] layout", layout, e);
+            }
+        }, "XWiki JSON store layout migration");
+        this.migration.setDaemon(true);
+        this.migration.start();
+    }
+
+    /**
+     * Starts building the indexes which were not built yet in the background (e.g. the newly declared ones). Until
+     * they're built, {@link #findIds(String, String, Object)} reads the data of all the ids.
+     */
+    private void startIndexBuild()
+    {
+        List<XWikiPermdirJsonStoreIndexes.Index> incomplete = new ArrayList<>();
+        for (XWikiPermdirJsonStoreIndexes.Index index : this.indexes.getIndexes()) {
+            if (!index.isComplete()) {
+                incomplete.add(index);
+            }
+        }
+        if (incomplete.isEmpty()) {
+            return;
+        }
+        this.indexBuild = new Thread(() -> {
+            try {
+                for (XWikiPermdirJsonStoreIndexes.Index index : incomplete) {
+                    buildIndex(index);
+                }
+            } catch (InterruptedException e) {
+                // the store is stopped, the build starts again on the next start
+            } catch (Exception e) {
+                logger.error("Failed to build the json store indexes", e);
+            }
+        }, "XWiki JSON store index build");
+        this.indexBuild.setDaemon(true);
+        this.indexBuild.start();
+    }
+
+    /**
+     * Builds an index from the stored data.
+     *
+     * @param index the index to build
+     * @throws InterruptedException if the thread is interrupted during the build, in which case the index is left
+     *             incomplete
+     * @throws Exception if the stored data cannot be listed or read, or the index cannot be written
+     */
+    private void buildIndex(XWikiPermdirJsonStoreIndexes.Index index) throws Exception
+    {
+        // the builds of an index are serialized, the writes being concurrent with them
+        synchronized (index) {
+            long start = System.currentTimeMillis();
+            this.indexes.clear(index);
+            int count = 0;
+            String cursor = null;
+            List<String> ids;
+            do {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                ids = list(index.getPrefix(), cursor, PAGE_SIZE);
+                for (String storagePath : ids) {
+                    Lock lock = this.locks.get(storagePath);
+                    lock.lock();
+                    try {
+                        this.indexes.add(index, storagePath);
+                    } finally {
+                        lock.unlock();
+                    }
+                    cursor = storagePath;
+                }
+                count += ids.size();
+            } while (ids.size() == PAGE_SIZE);
+            this.indexes.complete(index);
+            logger.info("Built the json store index [{}] of [{}] ids in [{}] ms", index, count,
+                System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Moves a stored file to the configured layout, if it's not in it yet.
+     *
+     * @param file a file of the store
+     * @throws IOException if the file cannot be moved
+     */
+    private void migrate(Path file) throws IOException
+    {
+        String name = file.getFileName().toString();
+        JsonStoreCodec codec = this.readCodecs.get(FilenameUtils.getExtension(name));
+        if (name.startsWith(HIDDEN_PREFIX) || codec == null) {
+            return;
+        }
+        String storagePath = XWikiPermdirJsonStoreLayout.unshard(FilenameUtils
+            .removeExtension(FilenameUtils.separatorsToUnix(getStorage().toPath().relativize(file).toString())));
+        Path target = getStorageFile(storagePath, codec).toPath();
+        if (target.equals(file)) {
+            return;
+        }
+        Lock lock = this.locks.get(storagePath);
+        lock.lock();
+        try {
+            if (Files.exists(target)) {
+                // written since the migration started, the file in the old layout is outdated
+                Files.deleteIfExists(file);
+            } else if (Files.exists(file)) {
+                Files.createDirectories(target.getParent());
+                Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param storagePath the storage path of an id
+     * @return the lock to hold while looking for the file of the id and opening it, if the file may be moved by the
+     *         migration of the layout, null otherwise
+     */
+    private Lock lockMigration(String storagePath)
+    {
+        if (!this.migrating) {
+            return null;
+        }
+        Lock lock = this.locks.get(storagePath);
+        lock.lock();
+        return lock;
+    }
+
+    private void unlockMigration(Lock lock)
+    {
+        if (lock != null) {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see org.xwiki.contrib.jsonstore.JsonStore#persistAsJson(java.lang.Object, java.lang.String, boolean)
+     */
+    @Override
+    public boolean persistAsJson(Object data, String id, boolean forceOverwrite) throws Exception
+    {
+        return persist(data, id, forceOverwrite, false, null, JsonStoreExpirations.NONE);
+    }
+
+    @Override
+    public boolean persistAsJson(Object data, String id, boolean forceOverwrite, long timeToLive) throws Exception
+    {
+        if (timeToLive <= 0) {
+            throw new IllegalArgumentException(String.format("Invalid time to live [%s] for id [%s]", timeToLive, id));
+        }
+        return persist(data, id, forceOverwrite, false, null, System.currentTimeMillis() + timeToLive);
+    }
+
+    @Override
+    public boolean persistIfVersion(Object data, String id, String expectedVersion) throws Exception
+    {
+        return persist(data, id, true, true, expectedVersion, JsonStoreExpirations.NONE);
+    }
+
+    /**
+     * Writes the data of an id right away, replacing its pending write if any.
+     *
+     * @param data the data to store as JSON
+     * @param id the id to store the data under
+     * @param forceOverwrite whether the existing data under the same id (if any) should be overwritten or not
+     * @param checkVersion whether the data should be written only if the stored version is the expected one
+     * @param expectedVersion the expected version of the stored data, null if nothing should be stored
+     * @param expiration the time at which the data expires, in milliseconds since the epoch, or
+     *            {@link JsonStoreExpirations#NONE}
+     * @return true if write has happened or not
+     * @throws Exception if the data cannot be serialized or written
+     */
+    private boolean persist(Object data, String id, boolean forceOverwrite, boolean checkVersion,
+        String expectedVersion, long expiration) throws Exception
+    {
+        // the data itself is not logged, formatting it could cost more than storing it
+        logger.debug("Starting storing data with id {}. Overwrite is forced: {}", id, forceOverwrite);
+        String storagePath = getStoragePath(id);
+        if (storagePath == null) {
+            logger.trace("Json storage file for id {} resolved to null, returning false", id);
+            return false;
+        }
+        Operation operation = this.metrics.start();
+        // serialize the writes of a same id, so that the existence check and the write are atomic
+        Lock lock = this.locks.get(storagePath);
+        lock.lock();
+        try {
+            PendingWrite pending = this.writeBehind != null ? this.writeBehind.get(storagePath) : null;
+            if (pending != null && !forceOverwrite) {
+                logger.debug("Write is pending and overwrite is not forced for id {}, returning false", id);
+                return false;
+            }
+            if (checkVersion && !StringUtils.equals(getStoredVersion(storagePath), expectedVersion)) {
+                logger.debug("The version stored for id {} is not {}, returning false", id, expectedVersion);
+                return false;
+            }
+            boolean written = write(id, storagePath,
+                output -> this.writeCodec.getWriter().writeValue(output, data), forceOverwrite, expiration, operation);
+            // the pending write is replaced by this one
+            if (pending != null) {
+                this.writeBehind.remove(storagePath, pending);
+                pending.complete(written);
+            }
+            if (written) {
+                this.metrics.persisted(operation, id);
+            }
+            return written;
+        } catch (Exception e) {
+            this.metrics.failed(e);
+            throw e;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public CompletableFuture<Boolean> persistAsJsonAsync(Object data, String id, boolean forceOverwrite)
+    {
+        if (this.writeBehind == null) {
+            return JsonStore.super.persistAsJsonAsync(data, id, forceOverwrite);
+        }
+        String storagePath = getStoragePath(id);
+        if (storagePath == null) {
+            logger.trace("Json storage file for id {} resolved to null, returning false", id);
+            return CompletableFuture.completedFuture(false);
+        }
+        CompletableFuture<Boolean> result;
+        try {
+            // serialize right away, the caller might modify the data after this call
+            byte[] content = this.writeCodec.getWriter().writeValueAsBytes(data);
+            Lock lock = this.locks.get(storagePath);
+            lock.lock();
+            try {
+                PendingWrite pending = this.writeBehind.get(storagePath);
+                if (!forceOverwrite && (pending != null || getStoredFile(storagePath) != null)) {
+                    logger.debug("Id {} is stored and overwrite is not forced, returning false", id);
+                    result = CompletableFuture.completedFuture(false);
+                } else {
+                    result = pending == null && this.writeBehind.isFull() ? null
+                        : this.writeBehind.add(storagePath, id, content);
+                    if (result == null) {
+                        // too many pending writes, or the store is being disposed
+                        logger.debug("Writing id {} synchronously", id);
+                        Operation operation = this.metrics.start();
+                        boolean written = write(id, storagePath, output -> output.write(content), true,
+                            JsonStoreExpirations.NONE, operation);
+                        this.metrics.written(operation, id);
+                        // the pending write is replaced by this one
+                        if (pending != null) {
+                            this.writeBehind.remove(storagePath, pending);
+                            pending.complete(written);
+                        }
+                        result = CompletableFuture.completedFuture(written);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        } catch (Exception e) {
+            this.metrics.failed(e);
+            result = new CompletableFuture<>();
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    @Override
+    public boolean patch(String id, Object mergePatch) throws Exception
+    {
+        String storagePath = getStoragePath(id);
+        if (storagePath == null) {
+            logger.trace("Json storage file for id {} resolved to null, returning false", id);
+            return false;
+        }
+        Operation operation = this.metrics.start();
+        Lock lock = this.locks.get(storagePath);
+        lock.lock();
+        try {
+            // normalize the patch as maps, lists and values, whatever the type of the passed object
+            Object patch =
+                this.writeCodec.getReader().readValue(this.writeCodec.getWriter().writeValueAsBytes(mergePatch));
+            PendingWrite pending = this.writeBehind != null ? this.writeBehind.get(storagePath) : null;
+            // the patched data expires with the stored data, an expired id being patched as a missing one
+            long expiration = pending == null && !this.expirations.isExpired(storagePath)
+                ? this.expirations.get(storagePath) : JsonStoreExpirations.NONE;
+            boolean written = write(id, storagePath, output -> {
+                // the stored data is streamed from the current file to the new one while being patched
+                try (JsonParser source = openParser(id, storagePath);
+                    JsonGenerator target =
+                        this.writeCodec.getWriter().getFactory().createGenerator(output, JsonEncoding.UTF8)) {
+                    if (source != null) {
+                        source.nextToken();
+                    }
+                    JsonMergePatcher.patch(source, target, patch);
+                }
+            }, true, expiration, operation);
+            this.metrics.written(operation, id);
+            // the pending write was patched and written
+            if (pending != null) {
+                this.writeBehind.remove(storagePath, pending);
+                pending.complete(written);
+            }
+            return written;
+        } catch (Exception e) {
+            this.metrics.failed(e);
+            throw e;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the pending write of a storage path, if it's still pending.
+     *
+     * @param storagePath the storage path of an id
+     */
+    private void flush(String storagePath)
+    {
+        Lock lock = this.locks.get(storagePath);
+        lock.lock();
+        try {
+            PendingWrite pending = this.writeBehind.get(storagePath);
+            if (pending == null) {
+                return;
+            }
+            try {
+                // the existence was checked when the write was added
+                Operation operation = this.metrics.start();
+                boolean written = write(pending.getId(), storagePath, output -> output.write(pending.getContent()),
+                    true, JsonStoreExpirations.NONE, operation);
+                this.metrics.written(operation, pending.getId());
+                this.writeBehind.remove(storagePath, pending);
+                pending.complete(written);
+            } catch (Exception e) {
+                logger.warn("Failed to write the pending data of id {}", pending.getId(), e);
+                this.metrics.failed(e);
+                this.writeBehind.remove(storagePath, pending);
+                pending.fail(e);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the content of a storage path, while holding the lock of the path.
+     *
+     * @param id the id of the data
+     * @param storagePath the storage path of the id
+     * @param content writes the data in a file
+     * @param forceOverwrite whether the existing data under the same id (if any) should be overwritten or not
+     * @param expiration the time at which the written data expires, in milliseconds since the epoch, or
+     *            {@link JsonStoreExpirations#NONE}
+     * @param operation records the time spent serializing the data and accessing the files
+     * @return true if write has happened or not
+     * @throws IOException if the data cannot be serialized or written
+     */
+    private boolean write(String id, String storagePath, FileContent content, boolean forceOverwrite, long expiration,
+        Operation operation) throws IOException
+    {
+        long lookupStart = System.nanoTime();
+        readJournal();
+        File existingFile = findStoredFile(storagePath);
+        operation.addIO(System.nanoTime() - lookupStart);
+        // the file of an expired id is overwritten as if it was missing
+        boolean overwrite = forceOverwrite || this.expirations.isExpired(storagePath);
+        // if the file exists and overwriting is not forced, return false
+        if (existingFile != null && !overwrite) {
+            logger.debug("File exists and overwrite is not forced for id {}, returning false", id);
+            return false;
+        }
+        // file doesn't exist yet or overwrite is forced, write the data to file in the configured format
+        File jsonStorageFile = getStorageFile(storagePath, this.writeCodec);
+        if (!jsonStorageFile.getParentFile().exists() && !jsonStorageFile.getParentFile().mkdirs()) {
+            logger.error("Could not create the path to store id {}: Unknown error", id);
+            return false;
+        }
+        logger.trace("Serializing on disk the json for id {}", id);
+        WriteResult result = writeFile(content, jsonStorageFile.toPath(), overwrite,
+            jsonStorageFile.equals(existingFile) ? existingFile.toPath() : null, operation);
+        if (result == WriteResult.EXISTS) {
+            logger.debug("File was created concurrently for id {}, returning false", id);
+            return false;
+        }
+        boolean expirationChanged = this.expirations.set(storagePath, expiration);
+        if (result == WriteResult.UNCHANGED) {
+            logger.debug("The data stored for id {} is unchanged, the file is left as is", id);
+            if (expirationChanged) {
+                journal(id, storagePath, this.writeCodec.getFileExtension(), expiration, false);
+            }
+            return true;
+        }
+        this.cache.invalidate(storagePath);
+        if (this.index != null) {
+            this.index.put(storagePath, this.writeCodec.getFileExtension());
+        }
+        journal(id, storagePath, this.writeCodec.getFileExtension(), expiration, false);
+        if (this.indexes != null) {
+            try {
+                this.indexes.add(storagePath);
+            } catch (IOException e) {
+                logger.warn("Failed to index id {}, the json store indexes should be rebuilt", id, e);
+            }
+        }
+        // the data was previously stored in another format, remove it so that only the new file is read
+        if (existingFile != null && !existingFile.equals(jsonStorageFile) && !existingFile.delete()) {
+            logger.warn("Could not remove the previous file [{}] stored for id {}", existingFile, id);
+        }
+        return true;
+    }
+
+    /**
+     * Writes the data in a temporary file and then moves it to the target file, so that readers never see a partially
+     * written file. The data is compressed while written if enabled in the configuration. The version of the data is
+     * computed while it's written, and the target file is left as is if it has the same version, so that rewriting the
+     * same data doesn't replace the file (and change its modification date). When the target file exists, the data is
+     * kept in memory up to {@link #COMPARED_CONTENT_MAX_SIZE} until it's compared, so that rewriting the same data
+     * doesn't write anything on disk.
+     *
+     * @param content writes the data in a file
+     * @param target the file to write
+     * @param overwrite whether the target file should be replaced if it exists
+     * @param existingTarget the target file if it exists, to be left as is if its content is the written one, or null
+     * @param operation records the time spent serializing the data and accessing the files
+     * @return whether the target file was written, left unchanged, or not overwritten
+     * @throws IOException if the data cannot be serialized or written
+     */
+    private WriteResult writeFile(FileContent content, Path target, boolean overwrite, Path existingTarget,
+        Operation operation) throws IOException
+    {
+        long start = System.nanoTime();
+        long serialization = 0;
+        // hidden temporary file in the same folder, to be able to move it atomically, created once the data doesn't
+        // fit in memory
+        DeferredFileOutputStream buffer =
+            new DeferredFileOutputStream(existingTarget != null ? COMPARED_CONTENT_MAX_SIZE : 0,
+                "." + target.getFileName(), ".tmp", target.getParent().toFile());
+        Path temporaryFile = null;
+        try {
+            OutputStream output = operation.meter(buffer);
+            if (this.configuration.isCompressionEnabled()) {
+                output = JsonStoreCompression.compress(output, this.configuration.getCompressionThreshold());
+            }
+            // the time spent in the writes of the file stream is accounted as I/O, the rest as serialization
+            long serializationStart = System.nanoTime();
+            long streamed = operation.getStreamed();
+            MessageDigest digest = JsonStoreVersions.newDigest();
+            try (OutputStream closeable = new DigestOutputStream(output, digest)) {
+                content.writeTo(closeable);
+            }
+            serialization = System.nanoTime() - serializationStart - (operation.getStreamed() - streamed);
+            operation.addSerialization(serialization);
+            if (!buffer.isInMemory()) {
+                temporaryFile = buffer.getFile().toPath();
+            }
+            String version = JsonStoreVersions.toVersion(digest);
+            // the same content is written with the same size, the existing file is hashed only if the size matches
+            if (existingTarget != null && buffer.getByteCount() == Files.size(existingTarget)
+                && version.equals(getFileVersion(existingTarget.toFile()))) {
+                return WriteResult.UNCHANGED;
+            }
+            if (temporaryFile == null) {
+                temporaryFile = Files.createTempFile(target.getParent(), "." + target.getFileName(), ".tmp");
+                try (OutputStream file = Files.newOutputStream(temporaryFile)) {
+                    buffer.writeTo(file);
+                }
+            }
+            if (overwrite) {
+                Files.move(temporaryFile, target, StandardCopyOption.ATOMIC_MOVE);
+            } else if (!createFile(temporaryFile, target)) {
+                return WriteResult.EXISTS;
+            }
+            this.versions.put(target, version);
+            operation.stored();
+        } finally {
+            if (temporaryFile != null) {
+                Files.deleteIfExists(temporaryFile);
+            } else if (!buffer.isInMemory()) {
+                // the serialization failed after the data was written in the temporary file
+                Files.deleteIfExists(buffer.getFile().toPath());
+            }
+            operation.addIO(System.nanoTime() - start - serialization);
+        }
+        return WriteResult.WRITTEN;
+    }
+
+    /**
+     * Creates the target file from the written temporary file, only if it doesn't exist yet.
+     */
+    private boolean createFile(Path temporaryFile, Path target) throws IOException
+    {
+        try {
+            // a hard link is created atomically and fails if the target exists, as a new file created with CREATE_NEW
+            Files.createLink(target, temporaryFile);
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        } catch (UnsupportedOperationException | IOException e) {
+            // no hard links on this file system, fallback on a move which fails if the target exists (but checks it
+            // before moving, so it's atomic only for the writers of this store, which hold the lock of the id)
+            try {
+                Files.move(temporaryFile, target);
+            } catch (FileAlreadyExistsException e2) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String getVersion(String id) throws Exception
+    {
+        String storagePath = getStoragePath(id);
+        if (storagePath == null) {
+            logger.trace("Json storage file for id {} resolved to null, returning null", id);
+            return null;
+        }
+        // the file is not replaced while it's hashed
+        Lock lock = this.locks.get(storagePath);
+        lock.lock();
+        try {
+            return getStoredVersion(storagePath);
+        } catch (FileNotFoundException | NoSuchFileException e) {
+            logger.trace("File for id {} was removed concurrently, returning null", id);
+            return null;
+        } catch (Exception e) {
+            this.metrics.failed(e);
+            throw e;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param storagePath the storage path of an id, whose lock is held
+     * @return the version of the data stored for the storage path, including the pending writes, or null if nothing is
+     *         stored
+     * @throws IOException if the stored file cannot be read
+     */
+    private String getStoredVersion(String storagePath) throws IOException
+    {
+        PendingWrite pending = this.writeBehind != null ? this.writeBehind.get(storagePath) : null;
+        if (pending != null) {
+            // the same version as the file once it's written
+            return JsonStoreVersions.getVersion(pending.getContent());
+        }
+        File jsonStorageFile = getStoredFile(storagePath);
+        return jsonStorageFile != null ? getFileVersion(jsonStorageFile) : null;
+    }
+
+    /**
+     * @param file a stored file, which is not replaced meanwhile
+     * @return the version of the uncompressed content of the file, hashed only if it's not known yet
+     * @throws IOException if the file cannot be read
+     */
+    private String getFileVersion(File file) throws IOException
+    {
+        String version = this.versions.get(file.toPath());
+        if (version == null) {
+            MessageDigest digest = JsonStoreVersions.newDigest();
+            try (InputStream input = new DigestInputStream(openFile(file, this.metrics.start()), digest)) {
+                IOUtils.copy(input, NullOutputStream.NULL_OUTPUT_STREAM);
+            }
+            version = JsonStoreVersions.toVersion(digest);
+            this.versions.put(file.toPath(), version);
+        }
+        return version;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see org.xwiki.contrib.jsonstore.JsonStore#getFromJsonStore(java.lang.String)
+     */
+    @Override
+    public Object getFromJsonStore(String id) throws Exception
+    {
+        return getFromJsonStore(id, Object.class);
+    }
+
+    @Override
+    public <T> T getFromJsonStore(String id, Class<T> type) throws Exception
+    {
+        logger.debug("Starting fetching data for id {}", id);
+        String storagePath = getStoragePath(id);
+        if (storagePath == null) {
+            logger.trace("Json storage file for id {} resolved to null, returning null", id);
+            return null;
+        }
+        PendingWrite pending = this.writeBehind != null ? this.writeBehind.get(storagePath) : null;
+        if (pending != null) {
+            logger.trace("Returning the pending data for id {}", id);
+            return this.writeCodec.getReader().forType(type).readValue(pending.getContent());
+        }
+        Operation operation = this.metrics.start();
+        try {
+            T data = read(id, storagePath, type, operation);
+            this.metrics.read(operation);
+            return data;
+        } catch (Exception e) {
+            this.metrics.failed(e);
+            throw e;
+        }
+    }
+
+    /**
+     * @param id the id of the data
+     * @param storagePath the storage path of the id
+     * @param type the type of the returned data, only the data read as {@link Object} being cached
+     * @param operation records the time spent parsing the data and accessing the files
+     * @return the data stored for the storage path, from the cache if it's there, or null if nothing is stored
+     * @throws IOException if the stored file cannot be read
+     */
+    private <T> T read(String id, String storagePath, Class<T> type, Operation operation) throws IOException
+    {
+        if (this.expirations.isExpired(storagePath)) {
+            logger.trace("Id {} is expired, returning null", id);
+            return null;
+        }
+        long cacheGeneration = 0;
+        Object cacheStamp = null;
+        if (this.cache.isEnabled()) {
+            Object cached;
+            if (this.journal != null) {
+                // another process may have replaced the file since it was cached, without the journal being read yet
+                cacheStamp = getCacheStamp(storagePath);
+                cached = cacheStamp != null ? this.cache.get(storagePath, cacheStamp) : null;
+            } else {
+                cached = this.cache.get(storagePath);
+            }
+            if (cached != null) {
+                logger.trace("Returning cached data for id {}", id);
+                return type == Object.class ? type.cast(cached) : CONVERTER.convertValue(cached, type);
+            }
+            cacheGeneration = this.cache.getGeneration(storagePath);
+        }
+        long lookupStart = System.nanoTime();
+        File jsonStorageFile;
+        InputStream content;
+        Lock lock = lockMigration(storagePath);
+        try {
+            jsonStorageFile = getStoredFile(storagePath);
+            if (jsonStorageFile == null) {
+                logger.trace("Nothing stored on disk in the file computed for id {}, returning null", id);
+                return null;
+            }
+            content = openFile(jsonStorageFile, operation);
+        } finally {
+            unlockMigration(lock);
+            operation.addIO(System.nanoTime() - lookupStart);
+        }
+        // get data with the codec of the format in which it was written
+        JsonStoreCodec codec = this.readCodecs.get(FilenameUtils.getExtension(jsonStorageFile.getName()));
+        logger.trace("Reeading json from disk for id {} and parsing as object", id);
+        // the time spent in the reads of the file stream is accounted as I/O, the rest as parsing
+        long parseStart = System.nanoTime();
+        long streamed = operation.getStreamed();
+        T data;
+        try (InputStream closeable = content) {
+            data = codec.getReader().forType(type).readValue(closeable);
+        }
+        long reading = operation.getStreamed() - streamed;
+        operation.addSerialization(System.nanoTime() - parseStart - reading);
+        operation.addIO(reading);
+        if (this.cache.isEnabled() && type == Object.class) {
+            this.cache.put(storagePath, data, jsonStorageFile.length(), cacheGeneration, cacheStamp);
+        }
+        return data;
+    }
 
     /**
-     * Used to get permanent directory.
+     * @param storagePath the storage path of an id
+     * @return the stamp of the file stored for the storage path (see {@link JsonStoreVersions#getStamp(Path)}), or null
+     *         if nothing is stored
      */
-    @Inject
-    private Environment environment;
+    private Object getCacheStamp(String storagePath)
+    {
+        File jsonStorageFile = getStoredFile(storagePath);
+        try {
+            return jsonStorageFile != null ? JsonStoreVersions.getStamp(jsonStorageFile.toPath()) : null;
+        } catch (IOException e) {
+            // removed concurrently
+            return null;
+        }
+    }
+
+    @Override
+    public Object getFromJsonStore(String id, String jsonPointer) throws Exception
+    {
+        JsonPointer pointer = JsonPointer.compile(jsonPointer);
+        if (pointer.matches()) {
+            return getFromJsonStore(id);
+        }
+        try (JsonParser parser = openStream(id)) {
+            if (parser == null || !JsonPointerSeeker.seek(parser, pointer)) {
+                logger.trace("Nothing stored for id {} at {}, returning null", id, jsonPointer);
+                return null;
+            }
+            // only the pointed value is parsed, the rest of the data was skipped
+            return parser.readValueAs(Object.class);
+        }
+    }
+
+    @Override
+    public JsonParser openStream(String id) throws Exception
+    {
+        String storagePath = getStoragePath(id);
+        if (storagePath == null) {
+            logger.trace("Json storage file for id {} resolved to null, returning null", id);
+            return null;
+        }
+        try {
+            return openParser(id, storagePath);
+        } catch (Exception e) {
+            this.metrics.failed(e);
+            throw e;
+        }
+    }
 
     /**
-     * Logger to log unexpected results and debug.
+     * @param id the id of the data
+     * @param storagePath the storage path of the id
+     * @return a parser on the data stored for the storage path, including the pending writes, or null if nothing is
+     *         stored
+     * @throws IOException if the stored file cannot be read
      */
-    @Inject
-    private Logger logger;
+    private JsonParser openParser(String id, String storagePath) throws IOException
+    {
+        PendingWrite pending = this.writeBehind != null ? this.writeBehind.get(storagePath) : null;
+        if (pending != null) {
+            return this.writeCodec.getReader().getFactory().createParser(pending.getContent());
+        }
+        Lock lock = lockMigration(storagePath);
+        try {
+            File jsonStorageFile = getStoredFile(storagePath);
+            if (jsonStorageFile == null) {
+                logger.trace("Nothing stored on disk in the file computed for id {}, returning null", id);
+                return null;
+            }
+            JsonStoreCodec codec = this.readCodecs.get(FilenameUtils.getExtension(jsonStorageFile.getName()));
+            return codec.getReader().getFactory().createParser(openFile(jsonStorageFile, this.metrics.start()));
+        } catch (FileNotFoundException | NoSuchFileException e) {
+            logger.trace("File for id {} was removed concurrently, returning null", id);
+            return null;
+        } finally {
+            unlockMigration(lock);
+        }
+    }
+
+    @Override
+    public ByteBuffer getRawJson(String id) throws Exception
+    {
+        String storagePath = getStoragePath(id);
+        if (storagePath == null) {
+            logger.trace("Json storage file for id {} resolved to null, returning null", id);
+            return null;
+        }
+        try {
+            return readRawJson(id, storagePath);
+        } catch (Exception e) {
+            this.metrics.failed(e);
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean writeRawJson(String id, OutputStream output) throws Exception
+    {
+        String storagePath = getStoragePath(id);
+        if (storagePath == null) {
+            logger.trace("Json storage file for id {} resolved to null, returning false", id);
+            return false;
+        }
+        try {
+            return writeRawJson(id, storagePath, output);
+        } catch (Exception e) {
+            this.metrics.failed(e);
+            throw e;
+        }
+    }
 
     /**
-     * The store to the permanent directory.
+     * @param id the id of the data
+     * @param storagePath the storage path of the id
+     * @param output the stream in which to write the data stored for the storage path as JSON, including the pending
+     *            writes
+     * @return true if the data was written, false if nothing is stored
+     * @throws IOException if the stored file cannot be read or the stream cannot be written
      */
-    private File store;
+    private boolean writeRawJson(String id, String storagePath, OutputStream output) throws IOException
+    {
+        PendingWrite pending = this.writeBehind != null ? this.writeBehind.get(storagePath) : null;
+        if (pending != null) {
+            this.writeCodec.copyAsJson(new ByteArrayInputStream(pending.getContent()), output);
+            return true;
+        }
+        JsonStoreCodec codec;
+        InputStream input;
+        Lock lock = lockMigration(storagePath);
+        try {
+            File jsonStorageFile = getStoredFile(storagePath);
+            if (jsonStorageFile == null) {
+                logger.trace("Nothing stored on disk in the file computed for id {}, returning false", id);
+                return false;
+            }
+            codec = this.readCodecs.get(FilenameUtils.getExtension(jsonStorageFile.getName()));
+            input = openFile(jsonStorageFile, this.metrics.start());
+        } catch (FileNotFoundException | NoSuchFileException e) {
+            logger.trace("File for id {} was removed concurrently, returning false", id);
+            return false;
+        } finally {
+            unlockMigration(lock);
+        }
+        // the opened file is still readable if it's replaced meanwhile, and compressed files are inflated while they
+        // are copied
+        try (InputStream content = input) {
+            codec.copyAsJson(content, output);
+        }
+        return true;
+    }
+
+    /**
+     * @param id the id of the data
+     * @param storagePath the storage path of the id
+     * @return the data stored for the storage path as JSON, including the pending writes, or null if nothing is stored
+     * @throws IOException if the stored file cannot be read
+     */
+    private ByteBuffer readRawJson(String id, String storagePath) throws IOException
+    {
+        PendingWrite pending = this.writeBehind != null ? this.writeBehind.get(storagePath) : null;
+        if (pending != null) {
+            return this.writeCodec.toJson(ByteBuffer.wrap(pending.getContent())).asReadOnlyBuffer();
+        }
+        File jsonStorageFile;
+        ByteBuffer content;
+        Lock lock = lockMigration(storagePath);
+        try {
+            jsonStorageFile = getStoredFile(storagePath);
+            if (jsonStorageFile == null) {
+                logger.trace("Nothing stored on disk in the file computed for id {}, returning null", id);
+                return null;
+            }
+            content = isMapped(jsonStorageFile) ? map(jsonStorageFile)
+                : ByteBuffer.wrap(Files.readAllBytes(jsonStorageFile.toPath()));
+        } catch (NoSuchFileException e) {
+            logger.trace("File for id {} was removed concurrently, returning null", id);
+            return null;
+        } finally {
+            unlockMigration(lock);
+        }
+        // the buffer holds the whole data, so compressed files are inflated in memory, unlike with writeRawJson
+        if (JsonStoreCompression.isCompressed(content)) {
+            content =
+                ByteBuffer.wrap(IOUtils.toByteArray(new GZIPInputStream(new ByteBufferBackedInputStream(content))));
+        }
+        // files stored as JSON are returned as is, without being parsed
+        JsonStoreCodec codec = this.readCodecs.get(FilenameUtils.getExtension(jsonStorageFile.getName()));
+        return codec.toJson(content).asReadOnlyBuffer();
+    }
+
+    /**
+     * @param file a stored file
+     * @param operation records the time spent reading the file and the bytes read
+     * @return the uncompressed content of the file, read from the file mapped in memory if it's big enough
+     * @throws IOException if the file cannot be opened
+     */
+    private InputStream openFile(File file, Operation operation) throws IOException
+    {
+        if (isMapped(file)) {
+            // the parser reads the mapped pages directly, instead of copying the file through a heap buffer
+            ByteBuffer content = map(file);
+            InputStream input = operation.meter(new ByteBufferBackedInputStream(content));
+            return JsonStoreCompression.isCompressed(content) ? new GZIPInputStream(input) : input;
+        }
+        return JsonStoreCompression.decompress(operation.meter(Files.newInputStream(file.toPath())));
+    }
+
+    /**
+     * @param file a stored file
+     * @return true if the file is big enough to be mapped in memory to be read
+     */
+    private boolean isMapped(File file)
+    {
+        long threshold = this.configuration.getMmapThreshold();
+        return threshold >= 0 && file.length() >= threshold;
+    }
+
+    /**
+     * Maps a stored file in memory. Since the stored files are never modified but replaced, the mapped content is the
+     * content of the file when this method is called, even if the id is written meanwhile. The file is unmapped only
+     * when the returned buffer is garbage collected, which is why the mapping is disabled by default on Windows, where
+     * a mapped file cannot be replaced or deleted.
+     *
+     * @param file the file to map
+     * @return the content of the file
+     * @throws IOException if the file cannot be mapped
+     */
+    private ByteBuffer map(File file) throws IOException
+    {
+        // the mapping stays valid after the channel is closed
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
 
     /**
      * {@inheritDoc}
      * 
-     * @see org.xwiki.contrib.jsonstore.JsonStore#persistAsJson(java.lang.Object, java.lang.String, boolean)
+     * @see org.xwiki.contrib.jsonstore.JsonStore#exists(java.lang.String)
      */
     @Override
-    public boolean persistAsJson(Object data, String id, boolean forceOverwrite) throws Exception
+    public boolean exists(String id) throws Exception
     {
-        logger.debug("Starting storing data {} with id {}. Overwrite is forced: {}", data, id, forceOverwrite);
-        File jsonStorageFile = getStorageFile(id);
-        if (jsonStorageFile == null) {
-            logger.trace("Json storage file for id {} resolved to null, returning false", id);
+        logger.trace("Checking if id {} is stored in the json store", id);
+        String storagePath = getStoragePath(id);
+        if (storagePath == null) {
+            logger.trace("Json storage file for id {} resolved to null, returning false (invalid ids don't 'exist')",
+                id);
             return false;
         }
-        // if the file exists and overwriting is not forced, return false
-        if (jsonStorageFile.exists() && !forceOverwrite) {
-            logger.debug("File exists and overwrite is not forced for id {}, returning false", id);
+        Operation operation = this.metrics.start();
+        try {
+            boolean exists = (this.writeBehind != null && this.writeBehind.get(storagePath) != null)
+                || getStoredFile(storagePath) != null;
+            this.metrics.checked(operation);
+            return exists;
+        } catch (Exception e) {
+            this.metrics.failed(e);
+            throw e;
+        }
+    }
+
+    @Override
+    public List<String> list(String prefix, String cursor, int limit) throws Exception
+    {
+        String storagePrefix = getStoragePrefix(prefix);
+        if (storagePrefix == null || limit <= 0) {
+            return new ArrayList<>();
+        }
+        // the ids are listed from the folder of the prefix: a/b lists the ids of the folder a starting with b
+        int separator = storagePrefix.lastIndexOf(PATH_SEPARATOR);
+        String folderPath = storagePrefix.substring(0, separator + 1);
+        NavigableSet<String> ids = new TreeSet<>();
+        try {
+            list(new File(getStorage(), folderPath).toPath(), folderPath, storagePrefix.substring(separator + 1),
+                cursor, limit, ids);
+        } catch (Exception e) {
+            this.metrics.failed(e);
+            throw e;
+        }
+        if (this.writeBehind != null) {
+            // the pending ids are not written yet, but they are stored
+            for (String storagePath : this.writeBehind.getStoragePaths()) {
+                if (storagePath.startsWith(storagePrefix) && (cursor == null || storagePath.compareTo(cursor) > 0)) {
+                    ids.add(storagePath);
+                }
+            }
+        }
+        List<String> page = new ArrayList<>(Math.min(limit, ids.size()));
+        for (String id : ids) {
+            if (page.size() >= limit) {
+                break;
+            }
+            page.add(id);
+        }
+        return page;
+    }
+
+    /**
+     * Adds the ids stored in a folder to the passed ids, in alphabetical order, until the limit is reached. Only one
+     * folder of each level of the tree is listed at once, and only the entries needed to reach the limit are kept from
+     * each folder: the folder is listed again in the rare cases where they don't contain enough ids (e.g. empty folders
+     * or expired ids).
+     *
+     * @param folder the folder
+     * @param folderPath the storage path of the folder, ending with a separator, or the empty string for the store
+     * @param namePrefix the prefix of the names of the files and folders to list in the folder
+     * @param cursor the id after which the ids are listed, null to list all the ids
+     * @param limit the maximum number of ids to list
+     * @param ids the listed ids
+     * @return false if the limit was reached
+     * @throws IOException if a folder cannot be listed
+     */
+    private boolean list(Path folder, String folderPath, String namePrefix, String cursor, int limit,
+        Collection<String> ids) throws IOException
+    {
+        String after = null;
+        while (true) {
+            FolderEntries entries = new FolderEntries(after, cursor, limit - ids.size());
+            if (!listFolder(folder, folderPath, namePrefix, entries)) {
+                return true;
+            }
+            for (Map.Entry<String, Path> entry : entries.entries.entrySet()) {
+                String path = entry.getKey();
+                if (path.endsWith(PATH_SEPARATOR)) {
+                    if (!list(entry.getValue(), path, "", cursor, limit, ids)) {
+                        return false;
+                    }
+                } else if (!this.expirations.isExpired(path)) {
+                    ids.add(path);
+                    if (ids.size() >= limit) {
+                        return false;
+                    }
+                }
+            }
+            if (!entries.truncated) {
+                return true;
+            }
+            after = entries.entries.lastKey();
+        }
+    }
+
+    /**
+     * Adds the entries of a folder to the passed entries.
+     *
+     * @param folder the folder
+     * @param folderPath the storage path of the folder, ending with a separator, or the empty string for the store
+     * @param namePrefix the prefix of the names of the files and folders to list in the folder
+     * @param entries the listed entries
+     * @return false if the folder doesn't exist
+     * @throws IOException if a folder cannot be listed
+     */
+    private boolean listFolder(Path folder, String folderPath, String namePrefix, FolderEntries entries)
+        throws IOException
+    {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder)) {
+            for (Path entry : stream) {
+                String name = entry.getFileName().toString();
+                if (name.startsWith(HIDDEN_PREFIX)) {
+                    // hidden temporary files
+                    continue;
+                }
+                if (Files.isDirectory(entry)) {
+                    // the files of the shard folders are ids of this folder, and the shard folders are not listed as
+                    // folders unless they contain other files
+                    boolean onlyShards = XWikiPermdirJsonStoreLayout.isShardName(name)
+                        && listShards(entry, folderPath, namePrefix, entries);
+                    if (!onlyShards && name.startsWith(namePrefix)) {
+                        entries.add(folderPath + name + PATH_SEPARATOR, entry);
+                    }
+                } else if (name.startsWith(namePrefix) && this.readCodecs.containsKey(FilenameUtils.getExtension(name))
+                    && !XWikiPermdirJsonStoreLayout.isShardOf(folderPath, FilenameUtils.removeExtension(name))) {
+                    entries.add(folderPath + FilenameUtils.removeExtension(name), entry);
+                }
+            }
+        } catch (NoSuchFileException | NotDirectoryException e) {
             return false;
         }
-        // file doesn't exist yet or overwrite is forced, write JSON to file
-        // (technique from org.xwiki.velocity.tools.JSONTool)
-        ObjectMapper mapper = new ObjectMapper();
-        SimpleModule m = new SimpleModule("org.json.* serializer", new Version(1, 0, 0, "", "org.json", "json"));
-        m.addSerializer(JSONObject.class, new JSONObjectSerializer());
-        m.addSerializer(JSONArray.class, new JSONArraySerializer());
-        mapper.registerModule(m);
-
-        if (jsonStorageFile.getParentFile().exists() || jsonStorageFile.getParentFile().mkdirs()) {
-            logger.trace("Serializing on disk the json for id {}", id);
-            mapper.writeValue(jsonStorageFile, data);
-        } else {
-            logger.error("Could not create the path to store id {}: Unknown error", id);
+        return true;
+    }
+
+    /**
+     * Adds the files of the shard folders of a first level shard folder to the entries of its parent folder.
+     *
+     * @param shardFolder a first level shard folder
+     * @param folderPath the storage path of the parent folder, ending with a separator, or the empty string
+     * @param namePrefix the prefix of the names of the files to list
+     * @param entries the entries of the parent folder, by storage path
+     * @return true if the shard folder doesn't contain anything else than the shard files of the parent folder
+     * @throws IOException if a folder cannot be listed
+     */
+    private boolean listShards(Path shardFolder, String folderPath, String namePrefix, FolderEntries entries)
+        throws IOException
+    {
+        boolean onlyShards = true;
+        String shardFolderPath = folderPath + shardFolder.getFileName() + PATH_SEPARATOR;
+        try (DirectoryStream<Path> shards = Files.newDirectoryStream(shardFolder)) {
+            for (Path shard : shards) {
+                String shardName = shard.getFileName().toString();
+                if (!XWikiPermdirJsonStoreLayout.isShardName(shardName) || !Files.isDirectory(shard)) {
+                    onlyShards &= shardName.startsWith(HIDDEN_PREFIX);
+                    continue;
+                }
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(shard)) {
+                    for (Path file : files) {
+                        String name = file.getFileName().toString();
+                        String fileName = FilenameUtils.removeExtension(name);
+                        if (name.startsWith(HIDDEN_PREFIX)) {
+                            continue;
+                        }
+                        if (this.readCodecs.containsKey(FilenameUtils.getExtension(name)) && XWikiPermdirJsonStoreLayout
+                            .isShardOf(shardFolderPath + shardName + PATH_SEPARATOR, fileName)) {
+                            if (fileName.startsWith(namePrefix)) {
+                                entries.add(folderPath + fileName, file);
+                            }
+                        } else {
+                            onlyShards = false;
+                        }
+                    }
+                }
+            }
+        }
+        return onlyShards;
+    }
+
+    @Override
+    public boolean remove(String id) throws Exception
+    {
+        String storagePath = getStoragePath(id);
+        if (storagePath == null) {
+            logger.trace("Json storage file for id {} resolved to null, returning false", id);
             return false;
         }
+        Lock lock = this.locks.get(storagePath);
+        lock.lock();
+        try {
+            readJournal();
+            boolean removed = false;
+            // an expired id was already reported as missing
+            boolean expired = this.expirations.isExpired(storagePath);
+            if (this.indexes != null) {
+                // the indexed values are read before the data is removed
+                try {
+                    this.indexes.remove(storagePath);
+                } catch (IOException e) {
+                    // the ids left are discarded when they're checked by the queries
+                    logger.warn("Failed to unindex id {}, the json store indexes should be rebuilt", id, e);
+                }
+            }
+            PendingWrite pending = this.writeBehind != null ? this.writeBehind.get(storagePath) : null;
+            if (pending != null) {
+                // the pending write is cancelled
+                this.writeBehind.remove(storagePath, pending);
+                pending.complete(false);
+                removed = true;
+            }
+            removed |= removeFiles(id, storagePath, JsonStoreExpirations.NONE) && !expired;
+            this.cache.invalidate(storagePath);
+            this.expirations.set(storagePath, JsonStoreExpirations.NONE);
+            return removed;
+        } catch (Exception e) {
+            this.metrics.failed(e);
+            throw e;
+        } finally {
+            lock.unlock();
+        }
+    }
 
-        return true;
+    /**
+     * Removes the files stored for a storage path, while holding the lock of the path.
+     *
+     * @param id the id of the data
+     * @param storagePath the storage path of the id
+     * @param expiration the expiration time kept for the id, or {@link JsonStoreExpirations#NONE}
+     * @return true if a file was removed
+     * @throws IOException if a file cannot be removed
+     */
+    private boolean removeFiles(String id, String storagePath, long expiration) throws IOException
+    {
+        boolean removed = false;
+        // the data may be stored in several formats, while it's rewritten in a new format
+        for (JsonStoreCodec codec : this.readCodecs.values()) {
+            boolean fileRemoved = Files.deleteIfExists(getStorageFile(storagePath, codec).toPath());
+            if (this.migrating) {
+                fileRemoved |= Files.deleteIfExists(getLegacyStorageFile(storagePath, codec).toPath());
+            }
+            if (fileRemoved) {
+                removed = true;
+                if (this.index != null) {
+                    this.index.remove(storagePath, codec.getFileExtension());
+                }
+                journal(id, storagePath, codec.getFileExtension(), expiration, true);
+            }
+        }
+        return removed;
     }
 
-    class JSONObjectSerializer extends JsonSerializer<JSONObject>
+    /**
+     * Removes the files of an expired id, unless it was written again meanwhile. The id is kept expired until the next
+     * pass of the sweeper, so that the listings which saw its files before they were removed still skip it.
+     *
+     * @param storagePath the storage path of the id
+     * @throws Exception if the data cannot be removed
+     */
+    private void expire(String storagePath) throws Exception
     {
-        @Override
-        public void serialize(JSONObject value, JsonGenerator jgen, SerializerProvider provider) throws IOException
-        {
-            jgen.writeRawValue(value.toString());
+        Lock lock = this.locks.get(storagePath);
+        lock.lock();
+        try {
+            // another process might have written the id again
+            readJournal();
+            // a pending write replaces the expired data once it's written
+            if (this.expirations.isExpired(storagePath)
+                && (this.writeBehind == null || this.writeBehind.get(storagePath) == null)) {
+                logger.debug("Removing the expired id {}", storagePath);
+                if (this.indexes != null) {
+                    try {
+                        this.indexes.remove(storagePath);
+                    } catch (IOException e) {
+                        // the id is discarded when it's checked by the queries
+                        logger.warn("Failed to unindex the expired id {}", storagePath, e);
+                    }
+                }
+                if (removeFiles(storagePath, storagePath, this.expirations.get(storagePath))) {
+                    this.cache.invalidate(storagePath);
+                } else {
+                    this.expirations.set(storagePath, JsonStoreExpirations.NONE);
+                }
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
-    class JSONArraySerializer extends JsonSerializer<JSONArray>
+    @Override
+    public int removePrefix(String prefix) throws Exception
     {
-        @Override
-        public void serialize(JSONArray value, JsonGenerator jgen, SerializerProvider provider) throws IOException
-        {
-            jgen.writeRawValue(value.toString());
+        int removed = 0;
+        String cursor = null;
+        List<String> ids;
+        do {
+            ids = list(prefix, cursor, PAGE_SIZE);
+            for (boolean idRemoved : runAll(ids, id -> () -> remove(id)).values()) {
+                if (idRemoved) {
+                    removed++;
+                }
+            }
+            if (!ids.isEmpty()) {
+                cursor = ids.get(ids.size() - 1);
+            }
+        } while (ids.size() == PAGE_SIZE);
+        return removed;
+    }
+
+    @Override
+    public List<String> findIds(String prefix, String fieldPath, Object value) throws Exception
+    {
+        String storagePrefix = getStoragePrefix(prefix);
+        XWikiPermdirJsonStoreIndexes.Index index =
+            this.indexes != null && storagePrefix != null && value != null
+                ? this.indexes.getIndex(storagePrefix, fieldPath) : null;
+        if (index == null) {
+            logger.debug("No index of {} for the ids starting with {}, reading all the ids", fieldPath, prefix);
+            return JsonStore.super.findIds(prefix, fieldPath, value);
+        }
+        try {
+            return findIds(index, storagePrefix, value);
+        } catch (Exception e) {
+            this.metrics.failed(e);
+            throw e;
         }
     }
 
     /**
-     * {@inheritDoc}
-     * 
-     * @see org.xwiki.contrib.jsonstore.JsonStore#getFromJsonStore(java.lang.String)
+     * @param index the index of the searched value
+     * @param storagePrefix the storage prefix of the searched ids
+     * @param value the searched value
+     * @return the ids starting with the prefix whose data has the searched value
+     * @throws IOException if the index or the data cannot be read
      */
+    private List<String> findIds(XWikiPermdirJsonStoreIndexes.Index index, String storagePrefix, Object value)
+        throws IOException
+    {
+        NavigableSet<String> candidates = new TreeSet<>(this.indexes.getCandidates(index, storagePrefix, value));
+        if (this.writeBehind != null) {
+            // the pending writes are indexed once they're written
+            for (String storagePath : this.writeBehind.getStoragePaths()) {
+                if (storagePath.startsWith(storagePrefix)) {
+                    candidates.add(storagePath);
+                }
+            }
+        }
+        List<String> ids = new ArrayList<>();
+        for (String storagePath : candidates) {
+            // the value might have changed since the id was indexed
+            Lock lock = this.locks.get(storagePath);
+            lock.lock();
+            try {
+                if (!this.expirations.isExpired(storagePath) && this.indexes.check(index, storagePath, value)) {
+                    ids.add(storagePath);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return ids;
+    }
+
     @Override
-    public Object getFromJsonStore(String id) throws Exception
+    public void rebuildIndexes() throws Exception
     {
-        logger.debug("Starting fetching data for id {}", id);
-        File jsonStorageFile = getStorageFile(id);
+        if (this.indexes != null) {
+            for (XWikiPermdirJsonStoreIndexes.Index index : this.indexes.getIndexes()) {
+                buildIndex(index);
+            }
+        }
+    }
+
+    @Override
+    public Map<String, Long> getCacheStatistics()
+    {
+        return this.cache.getStatistics();
+    }
+
+    /**
+     * Reads a value of the data stored for a storage path, including the pending writes, to be called while holding the
+     * lock of the path.
+     *
+     * @param storagePath the storage path of an id
+     * @param pointer the pointer of the value
+     * @return the pointed value, or null if nothing is stored or if the data has no such value
+     * @throws IOException if the stored file cannot be read
+     */
+    private Object readField(String storagePath, JsonPointer pointer) throws IOException
+    {
+        PendingWrite pending = this.writeBehind != null ? this.writeBehind.get(storagePath) : null;
+        if (pending != null) {
+            try (JsonParser parser = this.writeCodec.getReader().getFactory().createParser(pending.getContent())) {
+                return JsonPointerSeeker.seek(parser, pointer) ? parser.readValueAs(Object.class) : null;
+            }
+        }
+        File jsonStorageFile = getStoredFile(storagePath);
         if (jsonStorageFile == null) {
-            logger.trace("Json storage file for id {} resolved to null, returning null", id);
             return null;
         }
-        if (!jsonStorageFile.exists()) {
-            logger.trace("Nothing stored on disk in the file computed for id {}, returning null", id);
+        JsonStoreCodec codec = this.readCodecs.get(FilenameUtils.getExtension(jsonStorageFile.getName()));
+        try (JsonParser parser =
+            codec.getReader().getFactory().createParser(openFile(jsonStorageFile, this.metrics.start()))) {
+            return JsonPointerSeeker.seek(parser, pointer) ? parser.readValueAs(Object.class) : null;
+        } catch (FileNotFoundException | NoSuchFileException e) {
             return null;
         }
-        // get data (technique from org.xwiki.velocity.tools.JSONTool)
-        ObjectMapper objectMapper = new ObjectMapper();
-        logger.trace("Reeading json from disk for id {} and parsing as object", id);
-        return objectMapper.readValue(jsonStorageFile, Object.class);
+    }
+
+    @Override
+    public long exportTo(OutputStream output, String prefix) throws Exception
+    {
+        return JsonStoreNdjson.exportTo(this, output, prefix, logger);
+    }
+
+    @Override
+    public long importFrom(InputStream input, boolean forceOverwrite) throws Exception
+    {
+        return JsonStoreNdjson.importFrom(this, input, forceOverwrite, logger);
+    }
+
+    @Override
+    public Map<String, Boolean> persistAllAsJson(Map<String, Object> data, boolean forceOverwrite) throws Exception
+    {
+        return runAll(data.keySet(), id -> () -> persistAsJson(data.get(id), id, forceOverwrite));
+    }
+
+    @Override
+    public Map<String, Object> getAllFromJsonStore(Collection<String> ids) throws Exception
+    {
+        return runAll(ids, id -> () -> getFromJsonStore(id));
+    }
+
+    @Override
+    public Map<String, Boolean> existsAll(Collection<String> ids) throws Exception
+    {
+        return runAll(ids, id -> () -> exists(id));
     }
 
     /**
-     * {@inheritDoc}
-     * 
-     * @see org.xwiki.contrib.jsonstore.JsonStore#exists(java.lang.String)
+     * Runs an operation for each of the passed ids, in parallel on the batch threads.
+     *
+     * @param ids the ids
+     * @param operation the operation to run for an id
+     * @return the results of the operation, by id
+     * @throws Exception the first exception thrown by the operation, the exceptions thrown for the other ids being
+     *             added as suppressed exceptions
      */
-    @Override
-    public boolean exists(String id) throws Exception
+    private <T> Map<String, T> runAll(Collection<String> ids, Function<String, Callable<T>> operation)
+        throws Exception
     {
-        logger.trace("Checking if id {} is stored in the json store", id);
-        File jsonStorageFile = getStorageFile(id);
-        if (jsonStorageFile == null) {
-            logger.trace("Json storage file for id {} resolved to null, returning false (invalid ids don't 'exist')",
-                id);
-            return false;
+        Map<String, Future<T>> futures = new LinkedHashMap<>();
+        for (String id : ids) {
+            futures.put(id, this.batchExecutor.submit(operation.apply(id)));
         }
-        return jsonStorageFile.exists();
+        Map<String, T> results = new LinkedHashMap<>();
+        Exception failure = null;
+        for (Map.Entry<String, Future<T>> future : futures.entrySet()) {
+            try {
+                results.put(future.getKey(), future.getValue().get());
+            } catch (ExecutionException e) {
+                Exception cause = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                if (failure == null) {
+                    failure = cause;
+                } else {
+                    failure.addSuppressed(cause);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return results;
     }
 
     /**
      * @param id a json store id (key)
-     * @return the File corresponding to that store id on disk in the permdir or null if the id is empty
+     * @return the path of the data stored under this id, relative to the store and without the extension of the file,
+     *         or null if the id is empty
      */
-    private File getStorageFile(String id)
+    private String getStoragePath(String id)
     {
-        logger.debug("Computing storage file for id {}", id);
+        logger.debug("Computing storage path for id {}", id);
         // secure the path a little bit, avoid tree traversal based on this id being used as a filename
         String filePathForId = FilenameUtils.normalizeNoEndSeparator(id, true);
         // this will return null if somebody tries to travserse, so let's log a special log ;)
@@ -210,13 +2092,103 @@ public class XWikiPermdirJsonStore implements JsonStore
             logger.trace("Id {} is empty or equal to path separator, no file can be computed", id);
             return null;
         }
-        // return the json path in the storage
-        File jsonStorageFile = new File(getStorage(), filePathForId + ".json");
-        logger.debug("Computed file storage for id {} which is {} with path {}", id, jsonStorageFile,
-            jsonStorageFile != null ? jsonStorageFile.toPath() : null);
+        return filePathForId;
+    }
+
+    /**
+     * @param prefix a prefix of json store ids
+     * @return the prefix of the storage paths of these ids, which ends with a separator if the prefix does, or null if
+     *         the prefix is not valid
+     */
+    private String getStoragePrefix(String prefix)
+    {
+        if (StringUtils.isEmpty(prefix)) {
+            return "";
+        }
+        String storagePrefix = FilenameUtils.normalize(prefix, true);
+        if (storagePrefix == null) {
+            logger.warn("Producing a path for the json returned null for prefix {}", prefix);
+            return null;
+        }
+        return StringUtils.removeStart(storagePrefix, PATH_SEPARATOR);
+    }
+
+    /**
+     * @param storagePath the storage path computed for an id
+     * @param codec the format of the file
+     * @return the File corresponding to that storage path on disk in the permdir, in the passed format
+     */
+    private File getStorageFile(String storagePath, JsonStoreCodec codec)
+    {
+        File jsonStorageFile = getFile(storagePath, codec.getFileExtension(), this.sharded);
+        logger.debug("Computed file storage for path {} which is {}", storagePath, jsonStorageFile);
         return jsonStorageFile;
     }
 
+    /**
+     * @param storagePath the storage path computed for an id
+     * @param codec the format of the file
+     * @return the File corresponding to that storage path in the layout which is not the configured one
+     */
+    private File getLegacyStorageFile(String storagePath, JsonStoreCodec codec)
+    {
+        return getFile(storagePath, codec.getFileExtension(), !this.sharded);
+    }
+
+    private File getFile(String storagePath, String extension, boolean inShardedLayout)
+    {
+        String path = inShardedLayout ? XWikiPermdirJsonStoreLayout.shard(storagePath) : storagePath;
+        return new File(getStorage(), path + '.' + extension);
+    }
+
+    /**
+     * @param storagePath the storage path computed for an id
+     * @return the file in which the data is stored for that path, in any of the readable formats, or null if nothing is
+     *         stored or if the id is expired
+     */
+    private File getStoredFile(String storagePath)
+    {
+        return this.expirations.isExpired(storagePath) ? null : findStoredFile(storagePath);
+    }
+
+    /**
+     * @param storagePath the storage path computed for an id
+     * @return the file in which the data is stored for that path, in any of the readable formats, even if the id is
+     *         expired, or null if nothing is stored
+     */
+    private File findStoredFile(String storagePath)
+    {
+        // while the layout is migrated, the files are moved from the legacy layout: looking for them there first
+        // ensures that a moved file is found
+        boolean migrating = this.migrating;
+        if (this.index != null && this.index.isReady()) {
+            String extension = this.index.getExtension(storagePath);
+            if (extension == null) {
+                return null;
+            }
+            File legacyFile = migrating ? getFile(storagePath, extension, !this.sharded) : null;
+            if (legacyFile != null && legacyFile.exists()) {
+                return legacyFile;
+            }
+            return getFile(storagePath, extension, this.sharded);
+        }
+        if (migrating) {
+            for (JsonStoreCodec codec : this.readCodecs.values()) {
+                File jsonStorageFile = getLegacyStorageFile(storagePath, codec);
+                if (jsonStorageFile.exists()) {
+                    return jsonStorageFile;
+                }
+            }
+        }
+        for (JsonStoreCodec codec : this.readCodecs.values()) {
+            File jsonStorageFile = getStorageFile(storagePath, codec);
+            if (jsonStorageFile.exists()) {
+                return jsonStorageFile;
+            }
+        }
+        return null;
+    }
+
     private File getStorage()
     {
         if (this.store == null) {
@@ -0,0 +1,306 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore.internal;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+
+/**
+ * Least recently used cache of the data of the permanent directory json store, weighted by the size of the files the
+ * data was read from. The keys are spread by hash on segments, each with its own lock, its own least recently used
+ * order and an equal share of the maximum size, so that the reads of different keys rarely wait for each other.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+@Component
+@Singleton
+@Named("xwikipermdir")
+public class XWikiPermdirJsonStoreCache implements JsonStoreCache, Initializable
+{
+    /**
+     * Number of segments of the cache.
+     */
+    private static final int SEGMENTS = 16;
+
+    /**
+     * Number of generation counters, keys are spread on them by hash so that writing a key does not prevent caching
+     * the reads of all the others. A multiple of the number of segments, so that the keys of a generation counter are
+     * all in the same segment and the counter can be checked while holding the lock of the segment.
+     */
+    private static final int GENERATIONS = 64;
+
+    @Inject
+    private XWikiPermdirJsonStoreConfiguration configuration;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATIONS);
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    private boolean enabled;
+
+    private long maxSize;
+
+    private static final class CacheEntry
+    {
+        private final Object value;
+
+        private final long weight;
+
+        private final Object stamp;
+
+        CacheEntry(Object value, long weight, Object stamp)
+        {
+            this.value = value;
+            this.weight = weight;
+            this.stamp = stamp;
+        }
+    }
+
+    /**
+     * A part of the cache, whose methods are to be called while holding its lock.
+     */
+    private final class Segment
+    {
+        private final Map<String, CacheEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+        private final long maxSize;
+
+        private long size;
+
+        Segment(long maxSize)
+        {
+            this.maxSize = maxSize;
+        }
+
+        void put(String key, CacheEntry entry)
+        {
+            remove(key);
+            this.entries.put(key, entry);
+            this.size += entry.weight;
+            evict();
+        }
+
+        void remove(String key)
+        {
+            CacheEntry previous = this.entries.remove(key);
+            if (previous != null) {
+                this.size -= previous.weight;
+            }
+        }
+
+        void clear()
+        {
+            this.entries.clear();
+            this.size = 0;
+        }
+
+        /**
+         * Removes the least recently used entries until the size of the segment is below its maximum size.
+         */
+        private void evict()
+        {
+            Iterator<CacheEntry> iterator = this.entries.values().iterator();
+            while (this.size > this.maxSize && iterator.hasNext()) {
+                this.size -= iterator.next().weight;
+                iterator.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    @Override
+    public void initialize()
+    {
+        this.enabled = this.configuration.isCacheEnabled();
+        this.maxSize = this.configuration.getCacheMaxSize();
+        for (int i = 0; i < SEGMENTS; i++) {
+            this.segments[i] = new Segment(this.maxSize / SEGMENTS);
+        }
+    }
+
+    @Override
+    public boolean isEnabled()
+    {
+        return this.enabled;
+    }
+
+    @Override
+    public Object get(String key)
+    {
+        CacheEntry entry = getEntry(key);
+        return get(entry, entry != null ? entry.stamp : null);
+    }
+
+    @Override
+    public Object get(String key, Object stamp)
+    {
+        return get(getEntry(key), stamp);
+    }
+
+    private CacheEntry getEntry(String key)
+    {
+        Segment segment = getSegment(key);
+        synchronized (segment) {
+            return segment.entries.get(key);
+        }
+    }
+
+    private Object get(CacheEntry entry, Object stamp)
+    {
+        if (entry == null || !Objects.equals(entry.stamp, stamp)) {
+            this.misses.increment();
+            return null;
+        }
+        this.hits.increment();
+        // the cached value is never modified, so it's copied without holding the lock of the segment
+        return copy(entry.value);
+    }
+
+    @Override
+    public long getGeneration(String key)
+    {
+        return this.generations.get(getGenerationIndex(key));
+    }
+
+    @Override
+    public void put(String key, Object value, long weight, long generation)
+    {
+        put(key, value, weight, generation, null);
+    }
+
+    @Override
+    public void put(String key, Object value, long weight, long generation, Object stamp)
+    {
+        Segment segment = getSegment(key);
+        if (!this.enabled || value == null || weight > segment.maxSize) {
+            return;
+        }
+        CacheEntry entry = new CacheEntry(copy(value), weight, stamp);
+        synchronized (segment) {
+            // the key was written while the value was read, it might be outdated
+            if (this.generations.get(getGenerationIndex(key)) == generation) {
+                segment.put(key, entry);
+            }
+        }
+    }
+
+    @Override
+    public void invalidate(String key)
+    {
+        Segment segment = getSegment(key);
+        synchronized (segment) {
+            this.generations.incrementAndGet(getGenerationIndex(key));
+            segment.remove(key);
+        }
+    }
+
+    @Override
+    public void invalidateAll()
+    {
+        // the generations are changed first so that the values being read are not cached once their segment is
+        // cleared
+        for (int i = 0; i < GENERATIONS; i++) {
+            this.generations.incrementAndGet(i);
+        }
+        for (Segment segment : this.segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    @Override
+    public Map<String, Long> getStatistics()
+    {
+        long entries = 0;
+        long size = 0;
+        for (Segment segment : this.segments) {
+            synchronized (segment) {
+                entries += segment.entries.size();
+                size += segment.size;
+            }
+        }
+        Map<String, Long> statistics = new LinkedHashMap<>();
+        statistics.put("hits", this.hits.sum());
+        statistics.put("misses", this.misses.sum());
+        statistics.put("evictions", this.evictions.sum());
+        statistics.put("entries", entries);
+        statistics.put("size", size);
+        statistics.put("maxSize", this.maxSize);
+        return statistics;
+    }
+
+    private int getGenerationIndex(String key)
+    {
+        return (key.hashCode() & Integer.MAX_VALUE) % GENERATIONS;
+    }
+
+    private Segment getSegment(String key)
+    {
+        return this.segments[getGenerationIndex(key) % SEGMENTS];
+    }
+
+    /**
+     * @param value data parsed from the store, made of maps, lists and immutable values
+     * @return a deep copy of the maps, lists and arrays of the data
+     */
+    @SuppressWarnings("unchecked")
+    static Object copy(Object value)
+    {
+        if (value instanceof Map) {
+            Map<String, Object> map = (Map<String, Object>) value;
+            Map<String, Object> copy = new LinkedHashMap<>(map.size() * 4 / 3 + 1);
+            for (Map.Entry<String, Object> entry : map.entrySet()) {
+                copy.put(entry.getKey(), copy(entry.getValue()));
+            }
+            return copy;
+        } else if (value instanceof List) {
+            List<Object> list = (List<Object>) value;
+            List<Object> copy = new ArrayList<>(list.size());
+            for (Object item : list) {
+                copy.add(copy(item));
+            }
+            return copy;
+        } else if (value instanceof byte[]) {
+            return ((byte[]) value).clone();
+        }
+        return value;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore.internal;
+
+import java.util.List;
+
+import org.xwiki.component.annotation.Role;
+
+/**
+ * Configuration of the permanent directory based json store, read from the {@code xwiki.properties} file.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+@Role
+public interface XWikiPermdirJsonStoreConfiguration
+{
+    /**
+     * @return the hint of the {@link org.xwiki.contrib.jsonstore.internal.codec.JsonStoreCodec} used to write new
+     *         data in the store (e.g. {@code json}, {@code smile} or {@code cbor}). Data written in the other formats
+     *         is still read.
+     */
+    String getFormat();
+
+    /**
+     * @return the size from which the stored files are mapped in memory to be read, instead of being read through a
+     *         heap buffer, in bytes. A negative value disables the mapping.
+     */
+    long getMmapThreshold();
+
+    /**
+     * @return whether the written files bigger than {@link #getCompressionThreshold()} should be compressed with GZIP.
+     *         Compressed files are read whatever the configuration.
+     */
+    boolean isCompressionEnabled();
+
+    /**
+     * @return the size from which the written files are compressed, in bytes
+     */
+    int getCompressionThreshold();
+
+    /**
+     * @return whether the files should be stored in two levels of sub-folders of their folder, derived from a hash of
+     *         their name (see {@link XWikiPermdirJsonStoreLayout}). The files stored in the other layout are moved in
+     *         the background when the store starts.
+     */
+    boolean isShardingEnabled();
+
+    /**
+     * @return the declarations of the secondary indexes, as {@code prefix:pointer} (see
+     *         {@link XWikiPermdirJsonStoreIndexes}), empty if no index is declared
+     */
+    List<String> getIndexes();
+
+    /**
+     * @return whether the parsed data read from the store should be kept in memory
+     */
+    boolean isCacheEnabled();
+
+    /**
+     * @return the maximum size of the cached data, as the sum of the sizes on disk of the cached entries, in bytes
+     */
+    long getCacheMaxSize();
+
+    /**
+     * @return whether the ids stored in the store should be indexed in memory when the store starts, so that checking
+     *         whether an id is stored doesn't access the file system
+     */
+    boolean isKeyIndexEnabled();
+
+    /**
+     * @return whether the store folder is shared with other processes (e.g. XWiki instances sharing a permanent
+     *         directory), in which case the writes of an id are serialized between the processes with file locks, and
+     *         the changes are recorded in a journal read by all the processes (see
+     *         {@link XWikiPermdirJsonStoreJournal})
+     */
+    boolean isMultiProcessEnabled();
+
+    /**
+     * @return the delay between two reads of the changes made by the other processes, in milliseconds
+     */
+    long getMultiProcessJournalInterval();
+
+    /**
+     * @return the number of threads used to read and write the data of the batch operations
+     */
+    int getBatchThreads();
+
+    /**
+     * @return whether the asynchronous writes should be done in the background, keeping only the last write of each id
+     */
+    boolean isWriteBehindEnabled();
+
+    /**
+     * @return the delay between two writes of the pending data, in milliseconds
+     */
+    long getWriteBehindInterval();
+
+    /**
+     * @return the maximum number of ids waiting to be written, after which the asynchronous writes are done right away
+     */
+    int getWriteBehindMaxPending();
+
+    /**
+     * @return the delay between two passes of the removal of the expired ids (see
+     *         {@link JsonStoreExpirations}), in milliseconds
+     */
+    long getExpirationSweepInterval();
+
+    /**
+     * @return the maximum number of expired ids removed by a pass, which limits the disk accesses of the removal
+     */
+    int getExpirationSweepMaxRemovals();
+}
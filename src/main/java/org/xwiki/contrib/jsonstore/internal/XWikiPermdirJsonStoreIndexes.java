@@ -0,0 +1,642 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.TreeSet;
+
+import org.apache.commons.io.FileUtils;
+
+import com.fasterxml.jackson.core.JsonPointer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+ * The secondary indexes of the permanent directory json store, finding the ids having a value at a JSON Pointer
+ * without reading the data of all the ids. An index is declared for the ids starting with a prefix and a pointer, as
+ * {@code prefix:pointer} (e.g. {@code jobs/:/status}).
+ * <p>
+ * The ids of each value are kept in memory, by hash of the JSON serialization of the value, and each index records its
+ * changes in a single append-only file of its folder: the lines of the file are {@code <hash> <storage path>} when an
+ * id is indexed with a value, and {@code - <storage path>} when it's removed from the index. Indexing a write thus
+ * appends a line, without creating any file, and a lookup doesn't access the file system. The file is compacted once
+ * it's more than twice as big as after its previous compaction. When the indexes are shared by several processes, the
+ * appends and the compactions hold a lock on a file of the index, and each process reads the lines appended by the
+ * others before using the index. The ids found are still checked against the stored data, so that an index missing a
+ * change (e.g. after a crash) doesn't return wrong ids.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class XWikiPermdirJsonStoreIndexes implements Closeable
+{
+    /**
+     * The separator of the prefix and the pointer in the declaration of an index.
+     */
+    public static final String DECLARATION_SEPARATOR = ":/";
+
+    /**
+     * The file recording the ids of each value, in the folder of an index.
+     */
+    private static final String POSTINGS_FILE = "postings";
+
+    /**
+     * The file created in the folder of an index once it's built.
+     */
+    private static final String COMPLETE_FILE = ".complete";
+
+    /**
+     * The file containing the declaration of an index, in its folder.
+     */
+    private static final String DECLARATION_FILE = ".declaration";
+
+    /**
+     * The file locked while writing the postings file, when it's shared with other processes.
+     */
+    private static final String LOCK_FILE = ".lock";
+
+    /**
+     * The hash recorded for the ids removed from an index.
+     */
+    private static final String REMOVED = "-";
+
+    private static final String SEPARATOR = " ";
+
+    private static final String HASH_ALGORITHM = "SHA-1";
+
+    /**
+     * The size under which the postings file is not compacted, in bytes.
+     */
+    private static final long COMPACTION_MIN_SIZE = 1024L * 1024;
+
+    /**
+     * The length of the names of the folders of the indexes, taken from the hash of their declaration.
+     */
+    private static final int INDEX_NAME_LENGTH = 16;
+
+    /**
+     * Serializes the objects in the same way whatever the order of their members.
+     */
+    private static final ObjectMapper MAPPER =
+        new ObjectMapper().configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true);
+
+    private final Path root;
+
+    private final List<Index> indexes = new ArrayList<>();
+
+    private final FieldReader reader;
+
+    private final boolean shared;
+
+    /**
+     * Reads a value of the data stored for an id.
+     */
+    @FunctionalInterface
+    public interface FieldReader
+    {
+        /**
+         * @param storagePath the storage path of the id
+         * @param pointer the pointer of the value to read
+         * @return the pointed value, parsed as maps, lists and values, or null if nothing is stored for the id or if
+         *         the data has no such value
+         * @throws IOException if the stored data cannot be read
+         */
+        Object read(String storagePath, JsonPointer pointer) throws IOException;
+    }
+
+    /**
+     * An index of the values at a pointer of the ids starting with a prefix. Its state is guarded by its monitor.
+     */
+    public static final class Index
+    {
+        private final String prefix;
+
+        private final String fieldPath;
+
+        private final JsonPointer pointer;
+
+        private final Path folder;
+
+        private final Path file;
+
+        /**
+         * The storage paths indexed with each value, by hash of the value.
+         */
+        private final Map<String, NavigableSet<String>> postings = new HashMap<>();
+
+        /**
+         * The hash of the indexed value of each storage path.
+         */
+        private final Map<String, String> values = new HashMap<>();
+
+        private volatile boolean complete;
+
+        private FileChannel lockChannel;
+
+        private FileChannel appendChannel;
+
+        /**
+         * The identity of the postings file read until {@link #position}, which changes when it's compacted.
+         */
+        private Object fileKey;
+
+        /**
+         * The position up to which the postings file was read.
+         */
+        private long position;
+
+        /**
+         * The size of the postings file after its last compaction.
+         */
+        private long compactedSize;
+
+        private Index(String prefix, String fieldPath, Path folder)
+        {
+            this.prefix = prefix;
+            this.fieldPath = fieldPath;
+            this.pointer = JsonPointer.compile(fieldPath);
+            this.folder = folder;
+            this.file = folder.resolve(POSTINGS_FILE);
+        }
+
+        /**
+         * @return the prefix of the indexed storage paths
+         */
+        public String getPrefix()
+        {
+            return this.prefix;
+        }
+
+        /**
+         * @return the pointer of the indexed value
+         */
+        public JsonPointer getPointer()
+        {
+            return this.pointer;
+        }
+
+        /**
+         * @return true if the index contains all the stored ids, false if it's not built yet
+         */
+        public boolean isComplete()
+        {
+            return this.complete;
+        }
+
+        @Override
+        public String toString()
+        {
+            return this.prefix + ':' + this.fieldPath;
+        }
+
+        private void apply(String storagePath, String hash)
+        {
+            String previous = REMOVED.equals(hash) ? this.values.remove(storagePath)
+                : this.values.put(storagePath, hash);
+            if (previous != null) {
+                NavigableSet<String> storagePaths = this.postings.get(previous);
+                storagePaths.remove(storagePath);
+                if (storagePaths.isEmpty()) {
+                    this.postings.remove(previous);
+                }
+            }
+            if (!REMOVED.equals(hash)) {
+                this.postings.computeIfAbsent(hash, key -> new TreeSet<>()).add(storagePath);
+            }
+        }
+
+        private void clear()
+        {
+            this.postings.clear();
+            this.values.clear();
+        }
+    }
+
+    /**
+     * @param root the folder of the indexes
+     * @param declarations the declarations of the indexes, as {@code prefix:pointer}, the prefixes being storage
+     *            prefixes
+     * @param reader reads the indexed values of the stored data
+     * @param shared whether the indexes are shared with other processes
+     * @throws IllegalArgumentException if a declaration is not valid
+     */
+    public XWikiPermdirJsonStoreIndexes(Path root, Collection<String> declarations, FieldReader reader,
+        boolean shared)
+    {
+        this.root = root;
+        this.reader = reader;
+        this.shared = shared;
+        for (String declaration : declarations) {
+            int separator = declaration.indexOf(DECLARATION_SEPARATOR);
+            if (separator < 0) {
+                throw new IllegalArgumentException(
+                    String.format("Invalid json store index [%s], expecting prefix:pointer", declaration));
+            }
+            String fieldPath = declaration.substring(separator + 1).trim();
+            this.indexes.add(new Index(declaration.substring(0, separator).trim(), fieldPath,
+                root.resolve(hash(declaration.trim()).substring(0, INDEX_NAME_LENGTH))));
+        }
+    }
+
+    /**
+     * Removes the folders of the indexes which are not declared anymore and loads the complete indexes.
+     *
+     * @throws IOException if a folder cannot be removed or an index cannot be loaded
+     */
+    public void open() throws IOException
+    {
+        if (Files.isDirectory(this.root)) {
+            List<Path> declared = new ArrayList<>();
+            this.indexes.forEach(index -> declared.add(index.folder));
+            try (DirectoryStream<Path> folders = Files.newDirectoryStream(this.root)) {
+                for (Path folder : folders) {
+                    if (!declared.contains(folder)) {
+                        FileUtils.deleteDirectory(folder.toFile());
+                    }
+                }
+            }
+        }
+        for (Index index : this.indexes) {
+            synchronized (index) {
+                Files.createDirectories(index.folder);
+                if (this.shared) {
+                    index.lockChannel = FileChannel.open(index.folder.resolve(LOCK_FILE), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE);
+                }
+                // the indexes written as marker files by the previous versions are built again
+                index.complete = Files.exists(index.folder.resolve(COMPLETE_FILE)) && Files.exists(index.file);
+                FileLock lock = lock(index);
+                try {
+                    read(index);
+                    index.compactedSize = index.position;
+                } finally {
+                    release(lock);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the declared indexes
+     */
+    public List<Index> getIndexes()
+    {
+        return Collections.unmodifiableList(this.indexes);
+    }
+
+    /**
+     * @param storagePrefix the storage prefix of the searched ids
+     * @param fieldPath the pointer of the searched value
+     * @return the complete index of the value containing all the ids starting with the prefix, the most specific
+     *         one if several do, or null if there's none
+     */
+    public Index getIndex(String storagePrefix, String fieldPath)
+    {
+        Index found = null;
+        for (Index index : this.indexes) {
+            if (index.complete && index.fieldPath.equals(fieldPath) && storagePrefix.startsWith(index.prefix)
+                && (found == null || index.prefix.length() > found.prefix.length())) {
+                found = index;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Adds a written id to the indexes of its storage path, to be called while holding the lock of the id.
+     *
+     * @param storagePath the storage path of the id
+     * @throws IOException if the indexed values cannot be read or the indexes cannot be written
+     */
+    public void add(String storagePath) throws IOException
+    {
+        for (Index index : this.indexes) {
+            if (storagePath.startsWith(index.prefix)) {
+                add(index, storagePath);
+            }
+        }
+    }
+
+    /**
+     * Removes an id from the indexes of its storage path, to be called while holding the lock of the id.
+     *
+     * @param storagePath the storage path of the id
+     * @throws IOException if the indexes cannot be written
+     */
+    public void remove(String storagePath) throws IOException
+    {
+        for (Index index : this.indexes) {
+            if (storagePath.startsWith(index.prefix)) {
+                record(index, storagePath, REMOVED);
+            }
+        }
+    }
+
+    /**
+     * @param index an index
+     * @param storagePrefix the storage prefix of the searched ids
+     * @param value the searched value
+     * @return the storage paths indexed with the value and starting with the prefix, in alphabetical order. Their
+     *         current value has to be checked with {@link #check(Index, String, Object)}.
+     * @throws IOException if the index cannot be read
+     */
+    public List<String> getCandidates(Index index, String storagePrefix, Object value) throws IOException
+    {
+        String hash = hash(toJson(value));
+        synchronized (index) {
+            if (this.shared) {
+                FileLock lock = lock(index);
+                try {
+                    read(index);
+                } finally {
+                    release(lock);
+                }
+            }
+            NavigableSet<String> storagePaths = index.postings.get(hash);
+            if (storagePaths == null) {
+                return Collections.emptyList();
+            }
+            List<String> candidates = new ArrayList<>();
+            for (String storagePath : storagePaths.tailSet(storagePrefix, true)) {
+                if (!storagePath.startsWith(storagePrefix)) {
+                    break;
+                }
+                candidates.add(storagePath);
+            }
+            return candidates;
+        }
+    }
+
+    /**
+     * Checks that an id returned by {@link #getCandidates(Index, String, Object)} still has the searched value, and
+     * indexes its current value if it hasn't. To be called while holding the lock of the id.
+     *
+     * @param index the index
+     * @param storagePath the storage path of the id
+     * @param value the searched value
+     * @return true if the id has the value
+     * @throws IOException if the stored data cannot be read or the index cannot be written
+     */
+    public boolean check(Index index, String storagePath, Object value) throws IOException
+    {
+        Object current = this.reader.read(storagePath, index.pointer);
+        if (current != null && toJson(value).equals(toJson(current))) {
+            return true;
+        }
+        record(index, storagePath, current != null ? hash(toJson(current)) : REMOVED);
+        return false;
+    }
+
+    /**
+     * Starts the build of an index: the index is emptied and not used anymore until {@link #complete(Index)} is
+     * called. The stored ids then have to be added with {@link #add(Index, String)}.
+     *
+     * @param index the index
+     * @throws IOException if the index cannot be emptied
+     */
+    public void clear(Index index) throws IOException
+    {
+        synchronized (index) {
+            index.complete = false;
+            FileLock lock = lock(index);
+            try {
+                Files.deleteIfExists(index.folder.resolve(COMPLETE_FILE));
+                closeAppendChannel(index);
+                // the lock file is kept, the other processes might be waiting for it
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(index.folder)) {
+                    for (Path file : files) {
+                        if (!file.getFileName().toString().equals(LOCK_FILE)) {
+                            FileUtils.forceDelete(file.toFile());
+                        }
+                    }
+                }
+                index.clear();
+                index.fileKey = null;
+                index.position = 0;
+                index.compactedSize = 0;
+                Files.write(index.folder.resolve(DECLARATION_FILE),
+                    index.toString().getBytes(StandardCharsets.UTF_8));
+            } finally {
+                release(lock);
+            }
+        }
+    }
+
+    /**
+     * Adds a stored id to an index, to be called while holding the lock of the id.
+     *
+     * @param index the index
+     * @param storagePath the storage path of the id
+     * @throws IOException if the indexed value cannot be read or the index cannot be written
+     */
+    public void add(Index index, String storagePath) throws IOException
+    {
+        Object value = this.reader.read(storagePath, index.pointer);
+        record(index, storagePath, value != null ? hash(toJson(value)) : REMOVED);
+    }
+
+    /**
+     * Ends the build of an index, which is used from now on.
+     *
+     * @param index the index
+     * @throws IOException if the index cannot be marked as complete
+     */
+    public void complete(Index index) throws IOException
+    {
+        synchronized (index) {
+            // the postings file is created even if nothing was indexed
+            FileChannel.open(index.file, StandardOpenOption.CREATE, StandardOpenOption.WRITE).close();
+            Files.createFile(index.folder.resolve(COMPLETE_FILE));
+            index.complete = true;
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        for (Index index : this.indexes) {
+            synchronized (index) {
+                closeAppendChannel(index);
+                if (index.lockChannel != null) {
+                    index.lockChannel.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Records the value of a storage path in an index, if it changed.
+     */
+    private void record(Index index, String storagePath, String hash) throws IOException
+    {
+        synchronized (index) {
+            FileLock lock = lock(index);
+            try {
+                if (this.shared) {
+                    read(index);
+                }
+                if (Objects.equals(index.values.get(storagePath), REMOVED.equals(hash) ? null : hash)) {
+                    return;
+                }
+                if (index.appendChannel == null) {
+                    index.appendChannel = FileChannel.open(index.file, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                    index.fileKey = getFileKey(index.file);
+                }
+                ByteBuffer line = ByteBuffer
+                    .wrap(String.join(SEPARATOR, hash, storagePath).concat("\n").getBytes(StandardCharsets.UTF_8));
+                index.position += line.remaining();
+                while (line.hasRemaining()) {
+                    index.appendChannel.write(line);
+                }
+                index.apply(storagePath, hash);
+                if (index.position > Math.max(COMPACTION_MIN_SIZE, index.compactedSize * 2)) {
+                    compact(index);
+                }
+            } finally {
+                release(lock);
+            }
+        }
+    }
+
+    /**
+     * Applies the lines of the postings file which were not read yet, e.g. appended by other processes, or all the
+     * lines if the file was compacted or cleared in the meantime. To be called while holding the lock of the index.
+     */
+    private void read(Index index) throws IOException
+    {
+        Object fileKey = getFileKey(index.file);
+        long size = fileKey != null ? Files.size(index.file) : 0;
+        // the file keys are not supported by all the file systems, a compacted file is then usually smaller
+        if (!Objects.equals(fileKey, index.fileKey) || size < index.position) {
+            closeAppendChannel(index);
+            index.clear();
+            index.position = 0;
+            index.fileKey = fileKey;
+        }
+        if (size <= index.position) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(index.file, StandardOpenOption.READ)) {
+            InputStream input = new BufferedInputStream(Channels.newInputStream(channel.position(index.position)));
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            for (int read = input.read(); read >= 0; read = input.read()) {
+                if (read != '\n') {
+                    line.write(read);
+                    continue;
+                }
+                String[] fields = line.toString(StandardCharsets.UTF_8.name()).split(SEPARATOR, 2);
+                if (fields.length == 2) {
+                    index.apply(fields[1], fields[0]);
+                }
+                // an incomplete last line is read again once it's complete
+                index.position += line.size() + 1;
+                line.reset();
+            }
+        }
+    }
+
+    /**
+     * Rewrites the postings file with only the current values, to be called while holding the lock of the index.
+     */
+    private void compact(Index index) throws IOException
+    {
+        Path temporaryFile = index.file.resolveSibling(POSTINGS_FILE + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temporaryFile, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, String> entry : index.values.entrySet()) {
+                writer.write(String.join(SEPARATOR, entry.getValue(), entry.getKey()));
+                writer.write('\n');
+            }
+        }
+        Files.move(temporaryFile, index.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        closeAppendChannel(index);
+        index.fileKey = getFileKey(index.file);
+        index.position = Files.size(index.file);
+        index.compactedSize = index.position;
+    }
+
+    private void closeAppendChannel(Index index) throws IOException
+    {
+        if (index.appendChannel != null) {
+            index.appendChannel.close();
+            index.appendChannel = null;
+        }
+    }
+
+    /**
+     * @return the lock of the files of the index shared with the other processes, or null if they're not shared
+     */
+    private FileLock lock(Index index) throws IOException
+    {
+        return index.lockChannel != null ? index.lockChannel.lock() : null;
+    }
+
+    private void release(FileLock lock) throws IOException
+    {
+        if (lock != null) {
+            lock.release();
+        }
+    }
+
+    private static Object getFileKey(Path file) throws IOException
+    {
+        try {
+            return Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private static String toJson(Object value) throws IOException
+    {
+        // parse the value first so that any object is serialized as a map, whose members are sorted
+        return MAPPER.writeValueAsString(MAPPER.readValue(MAPPER.writeValueAsBytes(value), Object.class));
+    }
+
+    private static String hash(String value)
+    {
+        return JsonStoreHashes.hash(HASH_ALGORITHM, value);
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore.internal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+
+/**
+ * Append-only journal of the changes made to the permanent directory json store, shared by the processes using the
+ * same store folder (e.g. several XWiki instances with a shared permanent directory). Each process appends a line for
+ * each file it writes or removes, and reads the lines appended by the other processes at a fixed interval, to
+ * invalidate what it keeps in memory about the changed ids. <br>
+ * The lines are {@code <process> <W|D> <extension> <expiration> <storage path>}, the expiration being the one of the
+ * written id (see {@link JsonStoreExpirations}), appended while holding a lock on a file shared by the processes.
+ * When the journal gets bigger than {@link #MAX_SIZE}, it's renamed with the {@code .old} suffix and a new journal is
+ * started: the processes read the rest of the old journal before reading the new one, and reset everything they keep
+ * in memory if they missed a whole journal.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class XWikiPermdirJsonStoreJournal implements Closeable
+{
+    /**
+     * The size after which a new journal is started, in bytes.
+     */
+    public static final long MAX_SIZE = 16L * 1024 * 1024;
+
+    private static final String WRITTEN = "W";
+
+    private static final String REMOVED = "D";
+
+    private static final String SEPARATOR = " ";
+
+    private static final int FIELDS = 5;
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final Path file;
+
+    private final Path oldFile;
+
+    private final Path lockFile;
+
+    private final Listener listener;
+
+    private final Logger logger;
+
+    /**
+     * Identifies the lines appended by this process.
+     */
+    private final String process = UUID.randomUUID().toString();
+
+    private FileChannel lockChannel;
+
+    private FileChannel appendChannel;
+
+    private Object appendKey;
+
+    private FileChannel readChannel;
+
+    private Object readKey;
+
+    /**
+     * The start of the lines read from the read channel but not complete yet.
+     */
+    private ByteBuffer pending = ByteBuffer.allocate(0);
+
+    private ScheduledExecutorService reader;
+
+    /**
+     * Serializes the reads of the journal.
+     */
+    private final Object readLock = new Object();
+
+    /**
+     * Receives the changes made by the other processes.
+     */
+    public interface Listener
+    {
+        /**
+         * Called when a file was written or removed by another process.
+         *
+         * @param storagePath the storage path of the changed id
+         * @param extension the extension of the changed file
+         * @param expiration the expiration time of the written id, or {@link JsonStoreExpirations#NONE}
+         * @param removed true if the file was removed, false if it was written
+         */
+        void changed(String storagePath, String extension, long expiration, boolean removed);
+
+        /**
+         * Called when some changes could not be read, in which case any id may have changed.
+         */
+        void reset();
+    }
+
+    /**
+     * @param file the journal file, shared by the processes
+     * @param lockFile the file locked while appending to the journal or switching to a new journal
+     * @param listener receives the changes made by the other processes
+     * @param logger the logger of the store
+     */
+    public XWikiPermdirJsonStoreJournal(Path file, Path lockFile, Listener listener, Logger logger)
+    {
+        this.file = file;
+        this.oldFile = file.resolveSibling(file.getFileName() + ".old");
+        this.lockFile = lockFile;
+        this.listener = listener;
+        this.logger = logger;
+    }
+
+    /**
+     * Starts reading the changes appended from now on by the other processes.
+     *
+     * @param interval the delay between two reads of the journal, in milliseconds
+     * @throws IOException if the journal cannot be opened
+     */
+    public void start(long interval) throws IOException
+    {
+        Files.createDirectories(this.lockFile.getParent());
+        this.lockChannel =
+            FileChannel.open(this.lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        synchronized (this) {
+            FileLock lock = this.lockChannel.lock();
+            try {
+                openAppendChannel();
+                this.readChannel = FileChannel.open(this.file, StandardOpenOption.READ);
+                this.readChannel.position(this.readChannel.size());
+                this.readKey = this.appendKey;
+            } finally {
+                lock.release();
+            }
+        }
+        this.reader = Executors.newSingleThreadScheduledExecutor(
+            new BasicThreadFactory.Builder().namingPattern("XWiki JSON store journal").daemon(true).build());
+        this.reader.scheduleWithFixedDelay(this::read, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records that a file was written or removed, to be called while holding the lock of the id in all the processes.
+     *
+     * @param storagePath the storage path of the changed id
+     * @param extension the extension of the changed file
+     * @param expiration the expiration time of the written id, or {@link JsonStoreExpirations#NONE}
+     * @param removed true if the file was removed, false if it was written
+     * @throws IOException if the journal cannot be written
+     */
+    public synchronized void append(String storagePath, String extension, long expiration, boolean removed)
+        throws IOException
+    {
+        ByteBuffer line = ByteBuffer.wrap(String.join(SEPARATOR, this.process, removed ? REMOVED : WRITTEN, extension,
+            String.valueOf(expiration), storagePath).concat("\n").getBytes(StandardCharsets.UTF_8));
+        FileLock lock = this.lockChannel.lock();
+        try {
+            // another process might have started a new journal
+            if (!Objects.equals(this.appendKey, getFileKey(this.file))) {
+                this.appendChannel.close();
+                openAppendChannel();
+            }
+            while (line.hasRemaining()) {
+                this.appendChannel.write(line);
+            }
+            if (this.appendChannel.size() > MAX_SIZE) {
+                Files.move(this.file, this.oldFile, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+                this.appendChannel.close();
+                openAppendChannel();
+            }
+        } finally {
+            lock.release();
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (this.reader != null) {
+            this.reader.shutdown();
+            try {
+                this.reader.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (this) {
+                this.readChannel.close();
+                this.appendChannel.close();
+                this.lockChannel.close();
+            }
+        }
+    }
+
+    private void openAppendChannel() throws IOException
+    {
+        this.appendChannel =
+            FileChannel.open(this.file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.appendKey = getFileKey(this.file);
+    }
+
+    private Object getFileKey(Path path) throws IOException
+    {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the lines appended since the previous read, and switches to the new journal if another one was started.
+     * Called at a fixed interval, and right away when a change made by another process must not be missed (e.g. before
+     * removing an expired id).
+     */
+    public void read()
+    {
+        synchronized (this.readLock) {
+            readJournal();
+        }
+    }
+
+    private void readJournal()
+    {
+        try {
+            Object currentKey = getFileKey(this.file);
+            boolean switched = !Objects.equals(this.readKey, currentKey);
+            // the old journal is complete once a new one is started
+            readLines();
+            if (switched) {
+                if (!Objects.equals(this.readKey, getFileKey(this.oldFile))) {
+                    this.logger.warn("Missed some changes of the json store journal, resetting the data in memory");
+                    this.listener.reset();
+                }
+                synchronized (this) {
+                    FileLock lock = this.lockChannel.lock();
+                    try {
+                        this.readChannel.close();
+                        this.readChannel = FileChannel.open(this.file, StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE, StandardOpenOption.READ);
+                        this.readKey = getFileKey(this.file);
+                        this.pending = ByteBuffer.allocate(0);
+                    } finally {
+                        lock.release();
+                    }
+                }
+                readLines();
+            }
+        } catch (Exception e) {
+            this.logger.warn("Failed to read the json store journal", e);
+        }
+    }
+
+    private void readLines() throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        while (this.readChannel.read(buffer) > 0) {
+            buffer.flip();
+            ByteBuffer data = ByteBuffer.allocate(this.pending.remaining() + buffer.remaining());
+            data.put(this.pending).put(buffer).flip();
+            int start = 0;
+            for (int i = 0; i < data.limit(); i++) {
+                if (data.get(i) == '\n') {
+                    readLine(new String(data.array(), start, i - start, StandardCharsets.UTF_8));
+                    start = i + 1;
+                }
+            }
+            data.position(start);
+            this.pending = data.slice();
+            buffer.clear();
+        }
+    }
+
+    private void readLine(String line)
+    {
+        String[] fields = line.split(SEPARATOR, FIELDS);
+        if (fields.length == FIELDS && !this.process.equals(fields[0])) {
+            try {
+                this.listener.changed(fields[4], fields[2], Long.parseLong(fields[3]), REMOVED.equals(fields[1]));
+            } catch (NumberFormatException e) {
+                this.logger.debug("Ignoring the invalid line [{}] of the json store journal", line);
+            }
+        }
+    }
+}
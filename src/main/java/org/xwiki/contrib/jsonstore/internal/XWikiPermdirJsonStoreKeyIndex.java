@@ -0,0 +1,354 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore.internal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.commons.io.FilenameUtils;
+import org.slf4j.Logger;
+
+/**
+ * In memory index of all the ids stored in the permanent directory json store, in any layout, allowing to check whether
+ * an id is stored without accessing the file system. The index is built in the background by a parallel walk of the
+ * store folder and is kept up to date by the store for its own writes and by a {@link WatchService} for the changes
+ * made to the folder from outside. Until it's built ({@link #isReady()}), the store has to check the file system. <br>
+ * Each folder of the store is watched, and the number of watched folders is limited by the operating system (e.g. by
+ * {@code fs.inotify.max_user_watches} on Linux): if a folder cannot be watched or listed, the index would miss some
+ * changes, so it's disabled and never ready.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class XWikiPermdirJsonStoreKeyIndex implements Closeable
+{
+    private static final String PATH_SEPARATOR = "/";
+
+    private final Path root;
+
+    private final Collection<String> extensions;
+
+    private final Logger logger;
+
+    /**
+     * The extension of the stored file, by storage path of the id.
+     */
+    private final Map<String, String> keys = new ConcurrentHashMap<>();
+
+    private final Map<WatchKey, Path> watchedDirectories = new ConcurrentHashMap<>();
+
+    /**
+     * The watch keys of the registered directories, kept until the removal of the directory is reported by its parent
+     * directory, even if the key of the removed directory was invalidated first.
+     */
+    private final Map<Path, WatchKey> directoryKeys = new ConcurrentHashMap<>();
+
+    private volatile boolean ready;
+
+    /**
+     * Whether a folder could not be watched or listed, in which case the index is not used anymore.
+     */
+    private volatile boolean disabled;
+
+    private WatchService watchService;
+
+    private ForkJoinPool pool;
+
+    /**
+     * @param root the folder of the store
+     * @param extensions the extensions of the files of the store, other files are ignored
+     * @param logger the logger of the store
+     */
+    public XWikiPermdirJsonStoreKeyIndex(Path root, Collection<String> extensions, Logger logger)
+    {
+        this.root = root;
+        this.extensions = extensions;
+        this.logger = logger;
+    }
+
+    /**
+     * Starts building the index and watching the changes in the background.
+     *
+     * @throws IOException if the store folder cannot be created or watched
+     */
+    public void start() throws IOException
+    {
+        Files.createDirectories(this.root);
+        this.watchService = this.root.getFileSystem().newWatchService();
+        this.pool = new ForkJoinPool();
+        Thread watcher = new Thread(this::run, "XWiki JSON store key index");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * @return true if the index is built, false if the file system should be checked instead
+     */
+    public boolean isReady()
+    {
+        return this.ready;
+    }
+
+    /**
+     * @param storagePath the storage path of an id
+     * @return the extension of the file stored for this path, or null if nothing is stored
+     */
+    public String getExtension(String storagePath)
+    {
+        return this.keys.get(storagePath);
+    }
+
+    /**
+     * Records that a file was written for a storage path.
+     *
+     * @param storagePath the storage path of an id
+     * @param extension the extension of the written file
+     */
+    public void put(String storagePath, String extension)
+    {
+        this.keys.put(storagePath, extension);
+    }
+
+    /**
+     * Records that a file was removed for a storage path, if it's the one recorded in the index.
+     *
+     * @param storagePath the storage path of an id
+     * @param extension the extension of the removed file
+     */
+    public void remove(String storagePath, String extension)
+    {
+        this.keys.remove(storagePath, extension);
+    }
+
+    /**
+     * @return the number of ids in the index
+     */
+    public int size()
+    {
+        return this.keys.size();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        this.ready = false;
+        if (this.watchService != null) {
+            this.watchService.close();
+            this.pool.shutdown();
+        }
+    }
+
+    private void run()
+    {
+        build();
+        try {
+            while (!this.disabled) {
+                WatchKey key = this.watchService.take();
+                Path directory = this.watchedDirectories.get(key);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        this.logger.warn("Too many changes in the json store folder, rebuilding the key index");
+                        build();
+                    } else if (directory != null) {
+                        reconcile(directory.resolve((Path) event.context()),
+                            event.kind() == StandardWatchEventKinds.ENTRY_CREATE);
+                    }
+                }
+                if (!key.reset()) {
+                    this.watchedDirectories.remove(key);
+                }
+            }
+            // the watched folders are released
+            this.watchService.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // the index was closed
+        } catch (IOException e) {
+            this.logger.warn("Failed to stop watching the json store folder", e);
+        }
+    }
+
+    private void build()
+    {
+        this.ready = false;
+        this.keys.clear();
+        long start = System.currentTimeMillis();
+        walk(this.root);
+        if (this.disabled) {
+            return;
+        }
+        this.ready = true;
+        this.logger.info("Indexed [{}] json store ids in [{}] ms", this.keys.size(),
+            System.currentTimeMillis() - start);
+    }
+
+    private void walk(Path directory)
+    {
+        this.pool.invoke(new IndexDirectoryTask(directory));
+    }
+
+    /**
+     * Updates the index according to the current state of a path reported as changed by the watch service.
+     */
+    private void reconcile(Path path, boolean created)
+    {
+        if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            if (created) {
+                // files could have been created in the new directory before it was watched
+                walk(path);
+            }
+        } else if (Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+            addFile(path);
+        } else if (this.directoryKeys.containsKey(path)) {
+            removeDirectory(path);
+        } else if (!isHidden(path)) {
+            String relativePath = getRelativePath(path);
+            String extension = FilenameUtils.getExtension(relativePath);
+            if (this.extensions.contains(extension)) {
+                String storagePath = XWikiPermdirJsonStoreLayout.unshard(FilenameUtils.removeExtension(relativePath));
+                // the store might have written the file again in the meantime, or moved it to the other layout
+                if (this.keys.remove(storagePath, extension) && (Files.exists(path, LinkOption.NOFOLLOW_LINKS)
+                    || Files.exists(this.root.resolve(storagePath + '.' + extension), LinkOption.NOFOLLOW_LINKS)
+                    || Files.exists(this.root.resolve(XWikiPermdirJsonStoreLayout.shard(storagePath) + '.' + extension),
+                        LinkOption.NOFOLLOW_LINKS))) {
+                    this.keys.put(storagePath, extension);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the ids stored in a removed directory, which might be a shard directory, and forgets its sub
+     * directories.
+     */
+    private void removeDirectory(Path directory)
+    {
+        this.directoryKeys.keySet().removeIf(watched -> watched.startsWith(directory));
+        String prefix = getRelativePath(directory) + PATH_SEPARATOR;
+        this.keys.keySet().removeIf(storagePath -> storagePath.startsWith(prefix)
+            || XWikiPermdirJsonStoreLayout.shard(storagePath).startsWith(prefix));
+    }
+
+    private void addFile(Path file)
+    {
+        String extension = FilenameUtils.getExtension(file.getFileName().toString());
+        if (!isHidden(file) && this.extensions.contains(extension)) {
+            this.keys.putIfAbsent(
+                XWikiPermdirJsonStoreLayout.unshard(FilenameUtils.removeExtension(getRelativePath(file))), extension);
+        }
+    }
+
+    /**
+     * Hidden files are the temporary or technical files of the store, such as the temporary file of each write.
+     */
+    private boolean isHidden(Path file)
+    {
+        return file.getFileName().toString().startsWith(".");
+    }
+
+    private String getRelativePath(Path path)
+    {
+        return FilenameUtils.separatorsToUnix(this.root.relativize(path).toString());
+    }
+
+    private void register(Path directory) throws IOException
+    {
+        WatchKey key = directory.register(this.watchService, StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        this.watchedDirectories.put(key, directory);
+        this.directoryKeys.put(directory, key);
+    }
+
+    /**
+     * Stops using the index, which might miss the changes of a folder.
+     */
+    private synchronized void disable(Path directory, IOException e)
+    {
+        if (!this.disabled) {
+            this.disabled = true;
+            this.ready = false;
+            // e.g. the maximum number of watched folders of the system is too low for the store
+            this.logger.warn("Failed to index the json store folder [{}], the key index is disabled and the file system"
+                + " is checked instead", directory, e);
+        }
+    }
+
+    /**
+     * Indexes the files of a directory and forks the indexing of its sub directories.
+     */
+    private final class IndexDirectoryTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final transient Path directory;
+
+        IndexDirectoryTask(Path directory)
+        {
+            this.directory = directory;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (disabled) {
+                return;
+            }
+            List<IndexDirectoryTask> subdirectories = new ArrayList<>();
+            try {
+                // register before listing, so that no file created in the meantime is missed
+                register(this.directory);
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.directory)) {
+                    for (Path child : stream) {
+                        if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                            subdirectories.add(new IndexDirectoryTask(child));
+                        } else {
+                            addFile(child);
+                        }
+                    }
+                }
+            } catch (NoSuchFileException e) {
+                // removed meanwhile
+                return;
+            } catch (IOException e) {
+                disable(this.directory, e);
+                return;
+            }
+            invokeAll(subdirectories);
+        }
+    }
+}
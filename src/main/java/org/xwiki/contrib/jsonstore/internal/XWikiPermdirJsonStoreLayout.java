@@ -0,0 +1,116 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore.internal;
+
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * The sharded layout of the permanent directory json store, in which the files are stored in two levels of 256
+ * sub-folders of their folder, derived from a hash of their name: the data of the id {@code sessions/session-xyz} is
+ * stored in {@code sessions/3f/9c/session-xyz.json}. This avoids folders with hundreds of thousands of files when the
+ * ids are flat. The shard folders of a file are recognized by matching the hash of its name, so both layouts can be
+ * read from the same store.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public final class XWikiPermdirJsonStoreLayout
+{
+    private static final char PATH_SEPARATOR = '/';
+
+    private static final int SHARD_NAME_LENGTH = 2;
+
+    private XWikiPermdirJsonStoreLayout()
+    {
+        // utility class
+    }
+
+    /**
+     * @param storagePath the storage path of an id
+     * @return the path of the id in the sharded layout
+     */
+    public static String shard(String storagePath)
+    {
+        int separator = storagePath.lastIndexOf(PATH_SEPARATOR);
+        String name = storagePath.substring(separator + 1);
+        return storagePath.substring(0, separator + 1) + getShardPath(name) + name;
+    }
+
+    /**
+     * @param path the path of a file, relative to the store and without extension, in any of the layouts
+     * @return the storage path of the id stored in the file
+     */
+    public static String unshard(String path)
+    {
+        int nameStart = path.lastIndexOf(PATH_SEPARATOR) + 1;
+        String name = path.substring(nameStart);
+        String shardPath = getShardPath(name);
+        if (nameStart >= shardPath.length() && path.startsWith(shardPath, nameStart - shardPath.length())
+            && (nameStart == shardPath.length() || path.charAt(nameStart - shardPath.length() - 1) == PATH_SEPARATOR)) {
+            return path.substring(0, nameStart - shardPath.length()) + name;
+        }
+        return path;
+    }
+
+    /**
+     * @param folderPath the path of a folder, relative to the store, ending with a separator
+     * @param name the name of a file of the folder, without extension
+     * @return true if the folder is a shard folder of the file, in which case the file belongs to the grand parent
+     *         folder
+     */
+    public static boolean isShardOf(String folderPath, String name)
+    {
+        String shardPath = getShardPath(name);
+        return folderPath.endsWith(shardPath) && (folderPath.length() == shardPath.length()
+            || folderPath.charAt(folderPath.length() - shardPath.length() - 1) == PATH_SEPARATOR);
+    }
+
+    /**
+     * @param name the name of a folder
+     * @return true if the folder can be a shard folder
+     */
+    public static boolean isShardName(String name)
+    {
+        if (name.length() != SHARD_NAME_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < SHARD_NAME_LENGTH; i++) {
+            if (!JsonStoreHashes.isHexDigit(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param name the name of the file of an id
+     * @return the path of the shard folders of the file, relative to the folder of the id, ending with a separator
+     */
+    private static String getShardPath(String name)
+    {
+        CRC32 hash = new CRC32();
+        hash.update(name.getBytes(StandardCharsets.UTF_8));
+        int value = (int) hash.getValue();
+        return new String(new char[] { JsonStoreHashes.toHexDigit(value >>> 4), JsonStoreHashes.toHexDigit(value),
+            PATH_SEPARATOR, JsonStoreHashes.toHexDigit(value >>> 12), JsonStoreHashes.toHexDigit(value >>> 8),
+            PATH_SEPARATOR });
+    }
+}
@@ -0,0 +1,390 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.apache.commons.io.input.ProxyInputStream;
+import org.apache.commons.io.output.ProxyOutputStream;
+
+/**
+ * The metrics of the permanent directory json store. All the counters are lock free so that recording the metrics of
+ * an operation costs a few additions and clock reads.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class XWikiPermdirJsonStoreMetrics implements XWikiPermdirJsonStoreMetricsMXBean
+{
+    /**
+     * The JMX name of the metrics, followed by the hint of the store.
+     */
+    public static final String OBJECT_NAME_PREFIX = "org.xwiki.contrib.jsonstore:type=JsonStore,name=";
+
+    private static final int LARGEST_DOCUMENTS = 10;
+
+    private final JsonStoreLatencyHistogram persist = new JsonStoreLatencyHistogram();
+
+    private final JsonStoreLatencyHistogram persistSerialization = new JsonStoreLatencyHistogram();
+
+    private final JsonStoreLatencyHistogram persistIO = new JsonStoreLatencyHistogram();
+
+    private final JsonStoreLatencyHistogram read = new JsonStoreLatencyHistogram();
+
+    private final JsonStoreLatencyHistogram readSerialization = new JsonStoreLatencyHistogram();
+
+    private final JsonStoreLatencyHistogram readIO = new JsonStoreLatencyHistogram();
+
+    private final JsonStoreLatencyHistogram exists = new JsonStoreLatencyHistogram();
+
+    private final LongAdder bytesRead = new LongAdder();
+
+    private final LongAdder bytesWritten = new LongAdder();
+
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+
+    /**
+     * The biggest written files, by id.
+     */
+    private final Map<String, Long> largestDocuments = new LinkedHashMap<>();
+
+    /**
+     * The size of the smallest of the largest documents, once there are enough of them: smaller files are ignored
+     * without locking.
+     */
+    private volatile long largestDocumentsThreshold;
+
+    /**
+     * The time spent and the bytes transferred by an operation of the store, recorded by the thread running it.
+     */
+    public final class Operation
+    {
+        private final long start = System.nanoTime();
+
+        private long serialization;
+
+        private long io;
+
+        private long streamed;
+
+        private long bytes;
+
+        private Operation()
+        {
+        }
+
+        /**
+         * @param nanos time spent serializing or parsing data, in nanoseconds
+         */
+        public void addSerialization(long nanos)
+        {
+            this.serialization += nanos;
+        }
+
+        /**
+         * @param nanos time spent accessing files, in nanoseconds
+         */
+        public void addIO(long nanos)
+        {
+            this.io += nanos;
+        }
+
+        /**
+         * @return the time spent reading or writing the streams returned by {@link #meter(InputStream)} and
+         *         {@link #meter(OutputStream)}, in nanoseconds
+         */
+        public long getStreamed()
+        {
+            return this.streamed;
+        }
+
+        /**
+         * @return the number of bytes read or written through the metered streams
+         */
+        public long getBytes()
+        {
+            return this.bytes;
+        }
+
+        /**
+         * @param input the stream of a stored file
+         * @return a stream counting the time spent reading and the bytes read from the file
+         */
+        public InputStream meter(InputStream input)
+        {
+            return new ProxyInputStream(input)
+            {
+                private long before;
+
+                @Override
+                protected void beforeRead(int n)
+                {
+                    this.before = System.nanoTime();
+                }
+
+                @Override
+                protected void afterRead(int n)
+                {
+                    streamed += System.nanoTime() - this.before;
+                    if (n > 0) {
+                        bytes += n;
+                        bytesRead.add(n);
+                    }
+                }
+            };
+        }
+
+        /**
+         * Counts the bytes written through {@link #meter(OutputStream)} as written in the store, to be called once they
+         * are stored, e.g. unlike the bytes of unchanged data which is compared with the stored file but not written.
+         */
+        public void stored()
+        {
+            bytesWritten.add(this.bytes);
+        }
+
+        /**
+         * @param output the stream of a stored file
+         * @return a stream counting the time spent writing the file and the bytes written, only counted as written in
+         *         the store once {@link #stored()} is called
+         */
+        public OutputStream meter(OutputStream output)
+        {
+            return new ProxyOutputStream(output)
+            {
+                private long before;
+
+                @Override
+                protected void beforeWrite(int n)
+                {
+                    this.before = System.nanoTime();
+                }
+
+                @Override
+                protected void afterWrite(int n)
+                {
+                    streamed += System.nanoTime() - this.before;
+                    bytes += n;
+                }
+
+                @Override
+                public void close() throws IOException
+                {
+                    long beforeClose = System.nanoTime();
+                    super.close();
+                    streamed += System.nanoTime() - beforeClose;
+                }
+            };
+        }
+    }
+
+    /**
+     * @param hint the hint of the store
+     * @return the JMX name of the metrics of the store
+     * @throws MalformedObjectNameException if the hint is not valid in a JMX name
+     */
+    public static ObjectName getObjectName(String hint) throws MalformedObjectNameException
+    {
+        return new ObjectName(OBJECT_NAME_PREFIX + hint);
+    }
+
+    /**
+     * @return a new operation, started now
+     */
+    public Operation start()
+    {
+        return new Operation();
+    }
+
+    /**
+     * Records a completed {@code persistAsJson}.
+     *
+     * @param operation the operation
+     * @param id the written id
+     */
+    public void persisted(Operation operation, String id)
+    {
+        this.persist.record(System.nanoTime() - operation.start);
+        this.persistSerialization.record(operation.serialization);
+        this.persistIO.record(operation.io);
+        written(operation, id);
+    }
+
+    /**
+     * Records a write of a file which is not the result of {@code persistAsJson} (e.g. a patch).
+     *
+     * @param operation the operation
+     * @param id the written id
+     */
+    public void written(Operation operation, String id)
+    {
+        long size = operation.bytes;
+        if (size <= this.largestDocumentsThreshold) {
+            return;
+        }
+        synchronized (this.largestDocuments) {
+            this.largestDocuments.merge(id, size, Math::max);
+            if (this.largestDocuments.size() > LARGEST_DOCUMENTS) {
+                this.largestDocuments.entrySet().stream().min(Map.Entry.comparingByValue())
+                    .ifPresent(smallest -> this.largestDocuments.remove(smallest.getKey()));
+            }
+            if (this.largestDocuments.size() == LARGEST_DOCUMENTS) {
+                this.largestDocumentsThreshold = this.largestDocuments.values().stream().min(Long::compare).get();
+            }
+        }
+    }
+
+    /**
+     * Records a completed {@code getFromJsonStore}.
+     *
+     * @param operation the operation
+     */
+    public void read(Operation operation)
+    {
+        this.read.record(System.nanoTime() - operation.start);
+        if (operation.bytes > 0) {
+            this.readSerialization.record(operation.serialization);
+            this.readIO.record(operation.io);
+        }
+    }
+
+    /**
+     * Records a completed {@code exists}.
+     *
+     * @param operation the operation
+     */
+    public void checked(Operation operation)
+    {
+        this.exists.record(System.nanoTime() - operation.start);
+    }
+
+    /**
+     * Records a failed operation.
+     *
+     * @param error the reason of the failure
+     */
+    public void failed(Throwable error)
+    {
+        this.errors.computeIfAbsent(error.getClass().getName(), name -> new LongAdder()).increment();
+    }
+
+    @Override
+    public JsonStoreLatencyStatistics getPersistLatency()
+    {
+        return this.persist.getStatistics();
+    }
+
+    @Override
+    public JsonStoreLatencyStatistics getPersistSerializationLatency()
+    {
+        return this.persistSerialization.getStatistics();
+    }
+
+    @Override
+    public JsonStoreLatencyStatistics getPersistIOLatency()
+    {
+        return this.persistIO.getStatistics();
+    }
+
+    @Override
+    public JsonStoreLatencyStatistics getReadLatency()
+    {
+        return this.read.getStatistics();
+    }
+
+    @Override
+    public JsonStoreLatencyStatistics getReadSerializationLatency()
+    {
+        return this.readSerialization.getStatistics();
+    }
+
+    @Override
+    public JsonStoreLatencyStatistics getReadIOLatency()
+    {
+        return this.readIO.getStatistics();
+    }
+
+    @Override
+    public JsonStoreLatencyStatistics getExistsLatency()
+    {
+        return this.exists.getStatistics();
+    }
+
+    @Override
+    public long getBytesRead()
+    {
+        return this.bytesRead.sum();
+    }
+
+    @Override
+    public long getBytesWritten()
+    {
+        return this.bytesWritten.sum();
+    }
+
+    @Override
+    public Map<String, Long> getLargestDocuments()
+    {
+        Map<String, Long> largest = new LinkedHashMap<>();
+        synchronized (this.largestDocuments) {
+            this.largestDocuments.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue(Comparator.reverseOrder()))
+                .forEach(entry -> largest.put(entry.getKey(), entry.getValue()));
+        }
+        return largest;
+    }
+
+    @Override
+    public Map<String, Long> getErrors()
+    {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        this.errors.forEach((type, count) -> counts.put(type, count.sum()));
+        return counts;
+    }
+
+    @Override
+    public void reset()
+    {
+        this.persist.reset();
+        this.persistSerialization.reset();
+        this.persistIO.reset();
+        this.read.reset();
+        this.readSerialization.reset();
+        this.readIO.reset();
+        this.exists.reset();
+        this.bytesRead.reset();
+        this.bytesWritten.reset();
+        this.errors.clear();
+        synchronized (this.largestDocuments) {
+            this.largestDocuments.clear();
+            this.largestDocumentsThreshold = 0;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore.internal;
+
+import java.util.Map;
+
+/**
+ * The metrics of the permanent directory json store, exposed through JMX as
+ * {@value XWikiPermdirJsonStoreMetrics#OBJECT_NAME_PREFIX} followed by the hint of the store. The latencies are split
+ * between the time spent serializing or parsing the data and the time spent reading or writing the files, the
+ * latencies of the reads served from the cache only being counted in the total latency of the reads.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public interface XWikiPermdirJsonStoreMetricsMXBean
+{
+    /**
+     * @return the total latency of {@code persistAsJson}
+     */
+    JsonStoreLatencyStatistics getPersistLatency();
+
+    /**
+     * @return the time spent by {@code persistAsJson} serializing the data
+     */
+    JsonStoreLatencyStatistics getPersistSerializationLatency();
+
+    /**
+     * @return the time spent by {@code persistAsJson} looking up and writing the files
+     */
+    JsonStoreLatencyStatistics getPersistIOLatency();
+
+    /**
+     * @return the total latency of {@code getFromJsonStore}
+     */
+    JsonStoreLatencyStatistics getReadLatency();
+
+    /**
+     * @return the time spent by {@code getFromJsonStore} parsing the files
+     */
+    JsonStoreLatencyStatistics getReadSerializationLatency();
+
+    /**
+     * @return the time spent by {@code getFromJsonStore} looking up and reading the files
+     */
+    JsonStoreLatencyStatistics getReadIOLatency();
+
+    /**
+     * @return the latency of {@code exists}, which only looks up files
+     */
+    JsonStoreLatencyStatistics getExistsLatency();
+
+    /**
+     * @return the number of bytes read from the stored files, as stored (i.e. compressed if they are)
+     */
+    long getBytesRead();
+
+    /**
+     * @return the number of bytes written in the stored files, as stored (i.e. compressed if they are)
+     */
+    long getBytesWritten();
+
+    /**
+     * @return the ids of the biggest files written since the start or the last reset, with their size in bytes
+     */
+    Map<String, Long> getLargestDocuments();
+
+    /**
+     * @return the number of failed operations, by class of the exception thrown
+     */
+    Map<String, Long> getErrors();
+
+    /**
+     * Forgets all the recorded metrics.
+     */
+    void reset();
+}
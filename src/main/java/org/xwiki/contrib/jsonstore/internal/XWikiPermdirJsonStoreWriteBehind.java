@@ -0,0 +1,214 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore.internal;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+
+/**
+ * Pending writes of the permanent directory json store, when the writes are done in the background. Only the last
+ * pending write of an id is kept, so that successive writes of an id before the flush result in a single write on
+ * disk. The modifications of the pending writes of an id are expected to be done while holding the lock of the id.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class XWikiPermdirJsonStoreWriteBehind
+{
+    /**
+     * The pending writes, by storage path.
+     */
+    private final Map<String, PendingWrite> pending = new ConcurrentHashMap<>();
+
+    private final int maxPending;
+
+    private final Consumer<String> flusher;
+
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Whether the pending writes were flushed for the last time, no write can be added anymore.
+     */
+    private boolean closed;
+
+    /**
+     * A serialized data waiting to be written on disk.
+     */
+    public static final class PendingWrite
+    {
+        private final String id;
+
+        private final byte[] content;
+
+        private final CompletableFuture<Boolean> future = new CompletableFuture<>();
+
+        PendingWrite(String id, byte[] content)
+        {
+            this.id = id;
+            this.content = content;
+        }
+
+        /**
+         * @return the id of the data
+         */
+        public String getId()
+        {
+            return this.id;
+        }
+
+        /**
+         * @return the data, serialized in the format of the store
+         */
+        public byte[] getContent()
+        {
+            return this.content;
+        }
+
+        /**
+         * @param written whether the data was written
+         */
+        public void complete(boolean written)
+        {
+            this.future.complete(written);
+        }
+
+        /**
+         * @param failure the reason why the data could not be written
+         */
+        public void fail(Throwable failure)
+        {
+            this.future.completeExceptionally(failure);
+        }
+    }
+
+    /**
+     * @param flushInterval the delay between two flushes of the pending writes, in milliseconds
+     * @param maxPending the maximum number of pending writes
+     * @param flusher writes the pending write of a storage path and removes it
+     */
+    public XWikiPermdirJsonStoreWriteBehind(long flushInterval, int maxPending, Consumer<String> flusher)
+    {
+        this.maxPending = maxPending;
+        this.flusher = flusher;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+            new BasicThreadFactory.Builder().namingPattern("XWiki JSON store write behind").daemon(true).build());
+        this.scheduler.scheduleWithFixedDelay(this::flushAll, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param storagePath the storage path of an id
+     * @return the pending write of the id, null if there is none
+     */
+    public PendingWrite get(String storagePath)
+    {
+        return this.pending.get(storagePath);
+    }
+
+    /**
+     * @return the storage paths of the ids having a pending write
+     */
+    public Set<String> getStoragePaths()
+    {
+        return this.pending.keySet();
+    }
+
+    /**
+     * @return true if no new id should be added to the pending writes
+     */
+    public boolean isFull()
+    {
+        return this.pending.size() >= this.maxPending;
+    }
+
+    /**
+     * Adds a pending write, replacing the pending write of the same id if any. The future of the replaced write is
+     * completed with the result of the new one.
+     *
+     * @param storagePath the storage path of the id
+     * @param id the id of the data
+     * @param content the serialized data
+     * @return the future completed when the data is written, or null if the pending writes were closed and the data
+     *         has to be written right away
+     */
+    public CompletableFuture<Boolean> add(String storagePath, String id, byte[] content)
+    {
+        PendingWrite write = new PendingWrite(id, content);
+        PendingWrite replaced;
+        // the writes added before the close are flushed by it
+        synchronized (this) {
+            if (this.closed) {
+                return null;
+            }
+            replaced = this.pending.put(storagePath, write);
+        }
+        if (replaced != null) {
+            write.future.whenComplete((written, failure) -> {
+                if (failure != null) {
+                    replaced.fail(failure);
+                } else {
+                    replaced.complete(written);
+                }
+            });
+        }
+        return write.future;
+    }
+
+    /**
+     * @param storagePath the storage path of the id
+     * @param write the pending write to remove, if it's still the pending write of the id
+     */
+    public void remove(String storagePath, PendingWrite write)
+    {
+        this.pending.remove(storagePath, write);
+    }
+
+    /**
+     * Writes all the pending writes.
+     */
+    public void flushAll()
+    {
+        for (String storagePath : this.pending.keySet()) {
+            this.flusher.accept(storagePath);
+        }
+    }
+
+    /**
+     * Stops the background flushes and writes all the pending writes.
+     *
+     * @throws InterruptedException if interrupted while waiting for the running flush to finish
+     */
+    public void close() throws InterruptedException
+    {
+        synchronized (this) {
+            this.closed = true;
+        }
+        this.scheduler.shutdown();
+        this.scheduler.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        flushAll();
+    }
+}
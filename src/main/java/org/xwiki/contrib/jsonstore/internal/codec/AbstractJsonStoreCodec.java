@@ -0,0 +1,193 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore.internal.codec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+import org.apache.commons.io.IOUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.Version;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+
+/**
+ * Base class for the codecs, building once the object mapper for a given Jackson factory (technique from
+ * org.xwiki.velocity.tools.JSONTool) and keeping the readers and writers created from it.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public abstract class AbstractJsonStoreCodec implements JsonStoreCodec
+{
+    private final String fileExtension;
+
+    private final ObjectReader reader;
+
+    private final ObjectWriter writer;
+
+    /**
+     * Used to transcode the data to JSON, null if the format is JSON.
+     */
+    private final JsonFactory jsonFactory;
+
+    /**
+     * @param factory the Jackson factory of the format
+     * @param fileExtension the extension of the files written in this format
+     */
+    protected AbstractJsonStoreCodec(JsonFactory factory, String fileExtension)
+    {
+        this.fileExtension = fileExtension;
+
+        ObjectMapper mapper = new ObjectMapper(factory);
+        // org.json objects can be written as raw values only by textual formats, binary formats need the structure
+        boolean raw = !factory.canHandleBinaryNatively();
+        SimpleModule m = new SimpleModule("org.json.* serializer", new Version(1, 0, 0, "", "org.json", "json"));
+        m.addSerializer(JSONObject.class, new JSONObjectSerializer(raw));
+        m.addSerializer(JSONArray.class, new JSONArraySerializer(raw));
+        mapper.registerModule(m);
+
+        this.reader = mapper.readerFor(Object.class);
+        this.writer = mapper.writer();
+        this.jsonFactory = JsonFactory.FORMAT_NAME_JSON.equals(factory.getFormatName()) ? null : new JsonFactory();
+    }
+
+    @Override
+    public String getFileExtension()
+    {
+        return this.fileExtension;
+    }
+
+    @Override
+    public ObjectReader getReader()
+    {
+        return this.reader;
+    }
+
+    @Override
+    public ObjectWriter getWriter()
+    {
+        return this.writer;
+    }
+
+    @Override
+    public ByteBuffer toJson(ByteBuffer content) throws IOException
+    {
+        if (this.jsonFactory == null) {
+            return content;
+        }
+        ByteArrayOutputStream json = new ByteArrayOutputStream(content.remaining());
+        copyAsJson(new ByteBufferBackedInputStream(content.duplicate()), json);
+        return ByteBuffer.wrap(json.toByteArray());
+    }
+
+    @Override
+    public void copyAsJson(InputStream content, OutputStream json) throws IOException
+    {
+        if (this.jsonFactory == null) {
+            IOUtils.copy(content, json);
+            return;
+        }
+        // the parser and the generator don't close the passed streams
+        try (JsonParser parser =
+            this.reader.getFactory().createParser(content).disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+            JsonGenerator generator =
+                this.jsonFactory.createGenerator(json).disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)) {
+            while (parser.nextToken() != null) {
+                generator.copyCurrentStructure(parser);
+            }
+        }
+    }
+
+    private static void serializeValue(Object value, JsonGenerator jgen, SerializerProvider provider)
+        throws IOException
+    {
+        if (JSONObject.NULL.equals(value)) {
+            jgen.writeNull();
+        } else {
+            provider.defaultSerializeValue(value, jgen);
+        }
+    }
+
+    static class JSONObjectSerializer extends JsonSerializer<JSONObject>
+    {
+        private final boolean raw;
+
+        JSONObjectSerializer(boolean raw)
+        {
+            this.raw = raw;
+        }
+
+        @Override
+        public void serialize(JSONObject value, JsonGenerator jgen, SerializerProvider provider) throws IOException
+        {
+            if (this.raw) {
+                jgen.writeRawValue(value.toString());
+            } else {
+                jgen.writeStartObject();
+                Iterator<String> keys = value.keys();
+                while (keys.hasNext()) {
+                    String key = keys.next();
+                    jgen.writeFieldName(key);
+                    serializeValue(value.opt(key), jgen, provider);
+                }
+                jgen.writeEndObject();
+            }
+        }
+    }
+
+    static class JSONArraySerializer extends JsonSerializer<JSONArray>
+    {
+        private final boolean raw;
+
+        JSONArraySerializer(boolean raw)
+        {
+            this.raw = raw;
+        }
+
+        @Override
+        public void serialize(JSONArray value, JsonGenerator jgen, SerializerProvider provider) throws IOException
+        {
+            if (this.raw) {
+                jgen.writeRawValue(value.toString());
+            } else {
+                jgen.writeStartArray();
+                for (int i = 0; i < value.length(); i++) {
+                    serializeValue(value.opt(i), jgen, provider);
+                }
+                jgen.writeEndArray();
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore.internal.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import org.xwiki.component.annotation.Role;
+
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+/**
+ * Format in which the json store data is written on disk. Implementations hold pre-built, thread safe reader and writer
+ * instances, so that the serializers caches are shared between all the calls to the store. The hint of the component
+ * is the name of the format, used in the configuration of the store.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+@Role
+public interface JsonStoreCodec
+{
+    /**
+     * @return the extension (without the dot) of the files written in this format, used to detect the format of a
+     *         stored file when reading it back
+     */
+    String getFileExtension();
+
+    /**
+     * @return a reader parsing the data as a generic object (maps, lists and values)
+     */
+    ObjectReader getReader();
+
+    /**
+     * @return a writer serializing any object in this format
+     */
+    ObjectWriter getWriter();
+
+    /**
+     * @param content data serialized in this format
+     * @return the same data serialized as JSON in UTF-8, which is the passed buffer itself if this format is JSON
+     * @throws IOException if the data cannot be parsed
+     */
+    ByteBuffer toJson(ByteBuffer content) throws IOException;
+
+    /**
+     * Streams data serialized in this format as JSON, without holding the whole data in memory.
+     *
+     * @param content data serialized in this format, which is not closed
+     * @param json the stream in which to write the same data serialized as JSON in UTF-8, which is not closed. The data
+     *            is copied as is if this format is JSON.
+     * @throws IOException if the data cannot be parsed or the stream cannot be written
+     */
+    void copyAsJson(InputStream content, OutputStream json) throws IOException;
+}
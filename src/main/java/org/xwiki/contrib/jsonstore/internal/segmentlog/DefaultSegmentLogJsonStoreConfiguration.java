@@ -0,0 +1,125 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore.internal.segmentlog;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.configuration.ConfigurationSource;
+
+/**
+ * Default implementation of {@link SegmentLogJsonStoreConfiguration}, reading the {@code jsonstore.segmentlog.*}
+ * properties of the {@code xwiki.properties} file.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+@Component
+@Singleton
+public class DefaultSegmentLogJsonStoreConfiguration implements SegmentLogJsonStoreConfiguration
+{
+    /**
+     * Prefix of all the configuration properties of the store.
+     */
+    private static final String PREFIX = "jsonstore.segmentlog.";
+
+    private static final String DEFAULT_FORMAT = "json";
+
+    /**
+     * The default maximum size of a segment, 64MB.
+     */
+    private static final long DEFAULT_SEGMENT_MAXSIZE = 64L * 1024 * 1024;
+
+    /**
+     * By default, the writes are forced to the disk every second.
+     */
+    private static final long DEFAULT_SYNC_INTERVAL = 1000L;
+
+    /**
+     * The default delay between two compactions, one minute.
+     */
+    private static final long DEFAULT_COMPACTION_INTERVAL = 60000L;
+
+    /**
+     * By default, segments are compacted when half of their data was overwritten.
+     */
+    private static final double DEFAULT_COMPACTION_RATIO = 0.5;
+
+    /**
+     * The default delay between two removals of the expired ids, one minute.
+     */
+    private static final long DEFAULT_EXPIRATION_SWEEP_INTERVAL = 60000L;
+
+    /**
+     * The default maximum number of expired ids removed at once.
+     */
+    private static final int DEFAULT_EXPIRATION_SWEEP_MAXREMOVALS = 1000;
+
+    @Inject
+    @Named("xwikiproperties")
+    private Provider<ConfigurationSource> configuration;
+
+    @Override
+    public String getFormat()
+    {
+        return this.configuration.get().getProperty(PREFIX + "format", DEFAULT_FORMAT);
+    }
+
+    @Override
+    public long getSegmentMaxSize()
+    {
+        return this.configuration.get().getProperty(PREFIX + "segment.maxSize", DEFAULT_SEGMENT_MAXSIZE);
+    }
+
+    @Override
+    public long getSyncInterval()
+    {
+        return this.configuration.get().getProperty(PREFIX + "sync.interval", DEFAULT_SYNC_INTERVAL);
+    }
+
+    @Override
+    public long getCompactionInterval()
+    {
+        return this.configuration.get().getProperty(PREFIX + "compaction.interval", DEFAULT_COMPACTION_INTERVAL);
+    }
+
+    @Override
+    public double getCompactionRatio()
+    {
+        return this.configuration.get().getProperty(PREFIX + "compaction.ratio", DEFAULT_COMPACTION_RATIO);
+    }
+
+    @Override
+    public long getExpirationSweepInterval()
+    {
+        return this.configuration.get().getProperty(PREFIX + "expiration.sweep.interval",
+            DEFAULT_EXPIRATION_SWEEP_INTERVAL);
+    }
+
+    @Override
+    public int getExpirationSweepMaxRemovals()
+    {
+        return this.configuration.get().getProperty(PREFIX + "expiration.sweep.maxRemovals",
+            DEFAULT_EXPIRATION_SWEEP_MAXREMOVALS);
+    }
+}
@@ -0,0 +1,655 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore.internal.segmentlog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+
+/**
+ * An append-only log of records stored in segment files of a folder, with an in memory index of the location of the
+ * last record of each id. All the writes are appended to the last segment, so they are sequential, and a new segment is
+ * started when the last one reaches the configured size. The records overwritten by later records are reclaimed by
+ * compacting the segments: the live records of a segment are appended again to the log and the segment is deleted.
+ * The removal of an id is recorded by a delete record, which is kept by the compactions as long as an older segment
+ * may contain a record of the id.
+ * <br>
+ * The index is saved in an index file when the log is closed and after each compaction, with the position of the end
+ * of the log at the time of the save. When the log is opened, the index file is loaded and only the records written
+ * after that position are read. If the index file is missing or doesn't match the segments, all the segments are read.
+ * <br>
+ * The segments are forced to the disk according to the sync interval: after each write, periodically by calling
+ * {@link #sync()}, or never, leaving it to the operating system. They are always forced before the index is saved, so
+ * that the saved position is never after the end of the log on the disk.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public class SegmentLog implements Closeable
+{
+    private static final String SEGMENT_PREFIX = "segment-";
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final String INDEX_FILE = "index";
+
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    /**
+     * The first bytes of the index file, "JSLI".
+     */
+    private static final int INDEX_MAGIC = 0x4a534c49;
+
+    /**
+     * The version of the index file, 2 since the checksums of the records are saved with their location.
+     */
+    private static final int INDEX_VERSION = 2;
+
+    private final Path directory;
+
+    private final long segmentMaxSize;
+
+    /**
+     * 0 to force each write to the disk, a positive value if {@link #sync()} is called periodically, a negative value
+     * to leave the writes to the operating system.
+     */
+    private final long syncInterval;
+
+    private final Logger logger;
+
+    /**
+     * The location and checksum of the last record of each id.
+     */
+    private final ConcurrentNavigableMap<String, SegmentLogLocation> index = new ConcurrentSkipListMap<>();
+
+    /**
+     * The segments, by number.
+     */
+    private final ConcurrentNavigableMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+
+    /**
+     * Serializes the appends to the log.
+     */
+    private final Lock appendLock = new ReentrantLock();
+
+    /**
+     * Held for reading while reading a record, and for writing while deleting a segment.
+     */
+    private final ReadWriteLock segmentsLock = new ReentrantReadWriteLock();
+
+    /**
+     * The segment in which the records are appended.
+     */
+    private volatile Segment active;
+
+    /**
+     * A segment file.
+     */
+    private static final class Segment
+    {
+        private final int number;
+
+        private final Path file;
+
+        private final FileChannel channel;
+
+        private final AtomicLong size;
+
+        /**
+         * The total length of the records of the segment which are the last record of their id.
+         */
+        private final AtomicLong liveBytes = new AtomicLong();
+
+        Segment(int number, Path file) throws IOException
+        {
+            this.number = number;
+            this.file = file;
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+            this.size = new AtomicLong(this.channel.size());
+        }
+    }
+
+    /**
+     * @param directory the folder of the segment files
+     * @param segmentMaxSize the size after which a new segment is started, in bytes
+     * @param syncInterval 0 to force each write to the disk, a positive value if {@link #sync()} is called at that
+     *            interval, a negative value to never force the writes except before saving the index
+     * @param logger the logger to use to report the recovery of the segments
+     */
+    public SegmentLog(Path directory, long segmentMaxSize, long syncInterval, Logger logger)
+    {
+        this.directory = directory;
+        this.segmentMaxSize = segmentMaxSize;
+        this.syncInterval = syncInterval;
+        this.logger = logger;
+    }
+
+    /**
+     * Opens the segments and rebuilds the index.
+     *
+     * @throws IOException if the segments cannot be opened
+     */
+    public void open() throws IOException
+    {
+        Files.createDirectories(this.directory);
+        try (DirectoryStream<Path> files =
+            Files.newDirectoryStream(this.directory, SEGMENT_PREFIX + '*' + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    int number = Integer.parseInt(
+                        name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                    this.segments.put(number, new Segment(number, file));
+                } catch (NumberFormatException e) {
+                    this.logger.warn("Ignoring unexpected file [{}] in the segment log", file);
+                }
+            }
+        }
+        if (this.segments.isEmpty()) {
+            this.segments.put(1, new Segment(1, getSegmentFile(1)));
+        }
+        this.active = this.segments.lastEntry().getValue();
+
+        SegmentLogLocation replayPosition = loadIndex();
+        if (replayPosition == null || !replay(replayPosition) || !isIndexValid()) {
+            if (replayPosition != null) {
+                this.logger.info("The index of the segment log [{}] doesn't match its segments, rebuilding it",
+                    this.directory);
+            }
+            this.index.clear();
+            replay(new SegmentLogLocation(this.segments.firstKey(), 0, 0));
+        }
+        for (SegmentLogLocation location : this.index.values()) {
+            this.segments.get(location.getSegment()).liveBytes.addAndGet(location.getLength());
+        }
+    }
+
+    /**
+     * @param id an id
+     * @return the last record of the id, or null if there is none
+     * @throws IOException if the record cannot be read
+     */
+    public SegmentLogRecord get(String id) throws IOException
+    {
+        // the segment of the record cannot be deleted by a compaction while it's read
+        Lock lock = this.segmentsLock.readLock();
+        lock.lock();
+        try {
+            SegmentLogLocation location = this.index.get(id);
+            if (location == null) {
+                return null;
+            }
+            Segment segment = this.segments.get(location.getSegment());
+            ByteBuffer buffer = ByteBuffer.allocate(location.getLength());
+            while (buffer.hasRemaining()) {
+                if (segment.channel.read(buffer, location.getOffset() + buffer.position()) < 0) {
+                    throw new EOFException(String.format("Truncated segment [%s]", segment.file));
+                }
+            }
+            buffer.flip();
+            return SegmentLogRecord.decode(buffer);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Compares data with the last record of an id. The checksum of the data is compared with the checksum kept in
+     * memory with the location of the record, which is only read if they match, to make sure that the data is the same.
+     *
+     * @param id an id
+     * @param format the name of the format of the data
+     * @param data the serialized data
+     * @return true if the last record of the id has the passed data in the passed format
+     * @throws IOException if the record cannot be read
+     */
+    public boolean hasRecord(String id, String format, byte[] data) throws IOException
+    {
+        SegmentLogLocation location = this.index.get(id);
+        if (location == null
+            || location.getChecksum() != SegmentLogRecord.checksum(SegmentLogRecord.PUT, format, id, data)) {
+            return false;
+        }
+        SegmentLogRecord record = get(id);
+        return record != null && format.equals(record.getFormat()) && Arrays.equals(data, record.getData());
+    }
+
+    /**
+     * @param id an id
+     * @return true if there is a record for the id
+     */
+    public boolean contains(String id)
+    {
+        return this.index.containsKey(id);
+    }
+
+    /**
+     * @return the number of ids having a record
+     */
+    public int size()
+    {
+        return this.index.size();
+    }
+
+    /**
+     * Appends a record to the log.
+     *
+     * @param id the id of the record
+     * @param format the format of the data
+     * @param data the serialized data
+     * @param overwrite whether the record should be appended if the id already has a record
+     * @return false if the id already has a record and overwrite is false
+     * @throws IOException if the record cannot be written
+     */
+    public boolean append(String id, String format, byte[] data, boolean overwrite) throws IOException
+    {
+        ByteBuffer record = SegmentLogRecord.encode(SegmentLogRecord.PUT, format, id, data);
+        this.appendLock.lock();
+        try {
+            if (!overwrite && this.index.containsKey(id)) {
+                return false;
+            }
+            SegmentLogLocation location = write(record);
+            Segment segment = this.segments.get(location.getSegment());
+            if (this.syncInterval == 0) {
+                segment.channel.force(false);
+            }
+            segment.liveBytes.addAndGet(location.getLength());
+            release(this.index.put(id, location));
+            return true;
+        } finally {
+            this.appendLock.unlock();
+        }
+    }
+
+    /**
+     * Appends a delete record to the log.
+     *
+     * @param id the id to remove
+     * @return false if the id has no record
+     * @throws IOException if the record cannot be written
+     */
+    public boolean remove(String id) throws IOException
+    {
+        ByteBuffer record = SegmentLogRecord.encode(SegmentLogRecord.DELETE, "", id, new byte[0]);
+        this.appendLock.lock();
+        try {
+            if (!this.index.containsKey(id)) {
+                return false;
+            }
+            SegmentLogLocation location = write(record);
+            if (this.syncInterval == 0) {
+                this.segments.get(location.getSegment()).channel.force(false);
+            }
+            release(this.index.remove(id));
+            return true;
+        } finally {
+            this.appendLock.unlock();
+        }
+    }
+
+    /**
+     * @param prefix the prefix of the ids to list
+     * @param cursor the id after which the ids are listed, null to list all the ids
+     * @param limit the maximum number of ids to list
+     * @return the ids having a record, starting with the prefix and following the cursor, in alphabetical order
+     */
+    public List<String> list(String prefix, String cursor, int limit)
+    {
+        List<String> ids = new ArrayList<>();
+        boolean afterCursor = cursor != null && cursor.compareTo(prefix) >= 0;
+        Iterator<String> keys = this.index.tailMap(afterCursor ? cursor : prefix, !afterCursor).keySet().iterator();
+        while (ids.size() < limit && keys.hasNext()) {
+            String id = keys.next();
+            if (!id.startsWith(prefix)) {
+                break;
+            }
+            ids.add(id);
+        }
+        return ids;
+    }
+
+    /**
+     * Writes a record at the end of the active segment, while holding the append lock.
+     */
+    private SegmentLogLocation write(ByteBuffer record) throws IOException
+    {
+        Segment segment = this.active;
+        long offset = segment.size.get();
+        int length = record.remaining();
+        int checksum = record.getInt(record.position());
+        while (record.hasRemaining()) {
+            segment.channel.write(record, offset + record.position());
+        }
+        segment.size.addAndGet(length);
+        if (segment.size.get() >= this.segmentMaxSize) {
+            // the periodic syncs only force the active segment
+            if (this.syncInterval >= 0) {
+                segment.channel.force(false);
+            }
+            int number = segment.number + 1;
+            Segment next = new Segment(number, getSegmentFile(number));
+            this.segments.put(number, next);
+            this.active = next;
+        }
+        return new SegmentLogLocation(segment.number, offset, length, checksum);
+    }
+
+    /**
+     * Accounts for a record which is not the last record of its id anymore.
+     */
+    private void release(SegmentLogLocation previous)
+    {
+        if (previous != null) {
+            Segment segment = this.segments.get(previous.getSegment());
+            if (segment != null) {
+                segment.liveBytes.addAndGet(-previous.getLength());
+            }
+        }
+    }
+
+    /**
+     * Compacts the segments with enough overwritten records, by appending their live records to the log and deleting
+     * them.
+     *
+     * @param ratio the minimum ratio of overwritten data in a segment for the segment to be compacted
+     * @throws IOException if the compaction fails
+     */
+    public void compact(double ratio) throws IOException
+    {
+        List<Segment> compacted = new ArrayList<>();
+        // whether an older segment than the compacted one is kept, in which case the delete records are kept too
+        boolean olderKept = false;
+        for (Segment segment : this.segments.values()) {
+            long size = segment.size.get();
+            if (segment != this.active && segment.liveBytes.get() <= size * (1 - ratio)
+                && compact(segment, olderKept)) {
+                compacted.add(segment);
+            } else {
+                olderKept = true;
+            }
+        }
+        if (!compacted.isEmpty()) {
+            // the saved index doesn't reference the compacted segments anymore
+            saveIndex();
+            Lock lock = this.segmentsLock.writeLock();
+            lock.lock();
+            try {
+                for (Segment segment : compacted) {
+                    this.segments.remove(segment.number);
+                    segment.channel.close();
+                    Files.delete(segment.file);
+                }
+            } finally {
+                lock.unlock();
+            }
+            this.logger.debug("Compacted {} segments of the segment log [{}]", compacted.size(), this.directory);
+        }
+    }
+
+    /**
+     * Appends the live records of a segment to the log.
+     *
+     * @param keepDeletes whether the delete records of the ids which were not written again should be kept
+     * @return false if the segment could not be read completely, in which case it should not be deleted
+     */
+    private boolean compact(Segment segment, boolean keepDeletes) throws IOException
+    {
+        try (DataInputStream input =
+            new DataInputStream(new BufferedInputStream(Files.newInputStream(segment.file)))) {
+            long offset = 0;
+            for (SegmentLogRecord record = SegmentLogRecord.read(input); record != null;
+                record = SegmentLogRecord.read(input)) {
+                SegmentLogLocation location = new SegmentLogLocation(segment.number, offset, record.getLength());
+                offset += record.getLength();
+                this.appendLock.lock();
+                try {
+                    // only the records which were not overwritten meanwhile are kept
+                    if (record.getType() == SegmentLogRecord.DELETE) {
+                        if (keepDeletes && !this.index.containsKey(record.getId())) {
+                            write(SegmentLogRecord.encode(record.getType(), record.getFormat(), record.getId(),
+                                record.getData()));
+                        }
+                    } else if (location.equals(this.index.get(record.getId()))) {
+                        SegmentLogLocation copy = write(SegmentLogRecord.encode(record.getType(),
+                            record.getFormat(), record.getId(), record.getData()));
+                        this.segments.get(copy.getSegment()).liveBytes.addAndGet(copy.getLength());
+                        this.index.put(record.getId(), copy);
+                        segment.liveBytes.addAndGet(-location.getLength());
+                    }
+                } finally {
+                    this.appendLock.unlock();
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            this.logger.warn("Failed to compact the segment [{}], keeping it", segment.file, e);
+            return false;
+        }
+    }
+
+    /**
+     * Forces the writes of the active segment to the disk, the previous segments being forced when they are completed.
+     *
+     * @throws IOException if the segment cannot be forced
+     */
+    public void sync() throws IOException
+    {
+        this.active.channel.force(false);
+    }
+
+    /**
+     * Saves the index in the index file, with the position of the end of the log: the records written after the
+     * position are read when the log is opened, so the index doesn't need to be consistent with the position as long
+     * as it's up to date at the position. The segments are forced to the disk before, so that the records before the
+     * position are on the disk whatever the sync interval.
+     *
+     * @throws IOException if the index file cannot be written
+     */
+    public synchronized void saveIndex() throws IOException
+    {
+        SegmentLogLocation position;
+        this.appendLock.lock();
+        try {
+            position = new SegmentLogLocation(this.active.number, this.active.size.get(), 0);
+        } finally {
+            this.appendLock.unlock();
+        }
+        // the segments cannot be deleted by a compaction while they are forced
+        Lock lock = this.segmentsLock.readLock();
+        lock.lock();
+        try {
+            for (Segment segment : this.segments.values()) {
+                segment.channel.force(false);
+            }
+        } finally {
+            lock.unlock();
+        }
+        Path temporaryFile = this.directory.resolve(INDEX_FILE + TEMPORARY_SUFFIX);
+        try (FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            DataOutputStream output =
+                new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)))) {
+            output.writeInt(INDEX_MAGIC);
+            output.writeInt(INDEX_VERSION);
+            output.writeInt(position.getSegment());
+            output.writeLong(position.getOffset());
+            for (Map.Entry<String, SegmentLogLocation> entry : this.index.entrySet()) {
+                byte[] id = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                output.writeInt(id.length);
+                output.write(id);
+                output.writeInt(entry.getValue().getSegment());
+                output.writeLong(entry.getValue().getOffset());
+                output.writeInt(entry.getValue().getLength());
+                output.writeInt(entry.getValue().getChecksum());
+            }
+            output.writeInt(-1);
+            // the index file replaces the previous one only once it's on the disk
+            output.flush();
+            channel.force(false);
+        }
+        Files.move(temporaryFile, this.directory.resolve(INDEX_FILE), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Loads the index file.
+     *
+     * @return the position from which the records should be read to update the loaded index, or null if the index
+     *         file could not be loaded
+     */
+    private SegmentLogLocation loadIndex()
+    {
+        Path indexFile = this.directory.resolve(INDEX_FILE);
+        if (!Files.exists(indexFile)) {
+            return null;
+        }
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if (input.readInt() != INDEX_MAGIC || input.readInt() != INDEX_VERSION) {
+                this.logger.warn("Ignoring the unsupported index file [{}]", indexFile);
+                return null;
+            }
+            SegmentLogLocation position = new SegmentLogLocation(input.readInt(), input.readLong(), 0);
+            for (int length = input.readInt(); length >= 0; length = input.readInt()) {
+                byte[] id = new byte[length];
+                input.readFully(id);
+                this.index.put(new String(id, StandardCharsets.UTF_8),
+                    new SegmentLogLocation(input.readInt(), input.readLong(), input.readInt(), input.readInt()));
+            }
+            return position;
+        } catch (IOException e) {
+            this.logger.warn("Failed to load the index file [{}]", indexFile, e);
+            this.index.clear();
+            return null;
+        }
+    }
+
+    /**
+     * Reads the records written from a position and adds them to the index.
+     *
+     * @return false if the position doesn't match the segments
+     */
+    private boolean replay(SegmentLogLocation position) throws IOException
+    {
+        Segment first = this.segments.get(position.getSegment());
+        if (first == null || first.size.get() < position.getOffset()) {
+            return false;
+        }
+        for (Segment segment : this.segments.tailMap(position.getSegment()).values()) {
+            replay(segment, segment == first ? position.getOffset() : 0);
+        }
+        return true;
+    }
+
+    private void replay(Segment segment, long start) throws IOException
+    {
+        long offset = start;
+        try (DataInputStream input =
+            new DataInputStream(new BufferedInputStream(Files.newInputStream(segment.file)))) {
+            IOUtils.skipFully(input, start);
+            for (SegmentLogRecord record = SegmentLogRecord.read(input); record != null;
+                record = SegmentLogRecord.read(input)) {
+                if (record.getType() == SegmentLogRecord.DELETE) {
+                    this.index.remove(record.getId());
+                } else {
+                    this.index.put(record.getId(),
+                        new SegmentLogLocation(segment.number, offset, record.getLength(), record.getChecksum()));
+                }
+                offset += record.getLength();
+            }
+        } catch (IOException e) {
+            if (segment != this.active) {
+                this.logger.error("The segment [{}] is corrupted at position [{}], ignoring the rest of the segment",
+                    segment.file, offset, e);
+                return;
+            }
+            // the last record of the active segment was not completely written, when the process was stopped
+            this.logger.warn("Truncating the incomplete record at the end of the segment [{}] at position [{}]",
+                segment.file, offset);
+            segment.channel.truncate(offset);
+            segment.size.set(offset);
+        }
+    }
+
+    /**
+     * @return true if all the locations of the index are in the segments
+     */
+    private boolean isIndexValid()
+    {
+        for (SegmentLogLocation location : this.index.values()) {
+            Segment segment = this.segments.get(location.getSegment());
+            if (segment == null || location.getOffset() + location.getLength() > segment.size.get()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Path getSegmentFile(int number)
+    {
+        return this.directory.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Saves the index and closes the segments.
+     *
+     * @throws IOException if the index cannot be saved
+     */
+    @Override
+    public void close() throws IOException
+    {
+        try {
+            saveIndex();
+        } finally {
+            for (Segment segment : this.segments.values()) {
+                segment.channel.close();
+            }
+        }
+    }
+}
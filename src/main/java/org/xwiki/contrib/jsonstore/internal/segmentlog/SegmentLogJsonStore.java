@@ -0,0 +1,521 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore.internal.segmentlog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.contrib.jsonstore.JsonStore;
+import org.xwiki.contrib.jsonstore.internal.JsonMergePatcher;
+import org.xwiki.contrib.jsonstore.internal.JsonPointerSeeker;
+import org.xwiki.contrib.jsonstore.internal.JsonStoreExpirations;
+import org.xwiki.contrib.jsonstore.internal.JsonStoreNdjson;
+import org.xwiki.contrib.jsonstore.internal.JsonStoreVersions;
+import org.xwiki.contrib.jsonstore.internal.StripedLock;
+import org.xwiki.contrib.jsonstore.internal.codec.JsonStoreCodec;
+import org.xwiki.environment.Environment;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonPointer;
+
+/**
+ * Implementation of the Json store appending the data to large segment files in the XWiki permanent directory, under
+ * the {@code org.xwiki.contrib.jsonstore.segmentlog} folder (see {@link SegmentLog}). Unlike the
+ * {@code xwikipermdir} store, which writes a file per id, it's suited to millions of small data: all the writes are
+ * sequential, there are only a few files to backup and the stored ids are kept in memory. The ids are handled as in the
+ * {@code xwikipermdir} store ({@code mydata/mycategory/itemname/} is the same id as {@code mydata/mycategory/itemname}
+ * ), and the data is serialized the same way, in the configured format (see
+ * {@link SegmentLogJsonStoreConfiguration#getFormat()}). The expiration times of the ids written with a time to live
+ * are kept in memory and recorded in the {@code expirations} file of the folder (see {@link JsonStoreExpirations}).
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+@Component
+@Singleton
+@Named("segmentlog")
+public class SegmentLogJsonStore implements JsonStore, Initializable, Disposable
+{
+    /**
+     * The home of the json store in the permanent directory.
+     */
+    private static final String PERMDIR_FOLDERKEY = "org.xwiki.contrib.jsonstore.segmentlog";
+
+    /**
+     * The file path separator.
+     */
+    private static final String PATH_SEPARATOR = "/";
+
+    /**
+     * The number of locks used to serialize the patches of a same id.
+     */
+    private static final int LOCK_STRIPES = 256;
+
+    private static final String EXPIRATIONS_FILE = "expirations";
+
+    /**
+     * Used to get permanent directory.
+     */
+    @Inject
+    private Environment environment;
+
+    /**
+     * Logger to log unexpected results and debug.
+     */
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private SegmentLogJsonStoreConfiguration configuration;
+
+    /**
+     * Used to lookup the codecs of the store.
+     */
+    @Inject
+    private ComponentManager componentManager;
+
+    /**
+     * The codec used to serialize the new records.
+     */
+    private JsonStoreCodec writeCodec;
+
+    /**
+     * All the codecs which can be used to read the records, by file extension, the write codec first.
+     */
+    private Map<String, JsonStoreCodec> readCodecs;
+
+    private SegmentLog log;
+
+    /**
+     * The expiration times of the ids written with a time to live.
+     */
+    private JsonStoreExpirations expirations;
+
+    /**
+     * The locks of the ids, held while reading and writing the data of an id in a patch, and while writing an id.
+     */
+    private final StripedLock locks = new StripedLock(LOCK_STRIPES);
+
+    /**
+     * Runs the compactions of the segments.
+     */
+    private ScheduledExecutorService compactor;
+
+    /**
+     * Forces the writes to the disk periodically, null if they are forced after each write or never.
+     */
+    private ScheduledExecutorService syncer;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        String format = this.configuration.getFormat();
+        try {
+            this.writeCodec = this.componentManager.getInstance(JsonStoreCodec.class, format);
+            this.readCodecs = new LinkedHashMap<>();
+            this.readCodecs.put(this.writeCodec.getFileExtension(), this.writeCodec);
+            for (JsonStoreCodec codec : this.componentManager.<JsonStoreCodec>getInstanceList(JsonStoreCodec.class)) {
+                this.readCodecs.putIfAbsent(codec.getFileExtension(), codec);
+            }
+        } catch (ComponentLookupException e) {
+            throw new InitializationException(String.format("Failed to lookup the json store codec [%s]", format), e);
+        }
+        File folder = new File(this.environment.getPermanentDirectory(), PERMDIR_FOLDERKEY);
+        long syncInterval = this.configuration.getSyncInterval();
+        this.log = new SegmentLog(folder.toPath(), this.configuration.getSegmentMaxSize(), syncInterval, this.logger);
+        this.expirations = new JsonStoreExpirations(new File(folder, EXPIRATIONS_FILE).toPath(), null, this.logger);
+        try {
+            this.log.open();
+            this.expirations.open();
+        } catch (IOException e) {
+            throw new InitializationException("Failed to open the segment log of the json store", e);
+        }
+        this.expirations.start(this.configuration.getExpirationSweepInterval(),
+            this.configuration.getExpirationSweepMaxRemovals(), this::expire);
+        double ratio = this.configuration.getCompactionRatio();
+        long interval = this.configuration.getCompactionInterval();
+        this.compactor = Executors.newSingleThreadScheduledExecutor(
+            new BasicThreadFactory.Builder().namingPattern("XWiki JSON store compaction").daemon(true).build());
+        this.compactor.scheduleWithFixedDelay(() -> {
+            try {
+                this.log.compact(ratio);
+            } catch (Exception e) {
+                // the next compaction will try again
+                this.logger.warn("Failed to compact the segment log of the json store", e);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+        if (syncInterval > 0) {
+            this.syncer = Executors.newSingleThreadScheduledExecutor(
+                new BasicThreadFactory.Builder().namingPattern("XWiki JSON store sync").daemon(true).build());
+            this.syncer.scheduleWithFixedDelay(() -> {
+                try {
+                    this.log.sync();
+                } catch (Exception e) {
+                    // the next sync will try again
+                    this.logger.warn("Failed to force the segment log of the json store to the disk", e);
+                }
+            }, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void dispose()
+    {
+        try {
+            this.expirations.close();
+        } catch (IOException e) {
+            this.logger.warn("Failed to close the expirations of the json store", e);
+        }
+        this.compactor.shutdown();
+        if (this.syncer != null) {
+            this.syncer.shutdown();
+        }
+        try {
+            this.compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            if (this.syncer != null) {
+                this.syncer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            this.logger.warn("Interrupted while waiting for the compaction of the json store");
+            Thread.currentThread().interrupt();
+        }
+        try {
+            this.log.close();
+        } catch (IOException e) {
+            // the index is rebuilt from the segments on the next start
+            this.logger.warn("Failed to save the index of the segment log of the json store", e);
+        }
+    }
+
+    @Override
+    public boolean persistAsJson(Object data, String id, boolean forceOverwrite) throws Exception
+    {
+        return persist(data, id, forceOverwrite, JsonStoreExpirations.NONE);
+    }
+
+    @Override
+    public boolean persistAsJson(Object data, String id, boolean forceOverwrite, long timeToLive) throws Exception
+    {
+        if (timeToLive <= 0) {
+            throw new IllegalArgumentException(String.format("Invalid time to live [%s] for id [%s]", timeToLive, id));
+        }
+        return persist(data, id, forceOverwrite, System.currentTimeMillis() + timeToLive);
+    }
+
+    private boolean persist(Object data, String id, boolean forceOverwrite, long expiration) throws Exception
+    {
+        String key = getKey(id);
+        if (key == null) {
+            return false;
+        }
+        byte[] content = this.writeCodec.getWriter().writeValueAsBytes(data);
+        Lock lock = this.locks.get(key);
+        lock.lock();
+        try {
+            // an expired id is overwritten as if it was missing
+            boolean overwrite = forceOverwrite || this.expirations.isExpired(key);
+            if (overwrite && this.log.hasRecord(key, this.writeCodec.getFileExtension(), content)) {
+                // appending the same data again would only grow the segments to be compacted
+                this.logger.debug("The data stored for id {} is unchanged, nothing is appended", id);
+                this.expirations.set(key, expiration);
+                return true;
+            }
+            boolean written = this.log.append(key, this.writeCodec.getFileExtension(), content, overwrite);
+            if (written) {
+                this.expirations.set(key, expiration);
+            } else {
+                this.logger.debug("Id {} is stored and overwrite is not forced, returning false", id);
+            }
+            return written;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean persistIfVersion(Object data, String id, String expectedVersion) throws Exception
+    {
+        String key = getKey(id);
+        if (key == null) {
+            return false;
+        }
+        byte[] content = this.writeCodec.getWriter().writeValueAsBytes(data);
+        Lock lock = this.locks.get(key);
+        lock.lock();
+        try {
+            if (!StringUtils.equals(getVersion(get(key)), expectedVersion)) {
+                this.logger.debug("The version stored for id {} is not {}, returning false", id, expectedVersion);
+                return false;
+            }
+            this.log.append(key, this.writeCodec.getFileExtension(), content, true);
+            this.expirations.set(key, JsonStoreExpirations.NONE);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String getVersion(String id) throws Exception
+    {
+        String key = getKey(id);
+        return key != null ? getVersion(get(key)) : null;
+    }
+
+    private String getVersion(SegmentLogRecord record)
+    {
+        return record != null ? JsonStoreVersions.getVersion(record.getData()) : null;
+    }
+
+    @Override
+    public boolean patch(String id, Object mergePatch) throws Exception
+    {
+        String key = getKey(id);
+        if (key == null) {
+            return false;
+        }
+        // normalize the patch as maps, lists and values, whatever the type of the passed object
+        Object patch = this.writeCodec.getReader().readValue(this.writeCodec.getWriter().writeValueAsBytes(mergePatch));
+        Lock lock = this.locks.get(key);
+        lock.lock();
+        try {
+            // the patched data expires with the stored data, an expired id being patched as a missing one
+            long expiration =
+                this.expirations.isExpired(key) ? JsonStoreExpirations.NONE : this.expirations.get(key);
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            try (JsonParser source = openParser(key);
+                JsonGenerator target = this.writeCodec.getWriter().getFactory().createGenerator(content)) {
+                if (source != null) {
+                    source.nextToken();
+                }
+                JsonMergePatcher.patch(source, target, patch);
+            }
+            this.log.append(key, this.writeCodec.getFileExtension(), content.toByteArray(), true);
+            this.expirations.set(key, expiration);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Object getFromJsonStore(String id) throws Exception
+    {
+        return getFromJsonStore(id, Object.class);
+    }
+
+    @Override
+    public <T> T getFromJsonStore(String id, Class<T> type) throws Exception
+    {
+        String key = getKey(id);
+        SegmentLogRecord record = key != null ? get(key) : null;
+        if (record == null) {
+            this.logger.trace("Nothing stored for id {}, returning null", id);
+            return null;
+        }
+        return getCodec(record).getReader().forType(type).readValue(record.getData());
+    }
+
+    @Override
+    public Object getFromJsonStore(String id, String jsonPointer) throws Exception
+    {
+        JsonPointer pointer = JsonPointer.compile(jsonPointer);
+        if (pointer.matches()) {
+            return getFromJsonStore(id);
+        }
+        try (JsonParser parser = openStream(id)) {
+            if (parser == null || !JsonPointerSeeker.seek(parser, pointer)) {
+                this.logger.trace("Nothing stored for id {} at {}, returning null", id, jsonPointer);
+                return null;
+            }
+            return parser.readValueAs(Object.class);
+        }
+    }
+
+    @Override
+    public JsonParser openStream(String id) throws Exception
+    {
+        String key = getKey(id);
+        return key != null ? openParser(key) : null;
+    }
+
+    @Override
+    public ByteBuffer getRawJson(String id) throws Exception
+    {
+        String key = getKey(id);
+        SegmentLogRecord record = key != null ? get(key) : null;
+        if (record == null) {
+            this.logger.trace("Nothing stored for id {}, returning null", id);
+            return null;
+        }
+        return getCodec(record).toJson(ByteBuffer.wrap(record.getData())).asReadOnlyBuffer();
+    }
+
+    private JsonParser openParser(String key) throws IOException
+    {
+        SegmentLogRecord record = get(key);
+        return record != null ? getCodec(record).getReader().getFactory().createParser(record.getData()) : null;
+    }
+
+    @Override
+    public boolean exists(String id) throws Exception
+    {
+        String key = getKey(id);
+        return key != null && this.log.contains(key) && !this.expirations.isExpired(key);
+    }
+
+    @Override
+    public List<String> list(String prefix, String cursor, int limit) throws Exception
+    {
+        String keyPrefix = StringUtils.isEmpty(prefix) ? "" : FilenameUtils.normalize(prefix, true);
+        if (keyPrefix == null) {
+            this.logger.trace("Prefix {} is not a valid json store prefix", prefix);
+            return new ArrayList<>();
+        }
+        String storagePrefix = StringUtils.removeStart(keyPrefix, PATH_SEPARATOR);
+        List<String> ids = new ArrayList<>();
+        String next = cursor;
+        List<String> keys;
+        // the expired ids are skipped, until the page is full or all the ids are listed
+        do {
+            keys = this.log.list(storagePrefix, next, limit - ids.size());
+            for (String key : keys) {
+                if (!this.expirations.isExpired(key)) {
+                    ids.add(key);
+                }
+                next = key;
+            }
+        } while (ids.size() < limit && !keys.isEmpty());
+        return ids;
+    }
+
+    @Override
+    public boolean remove(String id) throws Exception
+    {
+        String key = getKey(id);
+        if (key == null) {
+            return false;
+        }
+        Lock lock = this.locks.get(key);
+        lock.lock();
+        try {
+            // an expired id was already reported as missing
+            boolean expired = this.expirations.isExpired(key);
+            boolean removed = this.log.remove(key);
+            this.expirations.set(key, JsonStoreExpirations.NONE);
+            return removed && !expired;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the record of an expired id, unless it was written again meanwhile. The id is kept expired until the next
+     * pass of the sweeper, so that the listings which saw it before it was removed still skip it.
+     *
+     * @param key the key of the id
+     * @throws Exception if the record cannot be removed
+     */
+    private void expire(String key) throws Exception
+    {
+        Lock lock = this.locks.get(key);
+        lock.lock();
+        try {
+            if (this.expirations.isExpired(key) && !this.log.remove(key)) {
+                this.expirations.set(key, JsonStoreExpirations.NONE);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long exportTo(OutputStream output, String prefix) throws Exception
+    {
+        return JsonStoreNdjson.exportTo(this, output, prefix, this.logger);
+    }
+
+    @Override
+    public long importFrom(InputStream input, boolean forceOverwrite) throws Exception
+    {
+        return JsonStoreNdjson.importFrom(this, input, forceOverwrite, this.logger);
+    }
+
+    /**
+     * @param key the key of an id
+     * @return the last record of the id, or null if there is none or if the id is expired
+     * @throws IOException if the record cannot be read
+     */
+    private SegmentLogRecord get(String key) throws IOException
+    {
+        return this.expirations.isExpired(key) ? null : this.log.get(key);
+    }
+
+    private JsonStoreCodec getCodec(SegmentLogRecord record) throws IOException
+    {
+        JsonStoreCodec codec = this.readCodecs.get(record.getFormat());
+        if (codec == null) {
+            throw new IOException(
+                String.format("No codec available for the format [%s] of id [%s]", record.getFormat(), record.getId()));
+        }
+        return codec;
+    }
+
+    /**
+     * @param id a json store id
+     * @return the normalized id, as in the {@code xwikipermdir} store, or null if the id is not valid
+     */
+    private String getKey(String id)
+    {
+        String key = StringUtils.removeStart(FilenameUtils.normalizeNoEndSeparator(id, true), PATH_SEPARATOR);
+        if (StringUtils.isEmpty(key) || key.equals(PATH_SEPARATOR)) {
+            this.logger.trace("Id {} is not a valid json store id", id);
+            return null;
+        }
+        return key;
+    }
+}
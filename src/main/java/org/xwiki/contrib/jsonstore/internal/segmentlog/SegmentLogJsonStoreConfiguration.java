@@ -0,0 +1,70 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore.internal.segmentlog;
+
+import org.xwiki.component.annotation.Role;
+
+/**
+ * Configuration of the segment log json store, read from the {@code xwiki.properties} file.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+@Role
+public interface SegmentLogJsonStoreConfiguration
+{
+    /**
+     * @return the hint of the {@link org.xwiki.contrib.jsonstore.internal.codec.JsonStoreCodec} used to serialize new
+     *         records (e.g. {@code json}, {@code smile} or {@code cbor}). Records written in the other formats are
+     *         still read.
+     */
+    String getFormat();
+
+    /**
+     * @return the size after which a new segment file is started, in bytes
+     */
+    long getSegmentMaxSize();
+
+    /**
+     * @return the delay between two forces of the writes to the disk, in milliseconds. 0 forces each write before
+     *         returning, and a negative value leaves the writes to the operating system.
+     */
+    long getSyncInterval();
+
+    /**
+     * @return the delay between two compactions of the segments, in milliseconds
+     */
+    long getCompactionInterval();
+
+    /**
+     * @return the minimum ratio of overwritten data in a segment for the segment to be compacted, between 0 and 1
+     */
+    double getCompactionRatio();
+
+    /**
+     * @return the delay between two passes of the removal of the expired ids, in milliseconds
+     */
+    long getExpirationSweepInterval();
+
+    /**
+     * @return the maximum number of expired ids removed by a pass
+     */
+    int getExpirationSweepMaxRemovals();
+}
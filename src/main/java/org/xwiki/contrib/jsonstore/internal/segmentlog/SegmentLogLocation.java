@@ -0,0 +1,117 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore.internal.segmentlog;
+
+/**
+ * The location of a record in the segments of a segment log, with the checksum of the record so that the data written
+ * for an id can be compared with its last record without reading it. Two locations are equal if they point to the same
+ * bytes, whatever their checksums.
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public final class SegmentLogLocation
+{
+    private final int segment;
+
+    private final long offset;
+
+    private final int length;
+
+    private final int checksum;
+
+    /**
+     * @param segment the number of the segment containing the record
+     * @param offset the position of the record in the segment
+     * @param length the length of the encoded record
+     */
+    public SegmentLogLocation(int segment, long offset, int length)
+    {
+        this(segment, offset, length, 0);
+    }
+
+    /**
+     * @param segment the number of the segment containing the record
+     * @param offset the position of the record in the segment
+     * @param length the length of the encoded record
+     * @param checksum the checksum of the record
+     */
+    public SegmentLogLocation(int segment, long offset, int length, int checksum)
+    {
+        this.segment = segment;
+        this.offset = offset;
+        this.length = length;
+        this.checksum = checksum;
+    }
+
+    /**
+     * @return the number of the segment containing the record
+     */
+    public int getSegment()
+    {
+        return this.segment;
+    }
+
+    /**
+     * @return the position of the record in the segment
+     */
+    public long getOffset()
+    {
+        return this.offset;
+    }
+
+    /**
+     * @return the length of the encoded record
+     */
+    public int getLength()
+    {
+        return this.length;
+    }
+
+    /**
+     * @return the checksum of the record
+     */
+    public int getChecksum()
+    {
+        return this.checksum;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (!(obj instanceof SegmentLogLocation)) {
+            return false;
+        }
+        SegmentLogLocation other = (SegmentLogLocation) obj;
+        return this.segment == other.segment && this.offset == other.offset && this.length == other.length;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return 31 * (31 * this.segment + Long.hashCode(this.offset)) + this.length;
+    }
+
+    @Override
+    public String toString()
+    {
+        return this.segment + ":" + this.offset + ":" + this.length;
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore.internal.segmentlog;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * A record of a segment log: the data written for an id, or the removal of an id. Records are encoded as follows, all
+ * numbers being big endian:
+ * <ul>
+ * <li>the CRC32 checksum of the rest of the record (4 bytes)</li>
+ * <li>the type of the record (1 byte)</li>
+ * <li>the length of the name of the format of the data (1 byte), followed by the name, in ASCII</li>
+ * <li>the length of the id (4 bytes)</li>
+ * <li>the length of the data (4 bytes)</li>
+ * <li>the id, in UTF-8</li>
+ * <li>the data, serialized in the format of the record</li>
+ * </ul>
+ *
+ * @version $Id$
+ * @since 1.1
+ */
+public final class SegmentLogRecord
+{
+    /**
+     * The type of the records storing data for an id.
+     */
+    public static final byte PUT = 1;
+
+    /**
+     * The type of the records removing an id, without data.
+     */
+    public static final byte DELETE = 2;
+
+    private static final int CHECKSUM_LENGTH = 4;
+
+    private final byte type;
+
+    private final String format;
+
+    private final String id;
+
+    private final byte[] data;
+
+    private final int length;
+
+    private final int checksum;
+
+    /**
+     * @param type the type of the record
+     * @param format the name of the format of the data (the file extension of its codec)
+     * @param id the id
+     * @param data the serialized data
+     * @param length the length of the encoded record
+     * @param checksum the checksum of the record
+     */
+    private SegmentLogRecord(byte type, String format, String id, byte[] data, int length, int checksum)
+    {
+        this.type = type;
+        this.format = format;
+        this.id = id;
+        this.data = data;
+        this.length = length;
+        this.checksum = checksum;
+    }
+
+    /**
+     * @return the type of the record
+     */
+    public byte getType()
+    {
+        return this.type;
+    }
+
+    /**
+     * @return the name of the format of the data
+     */
+    public String getFormat()
+    {
+        return this.format;
+    }
+
+    /**
+     * @return the id
+     */
+    public String getId()
+    {
+        return this.id;
+    }
+
+    /**
+     * @return the serialized data
+     */
+    public byte[] getData()
+    {
+        return this.data;
+    }
+
+    /**
+     * @return the length of the encoded record
+     */
+    public int getLength()
+    {
+        return this.length;
+    }
+
+    /**
+     * @return the CRC32 checksum of the record
+     */
+    public int getChecksum()
+    {
+        return this.checksum;
+    }
+
+    /**
+     * @param type the type of a record
+     * @param format the name of the format of the data
+     * @param id the id
+     * @param data the serialized data
+     * @return the CRC32 checksum of the record, as written by {@link #encode(byte, String, String, byte[])}
+     */
+    public static int checksum(byte type, String format, String id, byte[] data)
+    {
+        return checksum(type, format.getBytes(StandardCharsets.US_ASCII), id.getBytes(StandardCharsets.UTF_8), data);
+    }
+
+    private static int checksum(byte type, byte[] formatBytes, byte[] idBytes, byte[] data)
+    {
+        ByteBuffer header = ByteBuffer.allocate(1 + 1 + formatBytes.length + Integer.BYTES * 2);
+        header.put(type).put((byte) formatBytes.length).put(formatBytes).putInt(idBytes.length).putInt(data.length);
+        CRC32 checksum = new CRC32();
+        checksum.update(header.array());
+        checksum.update(idBytes);
+        checksum.update(data);
+        return (int) checksum.getValue();
+    }
+
+    /**
+     * @param type the type of the record
+     * @param format the name of the format of the data
+     * @param id the id
+     * @param data the serialized data
+     * @return the encoded record, ready to be written
+     */
+    public static ByteBuffer encode(byte type, String format, String id, byte[] data)
+    {
+        byte[] formatBytes = format.getBytes(StandardCharsets.US_ASCII);
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(
+            CHECKSUM_LENGTH + 1 + 1 + formatBytes.length + Integer.BYTES * 2 + idBytes.length + data.length);
+        buffer.position(CHECKSUM_LENGTH);
+        buffer.put(type);
+        buffer.put((byte) formatBytes.length);
+        buffer.put(formatBytes);
+        buffer.putInt(idBytes.length);
+        buffer.putInt(data.length);
+        buffer.put(idBytes);
+        buffer.put(data);
+        CRC32 checksum = new CRC32();
+        checksum.update(buffer.array(), CHECKSUM_LENGTH, buffer.capacity() - CHECKSUM_LENGTH);
+        buffer.putInt(0, (int) checksum.getValue());
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * @param buffer a buffer containing exactly an encoded record
+     * @return the decoded record
+     * @throws IOException if the record is corrupted
+     */
+    public static SegmentLogRecord decode(ByteBuffer buffer) throws IOException
+    {
+        int length = buffer.remaining();
+        int expectedChecksum = buffer.getInt();
+        byte type = buffer.get();
+        byte[] formatBytes = new byte[buffer.get()];
+        buffer.get(formatBytes);
+        int idLength = buffer.getInt();
+        int dataLength = buffer.getInt();
+        if (idLength < 0 || dataLength < 0 || idLength + dataLength != buffer.remaining()) {
+            throw new IOException("Corrupted segment log record");
+        }
+        byte[] idBytes = new byte[idLength];
+        buffer.get(idBytes);
+        byte[] data = new byte[dataLength];
+        buffer.get(data);
+        return check(expectedChecksum, type, formatBytes, idBytes, data, length);
+    }
+
+    /**
+     * @param input the stream to read the record from
+     * @return the next record of the stream, or null if the end of the stream is reached
+     * @throws EOFException if the stream ends in the middle of a record
+     * @throws IOException if the record is corrupted
+     */
+    public static SegmentLogRecord read(DataInputStream input) throws IOException
+    {
+        int first = input.read();
+        if (first < 0) {
+            return null;
+        }
+        int expectedChecksum = (first << (Byte.SIZE * 3)) | (input.readUnsignedByte() << (Byte.SIZE * 2))
+            | (input.readUnsignedShort());
+        byte type = input.readByte();
+        byte[] formatBytes = new byte[input.readUnsignedByte()];
+        input.readFully(formatBytes);
+        int idLength = input.readInt();
+        int dataLength = input.readInt();
+        if (idLength < 0 || dataLength < 0) {
+            throw new IOException("Corrupted segment log record");
+        }
+        byte[] idBytes = new byte[idLength];
+        input.readFully(idBytes);
+        byte[] data = new byte[dataLength];
+        input.readFully(data);
+        int length = CHECKSUM_LENGTH + 1 + 1 + formatBytes.length + Integer.BYTES * 2 + idLength + dataLength;
+        return check(expectedChecksum, type, formatBytes, idBytes, data, length);
+    }
+
+    private static SegmentLogRecord check(int expectedChecksum, byte type, byte[] formatBytes, byte[] idBytes,
+        byte[] data, int length) throws IOException
+    {
+        if (checksum(type, formatBytes, idBytes, data) != expectedChecksum) {
+            throw new IOException("Corrupted segment log record, the checksum doesn't match");
+        }
+        return new SegmentLogRecord(type, new String(formatBytes, StandardCharsets.US_ASCII),
+            new String(idBytes, StandardCharsets.UTF_8), data, length, expectedChecksum);
+    }
+}
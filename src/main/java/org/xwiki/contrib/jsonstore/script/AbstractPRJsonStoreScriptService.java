@@ -19,10 +19,24 @@
  */
 package org.xwiki.contrib.jsonstore.script;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import javax.inject.Inject;
+
 import org.slf4j.Logger;
+import org.xwiki.contrib.jsonstore.JsonNodeView;
 import org.xwiki.contrib.jsonstore.JsonStore;
 import org.xwiki.script.service.ScriptService;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.xpn.xwiki.util.Programming;
 
 /**
@@ -34,6 +48,9 @@ import com.xpn.xwiki.util.Programming;
  */
 public abstract class AbstractPRJsonStoreScriptService implements ScriptService
 {
+    @Inject
+    private JsonNodeView view;
+
     /**
      * Serializes the passed data object as JSON and persists it in the store under the passed id. If another json is
      * already stored under the same id, the parameter forceOverwrite can be used to forcefully overwrite it.
@@ -44,8 +61,9 @@ public abstract class AbstractPRJsonStoreScriptService implements ScriptService
      * @param id the identifier to store the data under
      * @param forceOverwrite whether the existing data under the same id (if any) should be overwritten or not. Returns
      *            false if id is already stored and the overwrite is not forced or if data is null.
-     * @return true if write has happened or not. Will also return false if there is an exception writing to the store
-     *         or serializing the data object to json. The exception will be logged in the server logs.
+     * @return true if write has happened (or was skipped because the same data is already stored) or not. Will also
+     *         return false if there is an exception writing to the store or serializing the data object to json. The
+     *         exception will be logged in the server logs.
      */
     @Programming
     public boolean persistAsJson(Object data, String id, boolean forceOverwrite)
@@ -73,6 +91,117 @@ public abstract class AbstractPRJsonStoreScriptService implements ScriptService
         return this.persistAsJson(data, id, false);
     }
 
+    /**
+     * Persist data as Json, expiring once the passed time to live has elapsed: the id is then reported as missing and
+     * its data is removed from the store in the background. Writing the id again sets its new expiration.
+     *
+     * @param data the data to store as JSON.
+     * @param id the identifier to store the data under
+     * @param forceOverwrite whether an existing json stored under the same id should be overwritten or not
+     * @param timeToLive the time after which the data expires, in milliseconds
+     * @return true if write has happened or not. Will also return false if there is an exception writing to the store
+     *         or serializing the data object to json, or if the time to live is not positive. The exception will be
+     *         logged in the server logs.
+     * @since 1.1
+     */
+    @Programming
+    public boolean persistAsJson(Object data, String id, boolean forceOverwrite, long timeToLive)
+    {
+        try {
+            return getJsonStore().persistAsJson(data, id, forceOverwrite, timeToLive);
+        } catch (Exception e) {
+            getLogger().warn("Exception while writing data " + data + " to the store for id " + id, e);
+            return false;
+        }
+    }
+
+    /**
+     * Updates the data stored under the passed id by applying a JSON merge patch (RFC 7386), atomically and without
+     * loading the stored data in memory. For example, the patch <code>{"status": "done", "error": null}</code> sets the
+     * {@code status} member and removes the {@code error} member of the stored object, keeping its other members.
+     * 
+     * @param id the identifier of the data to update
+     * @param mergePatch the patch to apply
+     * @return true if the patched data was written. Will return false if there is an exception reading or writing the
+     *         store (the exception will be logged in the server logs).
+     * @since 1.1
+     */
+    @Programming
+    public boolean patch(String id, Object mergePatch)
+    {
+        try {
+            return getJsonStore().patch(id, mergePatch);
+        } catch (Exception e) {
+            getLogger().warn("Exception while patching the data stored for id " + id + " with " + mergePatch, e);
+            return false;
+        }
+    }
+
+    /**
+     * Returns the version of the data stored under the passed id, derived from its content. It changes each time
+     * different data is written for the id, and can be used as an ETag.
+     *
+     * @param id the identifier of the data
+     * @return the version of the stored data. Will return null both if there is nothing stored under the id and when
+     *         there is an exception reading the store (the exception will be logged in the server logs).
+     * @since 1.1
+     */
+    @Programming
+    public String getVersion(String id)
+    {
+        try {
+            return getJsonStore().getVersion(id);
+        } catch (Exception e) {
+            getLogger().warn("Exception while getting the version of the data stored for id " + id, e);
+            return null;
+        }
+    }
+
+    /**
+     * Persists data as Json, overwriting the stored data only if its version is still the passed one (see
+     * {@link #getVersion(String)}), so that concurrent updates of the same id are not lost.
+     *
+     * @param data the data to store as JSON
+     * @param id the identifier to store the data under
+     * @param expectedVersion the version of the data expected to be stored, or null if nothing should be stored
+     * @return true if the data was written, false if the stored version is not the expected one. Will also return
+     *         false if there is an exception writing to the store or serializing the data object to json. The
+     *         exception will be logged in the server logs.
+     * @since 1.1
+     */
+    @Programming
+    public boolean persistIfVersion(Object data, String id, String expectedVersion)
+    {
+        try {
+            return getJsonStore().persistIfVersion(data, id, expectedVersion);
+        } catch (Exception e) {
+            getLogger().warn("Exception while writing data " + data + " to the store for id " + id, e);
+            return false;
+        }
+    }
+
+    /**
+     * Persists data as Json, possibly in the background depending on the configuration of the store. Successive
+     * writes of the same id may be merged in a single write, the data being returned by the reads of the id right
+     * away.
+     * 
+     * @param data the data to store as JSON
+     * @param id the identifier to store the data under
+     * @param forceOverwrite whether the existing data under the same id (if any) should be overwritten or not
+     * @return a future completed with whether the write has happened or not once the data is written, or completed
+     *         exceptionally if there is an exception writing to the store or serializing the data object to json
+     * @since 1.1
+     */
+    @Programming
+    public CompletableFuture<Boolean> persistAsJsonAsync(Object data, String id, boolean forceOverwrite)
+    {
+        return getJsonStore().persistAsJsonAsync(data, id, forceOverwrite).whenComplete((written, e) -> {
+            if (e != null) {
+                getLogger().warn("Exception while writing data " + data + " to the store for id " + id, e);
+            }
+        });
+    }
+
     /**
      * Fetches the data identified by {@code id} from the Json store, as a parsed object.
      * 
@@ -94,6 +223,74 @@ public abstract class AbstractPRJsonStoreScriptService implements ScriptService
         }
     }
 
+    /**
+     * Fetches the data identified by {@code id} from the Json store as a read only view of maps and lists, whose
+     * objects and arrays are only converted to maps and lists when they are accessed. Faster and lighter than
+     * {@link #getFromJsonStore(String)} when only some members of a big document are read.
+     * 
+     * @param id the id to fetch the data for
+     * @return the data stored in the store under the id {@code id}, as a read only map, list or value. Will return
+     *         null both if there is nothing stored under the passed id and if an exception happens while reading the
+     *         store or parsing the Json (the exception will be logged in the server logs).
+     * @since 1.1
+     */
+    @Programming
+    public Object getView(String id)
+    {
+        try {
+            return this.view.wrap(getJsonStore().getFromJsonStore(id, JsonNode.class));
+        } catch (Exception e) {
+            getLogger().warn("Exception while fetching data from the store for id " + id, e);
+            return null;
+        }
+    }
+
+    /**
+     * Fetches a part of the data identified by {@code id} from the Json store, as a parsed object, parsing only that
+     * part of the data when possible. Much faster than fetching the whole data when only a field of a big document is
+     * needed.
+     * 
+     * @param id the id to fetch the data for
+     * @param jsonPointer the JSON Pointer (RFC 6901) of the part of the data to return, e.g. {@code /items/2/name}
+     * @return the value pointed by {@code jsonPointer} in the data stored under the id {@code id}, parsed as an object.
+     *         Will return null if there is nothing stored under the id in the store, if the data doesn't contain the
+     *         pointed value and when there is an exception accessing the store or deserializing the Json (the
+     *         exception will be logged in the server logs).
+     * @since 1.1
+     */
+    @Programming
+    public Object getFromJsonStore(String id, String jsonPointer)
+    {
+        try {
+            return getJsonStore().getFromJsonStore(id, jsonPointer);
+        } catch (Exception e) {
+            getLogger().warn("Exception while fetching data " + jsonPointer + " from the store for id " + id, e);
+            return null;
+        }
+    }
+
+    /**
+     * Fetches the data identified by {@code id} from the Json store as a JSON string, without parsing it, to be
+     * written as is in a response (much faster than parsing the data and serializing it again for big documents).
+     * 
+     * @param id the id to fetch the data for
+     * @return the data stored in the store under the id {@code id}, as JSON. Will return null both if there is nothing
+     *         stored under the id in the store and when there is an exception accessing the store (the exception will
+     *         be logged in the server logs).
+     * @since 1.1
+     */
+    @Programming
+    public String getRawJson(String id)
+    {
+        try {
+            ByteBuffer json = getJsonStore().getRawJson(id);
+            return json != null ? StandardCharsets.UTF_8.decode(json).toString() : null;
+        } catch (Exception e) {
+            getLogger().warn("Exception while fetching the json from the store for id " + id, e);
+            return null;
+        }
+    }
+
     /**
      * Tests whether a key is stored in the Json store, without loading, parsing or returning it. Notably, this only
      * checks that a key is 'occupied' but does not verify the validity of the data stored under that key.
@@ -114,6 +311,240 @@ public abstract class AbstractPRJsonStoreScriptService implements ScriptService
         }
     }
 
+    /**
+     * Lists the ids stored in the Json store starting with a prefix, in alphabetical order, one page at a time. To get
+     * the next page, pass the last id of the current page as the cursor.
+     * 
+     * @param prefix the prefix of the ids to list, e.g. {@code mydata/mycategory/} to list the ids under
+     *            {@code mydata/mycategory}, the empty string to list all the ids
+     * @param cursor the last id of the previous page, or null to get the first page
+     * @param limit the maximum number of ids to return
+     * @return the ids starting with {@code prefix} and following {@code cursor}, at most {@code limit}. Will return
+     *         null if there is an exception accessing the store (the exception will be logged in the server logs).
+     * @since 1.1
+     */
+    @Programming
+    public List<String> list(String prefix, String cursor, int limit)
+    {
+        try {
+            return getJsonStore().list(prefix, cursor, limit);
+        } catch (Exception e) {
+            getLogger().warn("Exception while listing the ids of the store starting with " + prefix, e);
+            return null;
+        }
+    }
+
+    /**
+     * Removes the data stored under the passed id.
+     * 
+     * @param id the identifier of the data to remove
+     * @return true if some data was stored under the id and removed. Will return false if there is an exception
+     *         accessing the store (the exception will be logged in the server logs).
+     * @since 1.1
+     */
+    @Programming
+    public boolean remove(String id)
+    {
+        try {
+            return getJsonStore().remove(id);
+        } catch (Exception e) {
+            getLogger().warn("Exception while removing the data stored for id " + id, e);
+            return false;
+        }
+    }
+
+    /**
+     * Removes the data stored under all the ids starting with a prefix, in parallel when the store supports it.
+     * 
+     * @param prefix the prefix of the ids to remove, e.g. {@code mydata/mycategory/} to remove all the ids under
+     *            {@code mydata/mycategory}
+     * @return the number of removed ids. Will return -1 if there is an exception accessing the store (the exception
+     *         will be logged in the server logs), in which case some of the ids may have been removed.
+     * @since 1.1
+     */
+    @Programming
+    public int removePrefix(String prefix)
+    {
+        try {
+            return getJsonStore().removePrefix(prefix);
+        } catch (Exception e) {
+            getLogger().warn("Exception while removing the data stored for the ids starting with " + prefix, e);
+            return -1;
+        }
+    }
+
+    /**
+     * Finds the ids starting with a prefix whose data has the passed value at the passed JSON Pointer, e.g.
+     * {@code $services.jsonstore.permdir.findIds("jobs/", "/status", "failed")}. The lookup is fast for the fields
+     * indexed in the configuration of the store, and reads the data of all the ids starting with the prefix otherwise.
+     * 
+     * @param prefix the prefix of the ids to search, e.g. {@code jobs/}
+     * @param fieldPath the JSON Pointer of the compared value in the data, e.g. {@code /status}
+     * @param value the searched value
+     * @return the ids starting with {@code prefix} whose data has the passed value at {@code fieldPath}, in
+     *         alphabetical order. Will return null if there is an exception accessing the store (the exception will be
+     *         logged in the server logs).
+     * @since 1.1
+     */
+    @Programming
+    public List<String> findIds(String prefix, String fieldPath, Object value)
+    {
+        try {
+            return getJsonStore().findIds(prefix, fieldPath, value);
+        } catch (Exception e) {
+            getLogger().warn("Exception while searching the ids starting with " + prefix + " whose " + fieldPath
+                + " is " + value, e);
+            return null;
+        }
+    }
+
+    /**
+     * Rebuilds the indexes of the store from the stored data, e.g. after the files of the store were modified from
+     * outside XWiki. The indexes are rebuilt in the current thread, which can take a while for big stores.
+     * 
+     * @return true if the indexes were rebuilt. Will return false if there is an exception accessing the store (the
+     *         exception will be logged in the server logs).
+     * @since 1.1
+     */
+    @Programming
+    public boolean rebuildIndexes()
+    {
+        try {
+            getJsonStore().rebuildIndexes();
+            return true;
+        } catch (Exception e) {
+            getLogger().warn("Exception while rebuilding the indexes of the store", e);
+            return false;
+        }
+    }
+
+    /**
+     * Writes the ids starting with a prefix and their data in a stream, as NDJSON (one line
+     * <code>{"id":"&lt;id&gt;","data":&lt;stored JSON&gt;}</code> per id), e.g. to backup the store or to move it to
+     * another store with {@link #importFrom(InputStream, boolean)}. The data is streamed, whatever the size of the
+     * store.
+     *
+     * @param output the stream in which to write the lines, e.g. the output stream of the response
+     * @param prefix the prefix of the ids to export, the empty string to export all the ids
+     * @return the number of exported ids. Will return -1 if there is an exception reading the store or writing the
+     *         stream (the exception will be logged in the server logs).
+     * @since 1.1
+     */
+    @Programming
+    public long exportTo(OutputStream output, String prefix)
+    {
+        try {
+            return getJsonStore().exportTo(output, prefix);
+        } catch (Exception e) {
+            getLogger().warn("Exception while exporting the data stored for the ids starting with " + prefix, e);
+            return -1;
+        }
+    }
+
+    /**
+     * Stores the ids and data read from a stream written by {@link #exportTo(OutputStream, String)}, in batches
+     * written in parallel.
+     *
+     * @param input the stream of the lines to import, e.g. the input stream of an uploaded file
+     * @param forceOverwrite whether the data already stored under the imported ids (if any) should be overwritten or
+     *            not
+     * @return the number of written ids. Will return -1 if a line is not valid or there is an exception writing the
+     *         store (the exception will be logged in the server logs), in which case some of the lines may have been
+     *         imported.
+     * @since 1.1
+     */
+    @Programming
+    public long importFrom(InputStream input, boolean forceOverwrite)
+    {
+        try {
+            return getJsonStore().importFrom(input, forceOverwrite);
+        } catch (Exception e) {
+            getLogger().warn("Exception while importing data in the store", e);
+            return -1;
+        }
+    }
+
+    /**
+     * Persists several data objects at once, which is faster than persisting them one by one since the store can write
+     * them in parallel.
+     * 
+     * @param data the data to store as JSON, by identifier
+     * @param forceOverwrite whether the existing data under the same ids (if any) should be overwritten or not
+     * @return for each id, whether the write has happened or not. Will return null if there is an exception writing
+     *         any of the data to the store (the exception will be logged in the server logs), in which case the data
+     *         of the other ids may have been written.
+     * @since 1.1
+     */
+    @Programming
+    public Map<String, Boolean> persistAllAsJson(Map<String, Object> data, boolean forceOverwrite)
+    {
+        try {
+            return getJsonStore().persistAllAsJson(data, forceOverwrite);
+        } catch (Exception e) {
+            getLogger().warn("Exception while writing data to the store for ids " + data.keySet(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Persists several data objects at once without overwriting anything in the store.
+     * 
+     * @param data the data to store as JSON, by identifier
+     * @return for each id, whether the write has happened or not, or null if there is an exception writing any of the
+     *         data to the store
+     * @since 1.1
+     */
+    @Programming
+    public Map<String, Boolean> persistAllAsJson(Map<String, Object> data)
+    {
+        return this.persistAllAsJson(data, false);
+    }
+
+    /**
+     * Fetches the data of several ids at once, which is faster than fetching them one by one since the store can read
+     * them in parallel.
+     * 
+     * @param ids the ids to fetch the data for
+     * @return the data stored under each id, parsed as an object, null for the ids under which nothing is stored. Will
+     *         return null if there is an exception accessing the store or deserializing the Json of any of the ids
+     *         (the exception will be logged in the server logs).
+     * @since 1.1
+     */
+    @Programming
+    public Map<String, Object> getAllFromJsonStore(Collection<String> ids)
+    {
+        try {
+            return getJsonStore().getAllFromJsonStore(ids);
+        } catch (Exception e) {
+            getLogger().warn("Exception while fetching data from the store for ids " + ids, e);
+            return null;
+        }
+    }
+
+    /**
+     * Tests whether several keys are stored in the Json store at once.
+     * 
+     * @param ids the ids of the data
+     * @param defaultIfException the value to return for all the ids if there's an exception in accessing the store
+     *            and thus the existence cannot be really checked
+     * @return for each id, whether any data is stored for it, without checking validity
+     * @since 1.1
+     */
+    @Programming
+    public Map<String, Boolean> existsAll(Collection<String> ids, boolean defaultIfException)
+    {
+        try {
+            return getJsonStore().existsAll(ids);
+        } catch (Exception e) {
+            getLogger().warn("Exception while checking whether there is data stored under " + ids, e);
+            Map<String, Boolean> results = new LinkedHashMap<>();
+            for (String id : ids) {
+                results.put(id, defaultIfException);
+            }
+            return results;
+        }
+    }
+
     /**
      * @return implementation of the json store to use.
      */
@@ -19,6 +19,8 @@
  */
 package org.xwiki.contrib.jsonstore.script;
 
+import java.util.Map;
+
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
@@ -28,6 +30,8 @@ import org.xwiki.component.annotation.Component;
 import org.xwiki.contrib.jsonstore.JsonStore;
 import org.xwiki.stability.Unstable;
 
+import com.xpn.xwiki.util.Programming;
+
 /**
  * Script service for the XWiki Permanent Directory implementation of the json store.
  * 
@@ -47,6 +51,17 @@ public class XWikiPermdirJsonStoreScriptService extends AbstractPRJsonStoreScrip
     @Inject
     private Logger logger;
 
+    /**
+     * @return the counters of the cache of the store (hits, misses, evictions, entries, size and maxSize, sizes being
+     *         in bytes), to be used to size the cache
+     * @since 1.1
+     */
+    @Programming
+    public Map<String, Long> getCacheStatistics()
+    {
+        return this.permDirJsonStore.getCacheStatistics();
+    }
+
     @Override
     protected JsonStore getJsonStore()
     {
@@ -0,0 +1,120 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests of the default methods of {@link JsonStore}, on a store implementing only the methods of the 1.0 role.
+ *
+ * @version $Id$
+ */
+public class JsonStoreTest
+{
+    private final Map<String, Object> data = new HashMap<>();
+
+    private final JsonStore store = new JsonStore()
+    {
+        @Override
+        public boolean persistAsJson(Object value, String id, boolean forceOverwrite)
+        {
+            if (value == null || (!forceOverwrite && data.containsKey(id))) {
+                return false;
+            }
+            data.put(id, value);
+            return true;
+        }
+
+        @Override
+        public Object getFromJsonStore(String id)
+        {
+            return data.get(id);
+        }
+
+        @Override
+        public boolean exists(String id)
+        {
+            return data.containsKey(id);
+        }
+    };
+
+    @Test
+    public void readsAreBuiltOnTheStoredObjects() throws Exception
+    {
+        this.store.persistAsJson(Collections.singletonMap("items", Arrays.asList("a", "b")), "id", false);
+
+        assertEquals("b", this.store.getFromJsonStore("id", "/items/1"));
+        assertNull(this.store.getFromJsonStore("id", "/items/2"));
+        assertEquals("a", this.store.getFromJsonStore("id", JsonNode.class).at("/items/0").asText());
+        assertEquals("{\"items\":[\"a\",\"b\"]}",
+            StandardCharsets.UTF_8.decode(this.store.getRawJson("id")).toString());
+        assertNull(this.store.getRawJson("missing"));
+        try (JsonParser parser = this.store.openStream("id")) {
+            assertEquals(this.store.getFromJsonStore("id"), parser.readValueAs(Map.class));
+        }
+        assertNull(this.store.openStream("missing"));
+        assertEquals(Collections.singletonMap("id", true), this.store.existsAll(Collections.singleton("id")));
+        assertEquals(Collections.emptyMap(), this.store.getCacheStatistics());
+    }
+
+    @Test
+    public void unsupportedOperations() throws Exception
+    {
+        assertUnsupported(() -> this.store.persistAsJson("value", "id", true, 1000));
+        assertUnsupported(() -> this.store.patch("id", Collections.emptyMap()));
+        assertUnsupported(() -> this.store.getVersion("id"));
+        assertUnsupported(() -> this.store.persistIfVersion("value", "id", null));
+        assertUnsupported(() -> this.store.list(null, null, 10));
+        assertUnsupported(() -> this.store.remove("id"));
+        assertUnsupported(() -> this.store.removePrefix("id"));
+        assertUnsupported(() -> this.store.exportTo(new ByteArrayOutputStream(), null));
+        assertUnsupported(() -> this.store.importFrom(new ByteArrayInputStream(new byte[0]), false));
+    }
+
+    private void assertUnsupported(Operation operation) throws Exception
+    {
+        try {
+            operation.run();
+            fail("Expected the operation to be unsupported");
+        } catch (UnsupportedOperationException expected) {
+            // expected
+        }
+    }
+
+    private interface Operation
+    {
+        Object run() throws Exception;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore.internal;
+
+import java.io.File;
+import java.io.InputStream;
+import java.lang.reflect.Type;
+import java.net.URL;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
+import org.xwiki.component.descriptor.DefaultComponentDescriptor;
+import org.xwiki.component.embed.EmbeddableComponentManager;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.configuration.internal.MemoryConfigurationSource;
+import org.xwiki.contrib.jsonstore.JsonStore;
+import org.xwiki.environment.Environment;
+
+/**
+ * Starts the json stores in an embedded component manager, with a temporary permanent directory and an in-memory
+ * configuration, and restarts them on the same directory to check what they persisted.
+ *
+ * @version $Id$
+ */
+public abstract class AbstractJsonStoreTest
+{
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    protected final MemoryConfigurationSource configuration = new MemoryConfigurationSource();
+
+    protected File permanentDirectory;
+
+    private EmbeddableComponentManager componentManager;
+
+    @Before
+    public void setUpPermanentDirectory() throws Exception
+    {
+        this.permanentDirectory = this.temporaryFolder.newFolder("permdir");
+    }
+
+    @After
+    public void tearDown()
+    {
+        stop();
+    }
+
+    /**
+     * @param hint the hint of the store implementation
+     * @return the store, started on the permanent directory with the current configuration
+     * @throws Exception if the store cannot be started
+     */
+    protected JsonStore start(String hint) throws Exception
+    {
+        stop();
+        this.componentManager = new EmbeddableComponentManager();
+        this.componentManager.initialize(getClass().getClassLoader());
+
+        DefaultComponentDescriptor<Environment> environmentDescriptor = new DefaultComponentDescriptor<>();
+        environmentDescriptor.setRoleType(Environment.class);
+        this.componentManager.registerComponent(environmentDescriptor, new Environment()
+        {
+            @Override
+            public File getTemporaryDirectory()
+            {
+                return permanentDirectory;
+            }
+
+            @Override
+            public File getPermanentDirectory()
+            {
+                return permanentDirectory;
+            }
+
+            @Override
+            public URL getResource(String resourceName)
+            {
+                return null;
+            }
+
+            @Override
+            public InputStream getResourceAsStream(String resourceName)
+            {
+                return null;
+            }
+        });
+
+        DefaultComponentDescriptor<ConfigurationSource> configurationDescriptor = new DefaultComponentDescriptor<>();
+        configurationDescriptor.setRoleType(ConfigurationSource.class);
+        configurationDescriptor.setRoleHint("xwikiproperties");
+        this.componentManager.registerComponent(configurationDescriptor, this.configuration);
+
+        return this.componentManager.getInstance(JsonStore.class, hint);
+    }
+
+    /**
+     * @param <T> the type of the component
+     * @param roleType the role of a component
+     * @param hint the hint of the component
+     * @return the component of the store started by {@link #start(String)}
+     * @throws Exception if the component cannot be found
+     */
+    protected <T> T getInstance(Type roleType, String hint) throws Exception
+    {
+        return this.componentManager.getInstance(roleType, hint);
+    }
+
+    /**
+     * Disposes the started store, if any.
+     */
+    protected void stop()
+    {
+        if (this.componentManager != null) {
+            this.componentManager.dispose();
+            this.componentManager = null;
+        }
+    }
+}
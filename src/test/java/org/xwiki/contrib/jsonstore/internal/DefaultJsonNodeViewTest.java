@@ -0,0 +1,100 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore.internal;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.xwiki.contrib.jsonstore.JsonNodeView;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.MissingNode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for {@link DefaultJsonNodeView}.
+ *
+ * @version $Id$
+ */
+public class DefaultJsonNodeViewTest
+{
+    private final JsonNodeView view = new DefaultJsonNodeView();
+
+    @Test
+    public void wrapObjectsAndArrays() throws Exception
+    {
+        Object wrapped = this.view.wrap(new ObjectMapper()
+            .readTree("{\"name\":\"job\",\"count\":3,\"done\":true,\"tags\":[\"a\",{\"b\":null}],\"none\":null}"));
+
+        Map<?, ?> object = (Map<?, ?>) wrapped;
+        assertEquals(5, object.size());
+        assertEquals("job", object.get("name"));
+        assertEquals(3, object.get("count"));
+        assertEquals(true, object.get("done"));
+        assertTrue(object.containsKey("none"));
+        assertNull(object.get("none"));
+        assertFalse(object.containsKey("missing"));
+        assertEquals(Arrays.asList("name", "count", "done", "tags", "none"), Arrays.asList(object.keySet().toArray()));
+
+        List<?> tags = (List<?>) object.get("tags");
+        assertEquals(2, tags.size());
+        assertEquals("a", tags.get(0));
+        assertTrue(((Map<?, ?>) tags.get(1)).containsKey("b"));
+        try {
+            tags.get(2);
+            fail("Expected the index to be out of the bounds of the list");
+        } catch (IndexOutOfBoundsException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void viewsAreReadOnly() throws Exception
+    {
+        Map<?, ?> object = (Map<?, ?>) this.view.wrap(new ObjectMapper().readTree("{\"a\":[1]}"));
+
+        try {
+            object.clear();
+            fail("Expected the view to be read only");
+        } catch (UnsupportedOperationException expected) {
+            // expected
+        }
+        try {
+            ((List<?>) object.get("a")).remove(0);
+            fail("Expected the view to be read only");
+        } catch (UnsupportedOperationException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void wrapMissingValues()
+    {
+        assertNull(this.view.wrap(null));
+        assertNull(this.view.wrap(MissingNode.getInstance()));
+    }
+}
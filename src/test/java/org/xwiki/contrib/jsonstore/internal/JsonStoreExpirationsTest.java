@@ -0,0 +1,153 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore.internal;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.helpers.NOPLogger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link JsonStoreExpirations}.
+ *
+ * @version $Id$
+ */
+public class JsonStoreExpirationsTest
+{
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path file;
+
+    private JsonStoreExpirations expirations;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.file = this.temporaryFolder.getRoot().toPath().resolve("expirations");
+        this.expirations = open();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        this.expirations.close();
+    }
+
+    @Test
+    public void setReturnsWhetherExpirationChanged() throws Exception
+    {
+        long expiration = System.currentTimeMillis() + 60000;
+
+        assertFalse(this.expirations.set("a", JsonStoreExpirations.NONE));
+        assertTrue(this.expirations.set("a", expiration));
+        assertFalse(this.expirations.set("a", expiration));
+        assertEquals(expiration, this.expirations.get("a"));
+        assertTrue(this.expirations.set("a", JsonStoreExpirations.NONE));
+        assertEquals(JsonStoreExpirations.NONE, this.expirations.get("a"));
+    }
+
+    @Test
+    public void fileIsAppendedOnlyWhenExpirationChanges() throws Exception
+    {
+        this.expirations.set("a", JsonStoreExpirations.NONE);
+        assertFalse(Files.exists(this.file));
+
+        this.expirations.set("a", 1234L);
+        long size = Files.size(this.file);
+        this.expirations.set("a", 1234L);
+
+        assertEquals(size, Files.size(this.file));
+    }
+
+    @Test
+    public void expirationsAreLoadedFromFile() throws Exception
+    {
+        long expiration = System.currentTimeMillis() + 60000;
+        this.expirations.set("a", expiration);
+        this.expirations.set("b", expiration);
+        this.expirations.set("b", JsonStoreExpirations.NONE);
+        this.expirations.close();
+        // an incomplete line, written when the process was stopped
+        Files.write(this.file, "12".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        this.expirations = open();
+
+        assertEquals(expiration, this.expirations.get("a"));
+        assertEquals(JsonStoreExpirations.NONE, this.expirations.get("b"));
+    }
+
+    @Test
+    public void getExpiredReturnsOldestFirst() throws Exception
+    {
+        long now = System.currentTimeMillis();
+        this.expirations.set("a", now - 10);
+        this.expirations.set("b", now - 20);
+        this.expirations.set("c", now + 60000);
+
+        assertTrue(this.expirations.isExpired("a"));
+        assertFalse(this.expirations.isExpired("c"));
+        assertFalse(this.expirations.isExpired("d"));
+        assertEquals(Arrays.asList("b", "a"), this.expirations.getExpired(10));
+        assertEquals(Collections.singletonList("b"), this.expirations.getExpired(1));
+    }
+
+    @Test
+    public void sweeperRemovesExpiredKeys() throws Exception
+    {
+        List<String> removed = new CopyOnWriteArrayList<>();
+        this.expirations.set("a", System.currentTimeMillis() - 10);
+        this.expirations.set("b", System.currentTimeMillis() + 60000);
+
+        this.expirations.start(10, 10, key -> {
+            removed.add(key);
+            this.expirations.set(key, JsonStoreExpirations.NONE);
+        });
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (removed.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(Collections.singletonList("a"), removed);
+        assertFalse(this.expirations.isExpired("a"));
+    }
+
+    private JsonStoreExpirations open() throws Exception
+    {
+        JsonStoreExpirations opened = new JsonStoreExpirations(this.file, null, NOPLogger.NOP_LOGGER);
+        opened.open();
+        return opened;
+    }
+}
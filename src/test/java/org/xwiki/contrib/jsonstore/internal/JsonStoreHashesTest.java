@@ -0,0 +1,57 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore.internal;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link JsonStoreHashes}.
+ *
+ * @version $Id$
+ */
+public class JsonStoreHashesTest
+{
+    @Test
+    public void hashIsWrittenInLowerCaseHexadecimal()
+    {
+        assertEquals("a9993e364706816aba3e25717850c26c9cd0d89d", JsonStoreHashes.hash("SHA-1", "abc"));
+        assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad",
+            JsonStoreVersions.getVersion("abc".getBytes(StandardCharsets.UTF_8)));
+        assertEquals("00ff7f80", JsonStoreHashes.toHex(new byte[] { 0, -1, 127, -128 }));
+    }
+
+    @Test
+    public void hexDigits()
+    {
+        assertEquals('a', JsonStoreHashes.toHexDigit(0x1a));
+        assertTrue(JsonStoreHashes.isHexDigit('0'));
+        assertTrue(JsonStoreHashes.isHexDigit('f'));
+        assertFalse(JsonStoreHashes.isHexDigit('g'));
+        assertFalse(JsonStoreHashes.isHexDigit('A'));
+        assertTrue(XWikiPermdirJsonStoreLayout.isShardName("3f"));
+        assertFalse(XWikiPermdirJsonStoreLayout.isShardName("3F"));
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.xwiki.contrib.jsonstore.JsonStore;
+
+import com.fasterxml.jackson.core.JsonParseException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for {@link JsonStoreNdjson}, through the exports and imports of the stores.
+ *
+ * @version $Id$
+ */
+public class JsonStoreNdjsonTest extends AbstractJsonStoreTest
+{
+    private static final String PERMDIR = "xwikipermdir";
+
+    private static final String SEGMENTLOG = "segmentlog";
+
+    @Test
+    public void exportedDataIsImportedInAnotherStore() throws Exception
+    {
+        this.configuration.setProperty("jsonstore.permdir.compression.enabled", true);
+        this.configuration.setProperty("jsonstore.permdir.compression.threshold", 1024);
+        JsonStore permdir = start(PERMDIR);
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("export/big", Collections.singletonMap("text", String.join("", Collections.nCopies(500, "line\n"))));
+        data.put("export/nested/list", Arrays.asList(1, "two", Collections.singletonMap("three", null)));
+        data.put("export/unicode", Collections.singletonMap("caf\u00e9", "\u00e9t\u00e9"));
+        data.put("other", true);
+        permdir.persistAllAsJson(data, true);
+        // written by hand with line breaks between the tokens
+        Files.write(new File(this.permanentDirectory, "org.xwiki.contrib.jsonstore/export/pretty.json").toPath(),
+            "{\n  \"a\" : [\r\n 1,\n 2 ]\n}\n".getBytes(StandardCharsets.UTF_8));
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        assertEquals(4, permdir.exportTo(output, "export/"));
+        List<String> lines = Arrays.asList(output.toString("UTF-8").split("\n"));
+        assertEquals(4, lines.size());
+        assertTrue(lines.get(0).startsWith("{\"id\":\"export/big\",\"data\":{\"text\":\"line\\nline"));
+        assertEquals("{\"id\":\"export/pretty\",\"data\":{   \"a\" : [   1,  2 ] } }", lines.get(2));
+
+        JsonStore segmentlog = getInstance(JsonStore.class, SEGMENTLOG);
+        assertEquals(4, segmentlog.importFrom(new ByteArrayInputStream(output.toByteArray()), false));
+        assertEquals(Arrays.asList("export/big", "export/nested/list", "export/pretty", "export/unicode"),
+            segmentlog.list("", null, 10));
+        for (String id : segmentlog.list("", null, 10)) {
+            assertEquals(id, permdir.getFromJsonStore(id), segmentlog.getFromJsonStore(id));
+        }
+
+        // and exported again identically, once the pretty printed data is rewritten
+        permdir.persistAsJson(permdir.getFromJsonStore("export/pretty"), "export/pretty", true);
+        ByteArrayOutputStream permdirOutput = new ByteArrayOutputStream();
+        permdir.exportTo(permdirOutput, "export/");
+        ByteArrayOutputStream segmentlogOutput = new ByteArrayOutputStream();
+        assertEquals(4, segmentlog.exportTo(segmentlogOutput, null));
+        assertEquals(permdirOutput.toString("UTF-8"), segmentlogOutput.toString("UTF-8"));
+    }
+
+    @Test
+    public void importWithoutOverwriteKeepsStoredData() throws Exception
+    {
+        JsonStore store = start(SEGMENTLOG);
+        store.persistAsJson(Collections.singletonMap("a", 1), "kept", true);
+        byte[] lines = ("{\"id\":\"kept\",\"data\":{\"a\":2}}\n{\"data\":{\"a\":3},\"id\":\"new\"}\n")
+            .getBytes(StandardCharsets.UTF_8);
+
+        assertEquals(1, store.importFrom(new ByteArrayInputStream(lines), false));
+        assertEquals(Collections.singletonMap("a", 1), store.getFromJsonStore("kept"));
+        assertEquals(Collections.singletonMap("a", 3), store.getFromJsonStore("new"));
+
+        assertEquals(2, store.importFrom(new ByteArrayInputStream(lines), true));
+        assertEquals(Collections.singletonMap("a", 2), store.getFromJsonStore("kept"));
+    }
+
+    @Test
+    public void invalidLinesAreRejected() throws Exception
+    {
+        JsonStore store = start(PERMDIR);
+        try {
+            store.importFrom(new ByteArrayInputStream("{\"id\":\"x\"}\n".getBytes(StandardCharsets.UTF_8)), true);
+            fail("Expected the line without data to be rejected");
+        } catch (JsonParseException expected) {
+            assertFalse(store.exists("x"));
+        }
+        try {
+            store.importFrom(new ByteArrayInputStream("[1]\n".getBytes(StandardCharsets.UTF_8)), true);
+            fail("Expected the line which is not an object to be rejected");
+        } catch (JsonParseException expected) {
+            assertTrue(store.list("", null, 10).isEmpty());
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore.internal;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.xwiki.contrib.jsonstore.JsonStore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that both json store implementations apply the JSON merge patches as specified by RFC 7386.
+ *
+ * @version $Id$
+ */
+public class JsonStorePatchTest extends AbstractJsonStoreTest
+{
+    private static final String ID = "space/page";
+
+    @Test
+    public void patchPermdirStore() throws Exception
+    {
+        assertMergePatch(start("xwikipermdir"));
+    }
+
+    @Test
+    public void patchSegmentLogStore() throws Exception
+    {
+        assertMergePatch(start("segmentlog"));
+    }
+
+    @Test
+    public void patchIsKeptAfterRestart() throws Exception
+    {
+        for (String hint : Arrays.asList("xwikipermdir", "segmentlog")) {
+            JsonStore store = start(hint);
+            store.persistAsJson(Collections.singletonMap("a", 1), ID, true);
+            assertTrue(store.patch(ID, Collections.singletonMap("b", 2)));
+
+            Map<String, Object> expected = new HashMap<>();
+            expected.put("a", 1);
+            expected.put("b", 2);
+            assertEquals(hint, expected, start(hint).getFromJsonStore(ID));
+        }
+    }
+
+    private void assertMergePatch(JsonStore store) throws Exception
+    {
+        // the patch of a missing id is applied to an empty object
+        assertTrue(store.patch(ID, Collections.singletonMap("title", "Hello")));
+        assertEquals(Collections.singletonMap("title", "Hello"), store.getFromJsonStore(ID));
+
+        Map<String, Object> author = new LinkedHashMap<>();
+        author.put("name", "John");
+        author.put("email", "john@example.com");
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("title", "Hello");
+        data.put("author", author);
+        data.put("tags", Arrays.asList("a", "b"));
+        data.put("draft", true);
+        store.persistAsJson(data, ID, true);
+
+        // nested objects are merged, null values remove the members and arrays are replaced
+        Map<String, Object> authorPatch = new LinkedHashMap<>();
+        authorPatch.put("email", null);
+        authorPatch.put("role", "editor");
+        Map<String, Object> patch = new LinkedHashMap<>();
+        patch.put("title", "Bonjour");
+        patch.put("author", authorPatch);
+        patch.put("tags", Collections.singletonList("c"));
+        patch.put("draft", null);
+        patch.put("missing", null);
+        assertTrue(store.patch(ID, patch));
+
+        Map<String, Object> expectedAuthor = new HashMap<>();
+        expectedAuthor.put("name", "John");
+        expectedAuthor.put("role", "editor");
+        Map<String, Object> expected = new HashMap<>();
+        expected.put("title", "Bonjour");
+        expected.put("author", expectedAuthor);
+        expected.put("tags", Collections.singletonList("c"));
+        assertEquals(expected, store.getFromJsonStore(ID));
+
+        // a patch which is not an object replaces the whole data
+        assertTrue(store.patch(ID, Arrays.asList(1, 2)));
+        assertEquals(Arrays.asList(1, 2), store.getFromJsonStore(ID));
+
+        // an object member replaces a stored value which is not an object
+        store.persistAsJson(Collections.singletonMap("author", "John"), ID, true);
+        assertTrue(store.patch(ID, Collections.singletonMap("author", Collections.singletonMap("name", null))));
+        assertEquals(Collections.singletonMap("author", Collections.emptyMap()), store.getFromJsonStore(ID));
+
+        assertFalse(store.patch("../invalid", Collections.emptyMap()));
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore.internal;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the {@link Lock} contract of the locks shared with the other processes.
+ *
+ * @version $Id$
+ */
+public class StripedFileLockTest
+{
+    private static final String KEY = "space/page";
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    private StripedFileLock locks;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.locks = new StripedFileLock(4, this.temporaryFolder.newFolder("locks").toPath());
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        this.executor.shutdownNow();
+        this.locks.close();
+    }
+
+    @Test
+    public void lockIsReentrant() throws Exception
+    {
+        Lock lock = this.locks.get(KEY);
+        lock.lock();
+        assertTrue(lock.tryLock());
+        lock.unlock();
+
+        assertFalse(tryLockFromOtherThread(lock));
+
+        lock.unlock();
+
+        assertTrue(tryLockFromOtherThread(lock));
+    }
+
+    @Test
+    public void timedTryLockWaitsForRelease() throws Exception
+    {
+        Lock lock = this.locks.get(KEY);
+        lock.lock();
+        try {
+            long start = System.nanoTime();
+            assertFalse(this.executor.submit(() -> lock.tryLock(50, TimeUnit.MILLISECONDS)).get());
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        } finally {
+            lock.unlock();
+        }
+
+        assertTrue(this.executor.submit(() -> {
+            if (lock.tryLock(1, TimeUnit.SECONDS)) {
+                lock.unlock();
+                return true;
+            }
+            return false;
+        }).get());
+    }
+
+    @Test
+    public void lockInterruptiblyIsInterrupted() throws Exception
+    {
+        Lock lock = this.locks.get(KEY);
+        CountDownLatch waiting = new CountDownLatch(1);
+        lock.lock();
+        try {
+            Future<Boolean> interrupted = this.executor.submit(() -> {
+                waiting.countDown();
+                try {
+                    lock.lockInterruptibly();
+                    lock.unlock();
+                    return false;
+                } catch (InterruptedException e) {
+                    return true;
+                }
+            });
+            waiting.await();
+            Thread.sleep(50);
+            this.executor.shutdownNow();
+            assertTrue(interrupted.get(10, TimeUnit.SECONDS));
+        } finally {
+            lock.unlock();
+        }
+
+        // the lock can still be taken after the interruption
+        assertTrue(lock.tryLock());
+        lock.unlock();
+    }
+
+    @Test
+    public void conditionReleasesTheLockWhileWaiting() throws Exception
+    {
+        Lock lock = this.locks.get(KEY);
+        Condition condition = lock.newCondition();
+        lock.lock();
+        lock.lock();
+        try {
+            // the other thread can only take the lock once it's released by the wait
+            Future<?> signalled = this.executor.submit(() -> {
+                lock.lock();
+                try {
+                    condition.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            });
+            assertTrue(condition.await(10, TimeUnit.SECONDS));
+            signalled.get(10, TimeUnit.SECONDS);
+
+            // both holds are restored after the wait
+            lock.unlock();
+            assertFalse(tryLockFromOtherThread(lock));
+        } finally {
+            lock.unlock();
+        }
+        assertTrue(tryLockFromOtherThread(lock));
+    }
+
+    @Test(expected = IllegalMonitorStateException.class)
+    public void conditionRequiresTheLock() throws Exception
+    {
+        this.locks.get(KEY).newCondition().await();
+    }
+
+    private boolean tryLockFromOtherThread(Lock lock) throws Exception
+    {
+        return this.executor.submit(() -> {
+            if (lock.tryLock()) {
+                lock.unlock();
+                return true;
+            }
+            return false;
+        }).get();
+    }
+}
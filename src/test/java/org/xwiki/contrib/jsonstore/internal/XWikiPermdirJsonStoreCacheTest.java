@@ -0,0 +1,122 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link XWikiPermdirJsonStoreCache}.
+ *
+ * @version $Id$
+ */
+public class XWikiPermdirJsonStoreCacheTest extends AbstractJsonStoreTest
+{
+    private static final String HINT = "xwikipermdir";
+
+    private static final String KEY = "space/page";
+
+    private JsonStoreCache cache;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.configuration.setProperty("jsonstore.permdir.cache.enabled", true);
+        // 100 bytes per segment
+        this.configuration.setProperty("jsonstore.permdir.cache.maxSize", 1600L);
+        start(HINT);
+        this.cache = getInstance(JsonStoreCache.class, HINT);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void getReturnsCopies()
+    {
+        List<Object> list = new ArrayList<>(Collections.singletonList("a"));
+        this.cache.put(KEY, Collections.singletonMap("list", list), 10, this.cache.getGeneration(KEY));
+        list.add("b");
+
+        Map<String, Object> cached = (Map<String, Object>) this.cache.get(KEY);
+        assertEquals(Collections.singletonMap("list", Collections.singletonList("a")), cached);
+        ((List<Object>) cached.get("list")).add("c");
+        assertNotSame(cached, this.cache.get(KEY));
+        assertEquals(Collections.singletonMap("list", Collections.singletonList("a")), this.cache.get(KEY));
+    }
+
+    @Test
+    public void readsStartedBeforeAnInvalidationAreNotCached()
+    {
+        long generation = this.cache.getGeneration(KEY);
+        this.cache.invalidate(KEY);
+        this.cache.put(KEY, "outdated", 10, generation);
+        assertNull(this.cache.get(KEY));
+
+        this.cache.put(KEY, "value", 10, this.cache.getGeneration(KEY));
+        assertEquals("value", this.cache.get(KEY));
+        this.cache.invalidate(KEY);
+        assertNull(this.cache.get(KEY));
+
+        generation = this.cache.getGeneration(KEY);
+        this.cache.invalidateAll();
+        this.cache.put(KEY, "outdated", 10, generation);
+        assertNull(this.cache.get(KEY));
+    }
+
+    @Test
+    public void getChecksTheStamp()
+    {
+        this.cache.put(KEY, "value", 10, this.cache.getGeneration(KEY), 1L);
+
+        assertNull(this.cache.get(KEY, 2L));
+        assertEquals("value", this.cache.get(KEY, 1L));
+        assertEquals("value", this.cache.get(KEY));
+    }
+
+    @Test
+    public void sizeIsBoundedBySegment()
+    {
+        // too big for a segment
+        this.cache.put(KEY, "value", 101, this.cache.getGeneration(KEY));
+        assertNull(this.cache.get(KEY));
+
+        for (int i = 0; i < 200; i++) {
+            String key = KEY + i;
+            this.cache.put(key, "value", 60, this.cache.getGeneration(key));
+        }
+        Map<String, Long> statistics = this.cache.getStatistics();
+        assertTrue(statistics.get("entries") <= 16);
+        assertEquals(statistics.get("entries") * 60, (long) statistics.get("size"));
+        assertEquals(200 - statistics.get("entries"), (long) statistics.get("evictions"));
+        assertEquals(Long.valueOf(1600), statistics.get("maxSize"));
+
+        // the most recently used entry of each segment is kept
+        assertEquals("value", this.cache.get(KEY + 199));
+    }
+}
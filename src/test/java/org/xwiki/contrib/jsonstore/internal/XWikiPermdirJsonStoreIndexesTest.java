@@ -0,0 +1,228 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore.internal;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link XWikiPermdirJsonStoreIndexes}.
+ *
+ * @version $Id$
+ */
+public class XWikiPermdirJsonStoreIndexesTest
+{
+    private static final String FAILED = "failed";
+
+    private static final String DONE = "done";
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    /**
+     * The status of the stored jobs, read by the indexes.
+     */
+    private final Map<String, Object> statuses = new ConcurrentHashMap<>();
+
+    private Path root;
+
+    private XWikiPermdirJsonStoreIndexes indexes;
+
+    private XWikiPermdirJsonStoreIndexes otherIndexes;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.root = this.temporaryFolder.newFolder("indexes").toPath();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        for (XWikiPermdirJsonStoreIndexes opened : Arrays.asList(this.indexes, this.otherIndexes)) {
+            if (opened != null) {
+                opened.close();
+            }
+        }
+    }
+
+    @Test
+    public void candidatesFollowTheWritesAndRemovals() throws Exception
+    {
+        this.indexes = build(false);
+        XWikiPermdirJsonStoreIndexes.Index index = this.indexes.getIndex("jobs/", "/status");
+
+        write("jobs/j1", FAILED);
+        write("jobs/j2", DONE);
+        write("jobs/j3", FAILED);
+        write("other/j4", FAILED);
+
+        assertEquals(Arrays.asList("jobs/j1", "jobs/j3"), this.indexes.getCandidates(index, "jobs/", FAILED));
+        assertEquals(Collections.singletonList("jobs/j3"), this.indexes.getCandidates(index, "jobs/j3", FAILED));
+
+        write("jobs/j1", DONE);
+        this.indexes.remove("jobs/j3");
+        this.statuses.remove("jobs/j3");
+
+        assertEquals(Collections.emptyList(), this.indexes.getCandidates(index, "jobs/", FAILED));
+        assertEquals(Arrays.asList("jobs/j1", "jobs/j2"), this.indexes.getCandidates(index, "jobs/", DONE));
+
+        // the index is a single file, whatever the number of indexed ids
+        try (Stream<Path> files = Files.walk(this.root)) {
+            assertEquals(Arrays.asList(".complete", ".declaration", "postings"),
+                files.filter(Files::isRegularFile).map(file -> file.getFileName().toString()).sorted()
+                    .collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    public void indexIsLoadedWhenOpened() throws Exception
+    {
+        this.indexes = build(false);
+        write("jobs/j1", FAILED);
+        write("jobs/j2", FAILED);
+        write("jobs/j1", DONE);
+        this.indexes.close();
+
+        this.indexes = open(false);
+        XWikiPermdirJsonStoreIndexes.Index index = this.indexes.getIndex("jobs/", "/status");
+
+        assertTrue(index.isComplete());
+        assertEquals(Collections.singletonList("jobs/j2"), this.indexes.getCandidates(index, "jobs/", FAILED));
+        assertEquals(Collections.singletonList("jobs/j1"), this.indexes.getCandidates(index, "jobs/", DONE));
+    }
+
+    @Test
+    public void checkIndexesTheCurrentValue() throws Exception
+    {
+        this.indexes = build(false);
+        XWikiPermdirJsonStoreIndexes.Index index = this.indexes.getIndex("jobs/", "/status");
+        write("jobs/j1", FAILED);
+        // changed without being indexed
+        this.statuses.put("jobs/j1", DONE);
+
+        assertEquals(Collections.singletonList("jobs/j1"), this.indexes.getCandidates(index, "jobs/", FAILED));
+        assertFalse(this.indexes.check(index, "jobs/j1", FAILED));
+
+        assertEquals(Collections.emptyList(), this.indexes.getCandidates(index, "jobs/", FAILED));
+        assertTrue(this.indexes.check(index, "jobs/j1", DONE));
+    }
+
+    @Test
+    public void postingsFileIsCompacted() throws Exception
+    {
+        this.indexes = build(false);
+        XWikiPermdirJsonStoreIndexes.Index index = this.indexes.getIndex("jobs/", "/status");
+        for (int i = 0; i < 40000; i++) {
+            write("jobs/job" + (i % 100), i % 2 == 0 ? FAILED : DONE);
+        }
+        Path file = this.root.resolve(getIndexFolder()).resolve("postings");
+
+        assertTrue(Files.size(file) < 2 * 1024 * 1024);
+        assertEquals(50, this.indexes.getCandidates(index, "jobs/", DONE).size());
+        this.indexes.close();
+
+        this.indexes = open(false);
+        index = this.indexes.getIndex("jobs/", "/status");
+        assertEquals(50, this.indexes.getCandidates(index, "jobs/", DONE).size());
+        assertEquals(50, this.indexes.getCandidates(index, "jobs/", FAILED).size());
+    }
+
+    @Test
+    public void sharedIndexesReadTheChangesOfTheOtherProcesses() throws Exception
+    {
+        this.indexes = build(true);
+        this.otherIndexes = open(true);
+        XWikiPermdirJsonStoreIndexes.Index index = this.indexes.getIndex("jobs/", "/status");
+        XWikiPermdirJsonStoreIndexes.Index otherIndex = this.otherIndexes.getIndex("jobs/", "/status");
+
+        write("jobs/j1", FAILED);
+        this.statuses.put("jobs/j2", FAILED);
+        this.otherIndexes.add("jobs/j2");
+
+        assertEquals(Arrays.asList("jobs/j1", "jobs/j2"), this.indexes.getCandidates(index, "jobs/", FAILED));
+        assertEquals(Arrays.asList("jobs/j1", "jobs/j2"), this.otherIndexes.getCandidates(otherIndex, "jobs/",
+            FAILED));
+
+        // compacted by the other process
+        for (int i = 0; i < 40000; i++) {
+            this.statuses.put("jobs/j2", i % 2 == 0 ? DONE : FAILED);
+            this.otherIndexes.add("jobs/j2");
+        }
+        write("jobs/j1", DONE);
+
+        assertEquals(Collections.singletonList("jobs/j2"), this.indexes.getCandidates(index, "jobs/", FAILED));
+        assertEquals(Collections.singletonList("jobs/j2"), this.otherIndexes.getCandidates(otherIndex, "jobs/",
+            FAILED));
+        assertEquals(Collections.singletonList("jobs/j1"), this.otherIndexes.getCandidates(otherIndex, "jobs/",
+            DONE));
+    }
+
+    private XWikiPermdirJsonStoreIndexes open(boolean shared) throws Exception
+    {
+        XWikiPermdirJsonStoreIndexes opened = new XWikiPermdirJsonStoreIndexes(this.root,
+            Collections.singletonList("jobs/:/status"), (storagePath, pointer) -> this.statuses.get(storagePath),
+            shared);
+        opened.open();
+        return opened;
+    }
+
+    private XWikiPermdirJsonStoreIndexes build(boolean shared) throws Exception
+    {
+        XWikiPermdirJsonStoreIndexes built = open(shared);
+        for (XWikiPermdirJsonStoreIndexes.Index index : built.getIndexes()) {
+            built.clear(index);
+            built.complete(index);
+        }
+        return built;
+    }
+
+    private void write(String storagePath, String status) throws Exception
+    {
+        this.statuses.put(storagePath, status);
+        this.indexes.add(storagePath);
+    }
+
+    private Path getIndexFolder() throws Exception
+    {
+        try (Stream<Path> folders = Files.list(this.root)) {
+            List<Path> found = folders.collect(Collectors.toList());
+            assertEquals(1, found.size());
+            return found.get(0);
+        }
+    }
+}
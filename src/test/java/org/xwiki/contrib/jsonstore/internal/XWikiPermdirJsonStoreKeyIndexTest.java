@@ -0,0 +1,161 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore.internal;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.helpers.NOPLogger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link XWikiPermdirJsonStoreKeyIndex}.
+ *
+ * @version $Id$
+ */
+public class XWikiPermdirJsonStoreKeyIndexTest
+{
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path root;
+
+    private XWikiPermdirJsonStoreKeyIndex index;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.root = this.temporaryFolder.newFolder("store").toPath();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        if (this.index != null) {
+            this.index.close();
+        }
+    }
+
+    @Test
+    public void buildIndexesStoredFilesOnly() throws Exception
+    {
+        write("space/page.json");
+        write("space/page2.smile");
+        write("space/.page3.json");
+        write("space/page4.txt");
+        write(XWikiPermdirJsonStoreLayout.shard("sharded/page") + ".json");
+
+        start();
+
+        assertEquals(3, this.index.size());
+        assertEquals("json", this.index.getExtension("space/page"));
+        assertEquals("smile", this.index.getExtension("space/page2"));
+        assertEquals("json", this.index.getExtension("sharded/page"));
+        assertNull(this.index.getExtension("space/.page3"));
+    }
+
+    @Test
+    public void externalChangesAreReconciled() throws Exception
+    {
+        write("space/page.json");
+        start();
+
+        write("space/other.json");
+        write("new/sub/page.json");
+        waitUntil(() -> this.index.getExtension("space/other") != null);
+        waitUntil(() -> this.index.getExtension("new/sub/page") != null);
+
+        Files.delete(this.root.resolve("space/page.json"));
+        waitUntil(() -> this.index.getExtension("space/page") == null);
+        assertEquals("json", this.index.getExtension("space/other"));
+    }
+
+    @Test
+    public void removedDirectoriesAreReconciled() throws Exception
+    {
+        write("space/page.json");
+        write("space/sub/page.json");
+        write(XWikiPermdirJsonStoreLayout.shard("sharded/page") + ".json");
+        write("kept/page.json");
+        start();
+
+        FileUtils.deleteDirectory(this.root.resolve("space").toFile());
+        FileUtils.deleteDirectory(this.root.resolve("sharded").toFile());
+
+        waitUntil(() -> this.index.size() == 1);
+        assertEquals("json", this.index.getExtension("kept/page"));
+    }
+
+    @Test
+    public void removedHiddenFilesAreIgnored() throws Exception
+    {
+        write("space/page.json");
+        start();
+
+        // the temporary file of a write, moved into place
+        write("space/.page.json.tmp");
+        Files.move(this.root.resolve("space/.page.json.tmp"), this.root.resolve("space/page.json"),
+            StandardCopyOption.REPLACE_EXISTING);
+        write("space/.page");
+        Files.delete(this.root.resolve("space/.page"));
+        write("space/other.json");
+
+        waitUntil(() -> this.index.getExtension("space/other") != null);
+        assertEquals(Arrays.asList("json", "json"),
+            Arrays.asList(this.index.getExtension("space/page"), this.index.getExtension("space/other")));
+    }
+
+    private void start() throws Exception
+    {
+        this.index = new XWikiPermdirJsonStoreKeyIndex(this.root, Arrays.asList("json", "smile"),
+            NOPLogger.NOP_LOGGER);
+        this.index.start();
+        waitUntil(this.index::isReady);
+    }
+
+    private void write(String path) throws Exception
+    {
+        Path file = this.root.resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.write(file, "{}".getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void waitUntil(Callable<Boolean> condition) throws Exception
+    {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.call()) {
+            assertTrue("Timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
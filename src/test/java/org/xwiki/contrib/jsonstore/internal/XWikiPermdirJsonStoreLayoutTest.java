@@ -0,0 +1,65 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore.internal;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link XWikiPermdirJsonStoreLayout}.
+ *
+ * @version $Id$
+ */
+public class XWikiPermdirJsonStoreLayoutTest
+{
+    @Test
+    public void shardedPathsAreUnsharded()
+    {
+        for (String storagePath : new String[] { "page", "sessions/session-xyz", "a/b/c" }) {
+            String sharded = XWikiPermdirJsonStoreLayout.shard(storagePath);
+            assertTrue(sharded, sharded.matches("(.*/)?[0-9a-f]{2}/[0-9a-f]{2}/[^/]+"));
+            assertEquals(storagePath, XWikiPermdirJsonStoreLayout.unshard(sharded));
+            // the flat paths are kept as is
+            assertEquals(storagePath, XWikiPermdirJsonStoreLayout.unshard(storagePath));
+        }
+    }
+
+    @Test
+    public void shardFoldersAreRecognized()
+    {
+        String sharded = XWikiPermdirJsonStoreLayout.shard("sessions/session-xyz");
+        String shardFolder = sharded.substring(0, sharded.lastIndexOf('/') + 1);
+
+        assertTrue(XWikiPermdirJsonStoreLayout.isShardOf(shardFolder, "session-xyz"));
+        assertTrue(XWikiPermdirJsonStoreLayout.isShardOf(shardFolder.substring("sessions/".length()), "session-xyz"));
+        assertFalse(XWikiPermdirJsonStoreLayout.isShardOf("sessions/", "session-xyz"));
+        assertFalse(XWikiPermdirJsonStoreLayout.isShardOf("x" + shardFolder.substring("sessions/".length()),
+            "session-xyz"));
+
+        // the shard folders of another name are folders of ids
+        String otherShard = XWikiPermdirJsonStoreLayout.shard("other");
+        String path = otherShard.substring(0, otherShard.lastIndexOf('/') + 1) + "session-xyz";
+        assertFalse(XWikiPermdirJsonStoreLayout.isShardOf(path.substring(0, 6), "session-xyz"));
+        assertEquals(path, XWikiPermdirJsonStoreLayout.unshard(path));
+    }
+}
@@ -0,0 +1,692 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.management.JMX;
+
+import org.apache.commons.lang3.StringUtils;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.xwiki.contrib.jsonstore.JsonStore;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for {@link XWikiPermdirJsonStore}.
+ *
+ * @version $Id$
+ */
+public class XWikiPermdirJsonStoreTest extends AbstractJsonStoreTest
+{
+    private static final String HINT = "xwikipermdir";
+
+    private static final String ID = "space/page";
+
+    @Test
+    public void persistWithoutOverwriteOnMissingId() throws Exception
+    {
+        JsonStore store = start(HINT);
+
+        assertTrue(store.persistAsJson(Collections.singletonMap("a", 1), ID, false));
+        assertEquals(Collections.singletonMap("a", 1), store.getFromJsonStore(ID));
+        assertTrue(store.exists(ID));
+    }
+
+    @Test
+    public void persistWithoutOverwriteKeepsStoredData() throws Exception
+    {
+        JsonStore store = start(HINT);
+        store.persistAsJson(Collections.singletonMap("a", 1), ID, false);
+
+        assertFalse(store.persistAsJson(Collections.singletonMap("a", 2), ID, false));
+        assertEquals(Collections.singletonMap("a", 1), store.getFromJsonStore(ID));
+    }
+
+    @Test
+    public void persistWithOverwriteReplacesStoredData() throws Exception
+    {
+        JsonStore store = start(HINT);
+        store.persistAsJson(Collections.singletonMap("a", 1), ID, false);
+
+        assertTrue(store.persistAsJson(Collections.singletonMap("a", 2), ID, true));
+        assertEquals(Collections.singletonMap("a", 2), store.getFromJsonStore(ID));
+
+        // the same data is written again
+        assertTrue(store.persistAsJson(Collections.singletonMap("a", 2), ID, true));
+        assertEquals(Collections.singletonMap("a", 2), store.getFromJsonStore(ID));
+        assertEquals(Collections.emptyList(), getHiddenFiles());
+    }
+
+    @Test
+    public void persistIsKeptAfterRestart() throws Exception
+    {
+        start(HINT).persistAsJson(Collections.singletonMap("a", 1), ID, false);
+
+        JsonStore store = start(HINT);
+
+        assertEquals(Collections.singletonMap("a", 1), store.getFromJsonStore(ID));
+    }
+
+    @Test
+    public void concurrentPersistWithoutOverwriteWritesOnce() throws Exception
+    {
+        JsonStore store = start(HINT);
+        int threads = 8;
+        CountDownLatch ready = new CountDownLatch(threads);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                int value = i;
+                Callable<Boolean> write = () -> {
+                    ready.countDown();
+                    ready.await();
+                    return store.persistAsJson(Collections.singletonMap("a", value), ID, false);
+                };
+                results.add(executor.submit(write));
+            }
+            int written = 0;
+            for (Future<Boolean> result : results) {
+                written += result.get() ? 1 : 0;
+            }
+            assertEquals(1, written);
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(Collections.emptyList(), getHiddenFiles());
+    }
+
+    @Test
+    public void formatsAreReadAfterSwitchingFormat() throws Exception
+    {
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("name", "caf\u00e9");
+        data.put("items", Arrays.asList(1, 2.5, true, null));
+        data.put("nested", Collections.singletonMap("a", "b"));
+        File folder = new File(this.permanentDirectory, "org.xwiki.contrib.jsonstore/space");
+        for (String format : new String[] { "smile", "cbor", "json" }) {
+            this.configuration.setProperty("jsonstore.permdir.format", format);
+            JsonStore store = start(HINT);
+            // written in the previous format, or missing
+            assertTrue(ID, store.getFromJsonStore(ID) == null || data.equals(store.getFromJsonStore(ID)));
+
+            store.persistAsJson(new JSONObject(Collections.singletonMap("json", "object")), ID + format, true);
+            assertEquals(Collections.singletonMap("json", "object"), store.getFromJsonStore(ID + format));
+
+            // the overwrite replaces the file written in the previous format
+            store.persistAsJson(data, ID, true);
+            assertEquals(data, store.getFromJsonStore(ID));
+            String[] files = folder.list((dir, name) -> name.startsWith("page."));
+            assertEquals(Arrays.asList("page." + format), Arrays.asList(files));
+        }
+        // the files written in all the formats are read
+        JsonStore store = start(HINT);
+        for (String format : new String[] { "smile", "cbor", "json" }) {
+            assertEquals(Collections.singletonMap("json", "object"), store.getFromJsonStore(ID + format));
+        }
+    }
+
+    @Test
+    public void batchOperations() throws Exception
+    {
+        JsonStore store = start(HINT);
+        store.persistAsJson(Collections.singletonMap("i", -1), "batch/0", true);
+        Map<String, Object> data = new LinkedHashMap<>();
+        Map<String, Boolean> expectedWrites = new LinkedHashMap<>();
+        for (int i = 0; i < 50; i++) {
+            data.put("batch/" + i, Collections.singletonMap("i", i));
+            expectedWrites.put("batch/" + i, i > 0);
+        }
+
+        // the existing id is not overwritten, and the results are in the order of the passed ids
+        Map<String, Boolean> written = store.persistAllAsJson(data, false);
+        assertEquals(new ArrayList<>(expectedWrites.entrySet()), new ArrayList<>(written.entrySet()));
+
+        List<String> ids = new ArrayList<>(data.keySet());
+        ids.add("batch/missing");
+        Map<String, Object> read = store.getAllFromJsonStore(ids);
+        assertEquals(ids, new ArrayList<>(read.keySet()));
+        assertEquals(Collections.singletonMap("i", -1), read.get("batch/0"));
+        assertEquals(Collections.singletonMap("i", 49), read.get("batch/49"));
+        assertNull(read.get("batch/missing"));
+
+        Map<String, Boolean> exists = store.existsAll(ids);
+        assertEquals(ids, new ArrayList<>(exists.keySet()));
+        assertEquals(50, exists.values().stream().filter(Boolean::booleanValue).count());
+        assertFalse(exists.get("batch/missing"));
+    }
+
+    @Test
+    public void pointerReads() throws Exception
+    {
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("skipped", Collections.singletonMap("big", Arrays.asList(1, 2, 3)));
+        data.put("items", Arrays.asList("a", Collections.singletonMap("b", 2)));
+        data.put("a/b", "escaped");
+        for (String format : new String[] { "json", "smile" }) {
+            this.configuration.setProperty("jsonstore.permdir.format", format);
+            JsonStore store = start(HINT);
+            store.persistAsJson(data, ID, true);
+
+            assertEquals(data, store.getFromJsonStore(ID, ""));
+            assertEquals("a", store.getFromJsonStore(ID, "/items/0"));
+            assertEquals(Collections.singletonMap("b", 2), store.getFromJsonStore(ID, "/items/1"));
+            assertEquals(2, store.getFromJsonStore(ID, "/items/1/b"));
+            assertEquals("escaped", store.getFromJsonStore(ID, "/a~1b"));
+            assertNull(store.getFromJsonStore(ID, "/items/2"));
+            assertNull(store.getFromJsonStore(ID, "/items/0/b"));
+            assertNull(store.getFromJsonStore(ID, "/missing"));
+            assertNull(store.getFromJsonStore("missing", "/items"));
+        }
+    }
+
+    @Test
+    public void removeMissingId() throws Exception
+    {
+        JsonStore store = start(HINT);
+
+        assertFalse(store.remove(ID));
+        assertNull(store.getFromJsonStore(ID));
+    }
+
+    @Test
+    public void expiredIdIsReportedMissing() throws Exception
+    {
+        JsonStore store = start(HINT);
+        store.persistAsJson(Collections.singletonMap("a", 1), ID, true, 1);
+        store.persistAsJson(Collections.singletonMap("a", 1), "space/other", true, 60000);
+        Thread.sleep(10);
+
+        assertNull(store.getFromJsonStore(ID));
+        assertFalse(store.exists(ID));
+        assertEquals(Collections.singletonList("space/other"), store.list("space/", null, 10));
+        assertFalse(store.remove(ID));
+    }
+
+    @Test
+    public void expiredIdIsOverwrittenWithoutForce() throws Exception
+    {
+        JsonStore store = start(HINT);
+        store.persistAsJson(Collections.singletonMap("a", 1), ID, true, 1);
+        Thread.sleep(10);
+
+        assertTrue(store.persistAsJson(Collections.singletonMap("a", 2), ID, false));
+        assertEquals(Collections.singletonMap("a", 2), store.getFromJsonStore(ID));
+
+        // the same data as the expired one
+        store.persistAsJson(Collections.singletonMap("a", 2), ID, true, 1);
+        Thread.sleep(10);
+        assertTrue(store.persistAsJson(Collections.singletonMap("a", 2), ID, false));
+        assertEquals(Collections.singletonMap("a", 2), store.getFromJsonStore(ID));
+    }
+
+    @Test
+    public void persistWithoutTimeToLiveMakesIdPermanent() throws Exception
+    {
+        JsonStore store = start(HINT);
+        store.persistAsJson(Collections.singletonMap("a", 1), ID, true, 100);
+        store.persistAsJson(Collections.singletonMap("a", 2), ID, true);
+        Thread.sleep(150);
+
+        assertEquals(Collections.singletonMap("a", 2), store.getFromJsonStore(ID));
+    }
+
+    @Test
+    public void expiredIdIsRemovedBySweeper() throws Exception
+    {
+        this.configuration.setProperty("jsonstore.permdir.expiration.sweep.interval", 20L);
+        JsonStore store = start(HINT);
+        store.persistAsJson(Collections.singletonMap("a", 1), ID, true, 1000);
+        File file = new File(this.permanentDirectory, "org.xwiki.contrib.jsonstore/space/page.json");
+        assertTrue(file.exists());
+
+        waitUntil(() -> !file.exists());
+        assertNull(store.getFromJsonStore(ID));
+    }
+
+    @Test
+    public void expirationsAreKeptAfterRestart() throws Exception
+    {
+        JsonStore store = start(HINT);
+        store.persistAsJson(Collections.singletonMap("a", 1), ID, true, 200);
+        store.persistAsJson(Collections.singletonMap("a", 1), "space/other", true, 60000);
+
+        store = start(HINT);
+        assertTrue(store.exists(ID));
+        Thread.sleep(250);
+
+        assertFalse(store.exists(ID));
+        assertTrue(store.exists("space/other"));
+    }
+
+    @Test
+    public void expirationsAreRecordedOnlyWhenSet() throws Exception
+    {
+        this.configuration.setProperty("jsonstore.permdir.multiProcess.enabled", true);
+        JsonStore store = start(HINT);
+        for (int i = 0; i < 10; i++) {
+            store.persistAsJson(Collections.singletonMap("a", i), ID, true);
+        }
+        store.remove(ID);
+
+        assertFalse(new File(this.permanentDirectory, "org.xwiki.contrib.jsonstore/.expirations").exists());
+    }
+
+    @Test
+    public void listPagesOfFlatFolder() throws Exception
+    {
+        assertPages(start(HINT));
+    }
+
+    @Test
+    public void listPagesOfShardedFolder() throws Exception
+    {
+        this.configuration.setProperty("jsonstore.permdir.sharding.enabled", true);
+        assertPages(start(HINT));
+    }
+
+    @Test
+    public void shardedLayoutMigration() throws Exception
+    {
+        File storage = new File(this.permanentDirectory, "org.xwiki.contrib.jsonstore");
+        File layout = new File(storage, ".layout");
+        JsonStore store = start(HINT);
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            ids.add("sessions/session-" + i);
+            store.persistAsJson(Collections.singletonMap("i", i), ids.get(i), true);
+        }
+        Collections.sort(ids);
+
+        this.configuration.setProperty("jsonstore.permdir.sharding.enabled", true);
+        store = start(HINT);
+        // the ids are read while they are moved
+        for (String id : ids) {
+            assertTrue(id, store.exists(id));
+        }
+        waitUntil(() -> layout.exists());
+        assertEquals("sharded", new String(Files.readAllBytes(layout.toPath()), StandardCharsets.UTF_8));
+        for (String id : ids) {
+            assertFalse(id, new File(storage, id + ".json").exists());
+            assertTrue(id, new File(storage, XWikiPermdirJsonStoreLayout.shard(id) + ".json").exists());
+        }
+        assertEquals(ids, store.list("sessions/", null, 1000));
+        assertEquals(Collections.singletonMap("i", 42), store.getFromJsonStore("sessions/session-42"));
+
+        // and moved back
+        this.configuration.setProperty("jsonstore.permdir.sharding.enabled", false);
+        store = start(HINT);
+        store.persistAsJson(Collections.singletonMap("i", -1), "sessions/session-0", true);
+        waitUntil(() -> "flat".equals(new String(Files.readAllBytes(layout.toPath()), StandardCharsets.UTF_8)));
+        for (String id : ids) {
+            assertTrue(id, new File(storage, id + ".json").exists());
+            assertFalse(id, new File(storage, XWikiPermdirJsonStoreLayout.shard(id) + ".json").exists());
+        }
+        assertEquals(ids, store.list("sessions/", null, 1000));
+        assertEquals(Collections.singletonMap("i", -1), store.getFromJsonStore("sessions/session-0"));
+    }
+
+    @Test
+    public void listByNamePrefix() throws Exception
+    {
+        JsonStore store = start(HINT);
+        for (String id : Arrays.asList("p/ab1", "p/ab/c", "p/b", "p/ab2", "p/ab/d/e", "q/ab")) {
+            store.persistAsJson(Collections.singletonMap("id", id), id, true);
+        }
+        // an empty folder doesn't contain any id
+        new File(this.permanentDirectory, "org.xwiki.contrib.jsonstore/p/ab0").mkdirs();
+
+        assertEquals(Arrays.asList("p/ab/c", "p/ab/d/e", "p/ab1", "p/ab2"), store.list("p/ab", null, 10));
+        assertEquals(Arrays.asList("p/ab/d/e", "p/ab1"), store.list("p/ab", "p/ab/c", 2));
+        assertEquals(Collections.singletonList("p/ab/d/e"), store.list("p/ab/", "p/ab/c", 10));
+        assertEquals(Collections.emptyList(), store.list("p/c", null, 10));
+
+        assertEquals(4, store.removePrefix("p/ab"));
+        assertEquals(Collections.singletonList("p/b"), store.list("p/", null, 10));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void cachedReadsAreInvalidatedByWrites() throws Exception
+    {
+        this.configuration.setProperty("jsonstore.permdir.cache.enabled", true);
+        JsonStore store = start(HINT);
+        store.persistAsJson(Collections.singletonMap("a", 1), ID, true);
+
+        assertEquals(Collections.singletonMap("a", 1), store.getFromJsonStore(ID));
+        // the returned data is a copy of the cached data
+        ((Map<String, Object>) store.getFromJsonStore(ID)).put("a", 3);
+        assertEquals(Collections.singletonMap("a", 1), store.getFromJsonStore(ID));
+        assertEquals(Long.valueOf(2), store.getCacheStatistics().get("hits"));
+        assertEquals(Long.valueOf(1), store.getCacheStatistics().get("entries"));
+
+        store.persistAsJson(Collections.singletonMap("a", 2), ID, true);
+        assertEquals(Long.valueOf(0), store.getCacheStatistics().get("entries"));
+        assertEquals(Collections.singletonMap("a", 2), store.getFromJsonStore(ID));
+        assertEquals(Long.valueOf(2), store.getCacheStatistics().get("misses"));
+    }
+
+    @Test
+    public void metricsCountTheWrittenBytesAndTheFailures() throws Exception
+    {
+        JsonStore store = start(HINT);
+        XWikiPermdirJsonStoreMetricsMXBean metrics = JMX.newMXBeanProxy(ManagementFactory.getPlatformMBeanServer(),
+            XWikiPermdirJsonStoreMetrics.getObjectName(HINT), XWikiPermdirJsonStoreMetricsMXBean.class);
+
+        store.persistAsJson(Collections.singletonMap("a", 1), ID, true);
+        assertEquals(7, metrics.getBytesWritten());
+        assertEquals(1, metrics.getPersistLatency().getCount());
+        // the unchanged data is not written
+        store.persistAsJson(Collections.singletonMap("a", 1), ID, true);
+        assertEquals(7, metrics.getBytesWritten());
+
+        Files.write(new File(this.permanentDirectory, "org.xwiki.contrib.jsonstore/space/page.json").toPath(),
+            "{\"a\"".getBytes(StandardCharsets.UTF_8));
+        try {
+            store.patch(ID, Collections.singletonMap("b", 2));
+            fail("Expected the patch of invalid data to fail");
+        } catch (IOException expected) {
+            assertEquals(Collections.singletonMap(expected.getClass().getName(), 1L), metrics.getErrors());
+        }
+    }
+
+    @Test
+    public void compressionRoundTripWithMixedFiles() throws Exception
+    {
+        File folder = new File(this.permanentDirectory, "org.xwiki.contrib.jsonstore/space");
+        Map<String, Object> big = Collections.singletonMap("text", StringUtils.repeat("compressed ", 1000));
+        Map<String, Object> small = Collections.singletonMap("text", "small");
+        // written before the compression is enabled
+        start(HINT).persistAsJson(big, "space/before", true);
+
+        this.configuration.setProperty("jsonstore.permdir.compression.enabled", true);
+        this.configuration.setProperty("jsonstore.permdir.compression.threshold", 1024);
+        JsonStore store = start(HINT);
+        store.persistAsJson(big, "space/big", true);
+        store.persistAsJson(small, "space/small", true);
+        assertFalse(isCompressed(new File(folder, "before.json")));
+        assertTrue(isCompressed(new File(folder, "big.json")));
+        assertTrue(new File(folder, "big.json").length() < 1024);
+        // the files smaller than the threshold are not compressed
+        assertFalse(isCompressed(new File(folder, "small.json")));
+        assertEquals(big, store.getFromJsonStore("space/before"));
+        assertEquals(big, store.getFromJsonStore("space/big"));
+        assertEquals(small, store.getFromJsonStore("space/small"));
+        assertEquals(big.get("text"), store.getFromJsonStore("space/big", "/text"));
+
+        // the compressed files are still read once the compression is disabled
+        this.configuration.setProperty("jsonstore.permdir.compression.enabled", false);
+        store = start(HINT);
+        assertEquals(big, store.getFromJsonStore("space/big"));
+        assertTrue(store.patch("space/big", Collections.singletonMap("patched", true)));
+        assertFalse(isCompressed(new File(folder, "big.json")));
+        Map<String, Object> patched = new LinkedHashMap<>(big);
+        patched.put("patched", true);
+        assertEquals(patched, store.getFromJsonStore("space/big"));
+    }
+
+    private boolean isCompressed(File file) throws IOException
+    {
+        return JsonStoreCompression.isCompressed(ByteBuffer.wrap(Files.readAllBytes(file.toPath())));
+    }
+
+    @Test
+    public void rawJsonOfCompressedAndMappedFiles() throws Exception
+    {
+        this.configuration.setProperty("jsonstore.permdir.compression.enabled", true);
+        this.configuration.setProperty("jsonstore.permdir.compression.threshold", 0L);
+        this.configuration.setProperty("jsonstore.permdir.mmap.threshold", 0L);
+        JsonStore store = start(HINT);
+        store.persistAsJson(Collections.singletonMap("a", "b"), ID, true);
+        assertTrue(isCompressed(new File(this.permanentDirectory, "org.xwiki.contrib.jsonstore/space/page.json")));
+
+        String json = "{\"a\":\"b\"}";
+        assertEquals(json, StandardCharsets.UTF_8.decode(store.getRawJson(ID)).toString());
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        assertTrue(store.writeRawJson(ID, output));
+        assertEquals(json, output.toString("UTF-8"));
+        assertFalse(store.writeRawJson("missing", output));
+        assertEquals(json, output.toString("UTF-8"));
+
+        // the files written in another format are converted while they are streamed
+        this.configuration.setProperty("jsonstore.permdir.format", "smile");
+        store = start(HINT);
+        store.persistAsJson(Collections.singletonMap("c", 1), "other", true);
+        output.reset();
+        assertTrue(store.writeRawJson("other", output));
+        assertEquals("{\"c\":1}", output.toString("UTF-8"));
+        output.reset();
+        assertTrue(store.writeRawJson(ID, output));
+        assertEquals(json, output.toString("UTF-8"));
+    }
+
+    @Test
+    public void typedReads() throws Exception
+    {
+        JsonStore store = start(HINT);
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("name", "job");
+        data.put("items", Arrays.asList(1, 2));
+        store.persistAsJson(data, ID, true);
+
+        assertEquals(2, store.getFromJsonStore(ID, JsonNode.class).at("/items/1").asInt());
+        assertEquals(data, store.getFromJsonStore(ID, Map.class));
+        Job job = store.getFromJsonStore(ID, Job.class);
+        assertEquals("job", job.name);
+        assertEquals(Arrays.asList(1, 2), job.items);
+        assertNull(store.getFromJsonStore("space/missing", JsonNode.class));
+    }
+
+    /**
+     * The stored data of {@link #typedReads()}, bound by Jackson.
+     */
+    public static class Job
+    {
+        public String name;
+
+        public List<Integer> items;
+    }
+
+    private void assertPages(JsonStore store) throws Exception
+    {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 250; i++) {
+            String id = String.format("flat/%d", i * 7919 % 1000);
+            // every tenth id is expired, and skipped
+            if (i % 10 == 0) {
+                store.persistAsJson(Collections.singletonMap("i", i), id, true, 1);
+            } else {
+                store.persistAsJson(Collections.singletonMap("i", i), id, true);
+                ids.add(id);
+            }
+        }
+        Collections.sort(ids);
+        Thread.sleep(10);
+
+        for (int limit : new int[] { 1, 7, 100, 1000 }) {
+            List<String> listed = new ArrayList<>();
+            String cursor = null;
+            List<String> page;
+            do {
+                page = store.list("flat/", cursor, limit);
+                assertTrue(page.size() <= limit);
+                listed.addAll(page);
+                cursor = page.isEmpty() ? cursor : page.get(page.size() - 1);
+            } while (page.size() == limit);
+            assertEquals("Pages of " + limit, ids, listed);
+        }
+    }
+
+    @Test
+    public void findIdsWithIndex() throws Exception
+    {
+        this.configuration.setProperty("jsonstore.permdir.indexes", Collections.singletonList("jobs/:/status"));
+        JsonStore store = start(HINT);
+        waitUntil(() -> isIndexComplete());
+        store.persistAsJson(Collections.singletonMap("status", "failed"), "jobs/j1", true);
+        store.persistAsJson(Collections.singletonMap("status", "done"), "jobs/j2", true);
+        store.persistAsJson(Collections.singletonMap("status", "failed"), "jobs/j3", true);
+        store.persistAsJson(Collections.singletonMap("status", "failed"), "jobs/j4", true, 1);
+
+        Thread.sleep(10);
+        assertEquals(Arrays.asList("jobs/j1", "jobs/j3"), store.findIds("jobs/", "/status", "failed"));
+
+        store.persistAsJson(Collections.singletonMap("status", "done"), "jobs/j1", true);
+        store.remove("jobs/j3");
+        assertEquals(Collections.emptyList(), store.findIds("jobs/", "/status", "failed"));
+
+        store = start(HINT);
+        assertEquals(Arrays.asList("jobs/j1", "jobs/j2"), store.findIds("jobs/", "/status", "done"));
+    }
+
+    @Test
+    public void findIdsWithIndexIncludesPendingWrites() throws Exception
+    {
+        this.configuration.setProperty("jsonstore.permdir.indexes", Collections.singletonList("jobs/:/status"));
+        this.configuration.setProperty("jsonstore.permdir.writeBehind.enabled", true);
+        this.configuration.setProperty("jsonstore.permdir.writeBehind.interval", 60000L);
+        JsonStore store = start(HINT);
+        waitUntil(() -> isIndexComplete());
+        store.persistAsJson(Collections.singletonMap("status", "failed"), "jobs/j1", true);
+
+        store.persistAsJsonAsync(Collections.singletonMap("status", "done"), "jobs/j1", true);
+        store.persistAsJsonAsync(Collections.singletonMap("status", "failed"), "jobs/j2", true);
+
+        assertEquals(Collections.singletonList("jobs/j2"), store.findIds("jobs/", "/status", "failed"));
+        assertEquals(Collections.singletonList("jobs/j1"), store.findIds("jobs/", "/status", "done"));
+    }
+
+    private boolean isIndexComplete() throws IOException
+    {
+        Path indexes = new File(this.permanentDirectory, "org.xwiki.contrib.jsonstore.indexes").toPath();
+        if (!Files.isDirectory(indexes)) {
+            return false;
+        }
+        try (Stream<Path> files = Files.walk(indexes)) {
+            return files.anyMatch(file -> file.getFileName().toString().equals(".complete"));
+        }
+    }
+
+    @Test
+    public void disposeFlushesPendingWrites() throws Exception
+    {
+        assertPendingWritesFlushedOnDispose();
+    }
+
+    @Test
+    public void disposeFlushesPendingWritesInMultiProcessMode() throws Exception
+    {
+        this.configuration.setProperty("jsonstore.permdir.multiProcess.enabled", true);
+        assertPendingWritesFlushedOnDispose();
+    }
+
+    @Test
+    public void pendingWriteOverwritesExpiredId() throws Exception
+    {
+        this.configuration.setProperty("jsonstore.permdir.writeBehind.enabled", true);
+        this.configuration.setProperty("jsonstore.permdir.writeBehind.interval", 60000L);
+        JsonStore store = start(HINT);
+        store.persistAsJson(Collections.singletonMap("a", 1), ID, true, 1);
+        Thread.sleep(10);
+
+        CompletableFuture<Boolean> written = store.persistAsJsonAsync(Collections.singletonMap("a", 2), ID, false);
+        stop();
+
+        assertTrue(written.get(10, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonMap("a", 2), start(HINT).getFromJsonStore(ID));
+    }
+
+    private void assertPendingWritesFlushedOnDispose() throws Exception
+    {
+        this.configuration.setProperty("jsonstore.permdir.writeBehind.enabled", true);
+        this.configuration.setProperty("jsonstore.permdir.writeBehind.interval", 60000L);
+        JsonStore store = start(HINT);
+        store.persistAsJson(Collections.singletonMap("a", 1), ID, true, 300);
+        CompletableFuture<Boolean> overwritten =
+            store.persistAsJsonAsync(Collections.singletonMap("a", 2), ID, true);
+        CompletableFuture<Boolean> created =
+            store.persistAsJsonAsync(Collections.singletonMap("a", 3), "space/other", true);
+        assertFalse(overwritten.isDone());
+
+        stop();
+
+        assertTrue(overwritten.get(10, TimeUnit.SECONDS));
+        assertTrue(created.get(10, TimeUnit.SECONDS));
+        store = start(HINT);
+        // the flushed write doesn't expire anymore
+        Thread.sleep(350);
+        assertEquals(Collections.singletonMap("a", 2), store.getFromJsonStore(ID));
+        assertEquals(Collections.singletonMap("a", 3), store.getFromJsonStore("space/other"));
+    }
+
+    /**
+     * Waits for a condition, for at most 10 seconds.
+     */
+    protected void waitUntil(Callable<Boolean> condition) throws Exception
+    {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.call()) {
+            assertTrue("Timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * @return the temporary files left in the folders of the stored ids
+     */
+    protected List<String> getHiddenFiles() throws IOException
+    {
+        Path folder = new File(this.permanentDirectory, "org.xwiki.contrib.jsonstore/space").toPath();
+        try (Stream<Path> files = Files.list(folder)) {
+            return files.map(file -> file.getFileName().toString()).filter(name -> name.endsWith(".tmp"))
+                .collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore.internal.segmentlog;
+
+import java.io.File;
+import java.util.Collections;
+
+import org.junit.Test;
+import org.xwiki.contrib.jsonstore.JsonStore;
+import org.xwiki.contrib.jsonstore.internal.AbstractJsonStoreTest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link SegmentLogJsonStore}.
+ *
+ * @version $Id$
+ */
+public class SegmentLogJsonStoreTest extends AbstractJsonStoreTest
+{
+    private static final String HINT = "segmentlog";
+
+    private static final String ID = "space/page";
+
+    @Test
+    public void unchangedWritesAreNotAppended() throws Exception
+    {
+        JsonStore store = start(HINT);
+        assertTrue(store.persistAsJson(Collections.singletonMap("a", 1), ID, true));
+        long size = getSegmentsSize();
+
+        assertTrue(store.persistAsJson(Collections.singletonMap("a", 1), ID, true));
+        assertEquals(size, getSegmentsSize());
+
+        assertTrue(store.persistAsJson(Collections.singletonMap("a", 2), ID, true));
+        assertTrue(getSegmentsSize() > size);
+        assertEquals(Collections.singletonMap("a", 2), store.getFromJsonStore(ID));
+    }
+
+    @Test
+    public void unchangedWritesAreDetectedAfterRestart() throws Exception
+    {
+        start(HINT).persistAsJson(Collections.singletonMap("a", 1), ID, true);
+        JsonStore store = start(HINT);
+        long size = getSegmentsSize();
+
+        assertTrue(store.persistAsJson(Collections.singletonMap("a", 1), ID, true));
+        assertEquals(size, getSegmentsSize());
+    }
+
+    @Test
+    public void persistIfVersion() throws Exception
+    {
+        JsonStore store = start(HINT);
+        assertNull(store.getVersion(ID));
+        assertFalse(store.persistIfVersion(Collections.singletonMap("a", 1), ID, "unknown"));
+        assertTrue(store.persistIfVersion(Collections.singletonMap("a", 1), ID, null));
+        String version = store.getVersion(ID);
+
+        // the same data has the same version
+        store.persistAsJson(Collections.singletonMap("a", 1), ID, true);
+        assertEquals(version, store.getVersion(ID));
+
+        assertTrue(store.persistIfVersion(Collections.singletonMap("a", 2), ID, version));
+        assertNotEquals(version, store.getVersion(ID));
+        assertFalse(store.persistIfVersion(Collections.singletonMap("a", 3), ID, version));
+        assertEquals(Collections.singletonMap("a", 2), store.getFromJsonStore(ID));
+    }
+
+    @Test
+    public void writesAreKeptWithAllTheSyncIntervals() throws Exception
+    {
+        // forced after each write, periodically and never
+        for (long interval : new long[] {0L, 10L, -1L}) {
+            this.configuration.setProperty("jsonstore.segmentlog.sync.interval", interval);
+            JsonStore store = start(HINT);
+            store.persistAsJson(Collections.singletonMap("a", interval), ID, true);
+            Thread.sleep(20);
+
+            assertEquals(Collections.singletonMap("a", (int) interval), start(HINT).getFromJsonStore(ID));
+        }
+    }
+
+    private long getSegmentsSize()
+    {
+        long size = 0;
+        File[] segments = new File(this.permanentDirectory, "org.xwiki.contrib.jsonstore.segmentlog")
+            .listFiles((folder, name) -> name.startsWith("segment-"));
+        for (File segment : segments) {
+            size += segment.length();
+        }
+        return size;
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.jsonstore.internal.segmentlog;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.helpers.NOPLogger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the segment log rebuilds its index from the index file and the segments, after compactions, crashes
+ * and partial writes.
+ *
+ * @version $Id$
+ */
+public class SegmentLogTest
+{
+    private static final String FORMAT = "json";
+
+    private static final long SEGMENT_MAX_SIZE = 256;
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final List<SegmentLog> logs = new ArrayList<>();
+
+    private final Map<String, String> expected = new TreeMap<>();
+
+    private Path directory;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.directory = this.temporaryFolder.newFolder("segmentlog").toPath();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        for (SegmentLog log : this.logs) {
+            log.close();
+        }
+    }
+
+    @Test
+    public void replayAfterCompaction() throws Exception
+    {
+        SegmentLog log = open();
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 20; i++) {
+                append(log, "id" + i, "value " + i + " of round " + round);
+            }
+        }
+        for (int i = 0; i < 20; i += 3) {
+            remove(log, "id" + i);
+        }
+        List<Path> segments = getSegments();
+
+        log.compact(0.5);
+
+        assertTrue(getSegments().size() < segments.size());
+        assertContent(log);
+        close(log);
+
+        assertContent(open());
+    }
+
+    @Test
+    public void fullReplayAfterCompactionWithoutIndexFile() throws Exception
+    {
+        SegmentLog log = open();
+        // the first segments are kept by the compaction, since most of their records are live
+        append(log, "removed", "removed value");
+        for (int i = 0; i < 20; i++) {
+            append(log, "kept" + i, "kept value " + i);
+        }
+        for (int i = 0; i < 20; i++) {
+            append(log, "id" + i, "first value " + i);
+        }
+        remove(log, "removed");
+        for (int round = 2; round < 4; round++) {
+            for (int i = 0; i < 20; i++) {
+                append(log, "id" + i, "value " + i + " of round " + round);
+            }
+        }
+        List<Path> segments = getSegments();
+
+        log.compact(0.5);
+        close(log);
+
+        // the delete record is copied since the first segment still holds a record of the removed id
+        assertTrue(getSegments().size() < segments.size());
+        assertTrue(getSegments().contains(segments.get(0)));
+        Files.delete(this.directory.resolve("index"));
+
+        assertContent(open());
+    }
+
+    @Test
+    public void recordsAppendedAfterSavedIndexAreReplayed() throws Exception
+    {
+        SegmentLog log = open();
+        for (int i = 0; i < 10; i++) {
+            append(log, "id" + i, "first value " + i);
+        }
+        log.saveIndex();
+        for (int i = 0; i < 10; i += 2) {
+            append(log, "id" + i, "second value " + i);
+        }
+        remove(log, "id3");
+        append(log, "id10", "first value 10");
+
+        // the log is opened again without being closed, as after a crash
+        assertContent(open());
+    }
+
+    @Test
+    public void truncatedTrailingRecordIsIgnored() throws Exception
+    {
+        SegmentLog log = open();
+        append(log, "id1", "first value");
+        close(log);
+
+        log = open();
+        log.append("id2", FORMAT, bytes("second value"), true);
+        close(log);
+
+        // the process was stopped while writing the last record
+        Path activeSegment = getSegments().get(getSegments().size() - 1);
+        try (RandomAccessFile file = new RandomAccessFile(activeSegment.toFile(), "rw")) {
+            file.setLength(file.length() - 3);
+        }
+
+        log = open();
+        assertContent(log);
+        assertFalse(log.contains("id2"));
+
+        append(log, "id3", "third value");
+        close(log);
+        assertContent(open());
+    }
+
+    @Test
+    public void corruptedIndexFileIsRebuilt() throws Exception
+    {
+        SegmentLog log = open();
+        for (int i = 0; i < 10; i++) {
+            append(log, "id" + i, "value " + i);
+        }
+        remove(log, "id5");
+        close(log);
+
+        Files.write(this.directory.resolve("index"), bytes("not an index"));
+
+        assertContent(open());
+    }
+
+    @Test
+    public void appendWithoutOverwriteKeepsRecord() throws Exception
+    {
+        SegmentLog log = open();
+        append(log, "id", "first value");
+
+        assertFalse(log.append("id", FORMAT, bytes("second value"), false));
+        assertFalse(log.remove("missing"));
+        assertNull(log.get("missing"));
+        assertContent(log);
+    }
+
+    private SegmentLog open() throws IOException
+    {
+        SegmentLog log = new SegmentLog(this.directory, SEGMENT_MAX_SIZE, 0, NOPLogger.NOP_LOGGER);
+        log.open();
+        this.logs.add(log);
+        return log;
+    }
+
+    private void close(SegmentLog log) throws IOException
+    {
+        this.logs.remove(log);
+        log.close();
+    }
+
+    private void append(SegmentLog log, String id, String value) throws IOException
+    {
+        assertTrue(log.append(id, FORMAT, bytes(value), true));
+        this.expected.put(id, value);
+    }
+
+    private void remove(SegmentLog log, String id) throws IOException
+    {
+        assertTrue(log.remove(id));
+        this.expected.remove(id);
+    }
+
+    private void assertContent(SegmentLog log) throws IOException
+    {
+        assertEquals(new ArrayList<>(this.expected.keySet()), log.list("", null, Integer.MAX_VALUE));
+        assertEquals(this.expected.size(), log.size());
+        for (Map.Entry<String, String> entry : this.expected.entrySet()) {
+            SegmentLogRecord record = log.get(entry.getKey());
+            assertEquals(entry.getKey(), record.getId());
+            assertEquals(FORMAT, record.getFormat());
+            assertArrayEquals(bytes(entry.getValue()), record.getData());
+            // the checksums kept in the index match the records
+            assertTrue(log.hasRecord(entry.getKey(), FORMAT, bytes(entry.getValue())));
+            assertFalse(log.hasRecord(entry.getKey(), FORMAT, bytes(entry.getValue() + " changed")));
+            assertFalse(log.hasRecord(entry.getKey(), "smile", bytes(entry.getValue())));
+        }
+    }
+
+    private List<Path> getSegments() throws IOException
+    {
+        try (Stream<Path> files = Files.list(this.directory)) {
+            return files.filter(file -> file.getFileName().toString().startsWith("segment-")).sorted()
+                .collect(Collectors.toList());
+        }
+    }
+
+    private static byte[] bytes(String value)
+    {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}